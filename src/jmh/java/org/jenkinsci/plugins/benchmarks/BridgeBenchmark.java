@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.benchmarks;
+
+import jenkins.security.SecurityListener;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.*;
+import org.jenkinsci.plugins.events.impl.*;
+import org.jenkinsci.plugins.impl.SecurityListenerLegacyToNewLink;
+import org.jenkinsci.plugins.impl.SecurityListenerNewToLegacyLink;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip through both bridges, with one listener of each generation.
+ * An event fired on one side goes through the bridge to the other side, and the bridge of the other side
+ * must detect it to avoid the infinite loop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BridgeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Bridges extends JenkinsState {
+        CountingListener listener;
+        CountingListener.Legacy legacyListener;
+        LoginEvent loginEvent;
+        AuthenticationEvent authenticationEvent;
+
+        @Override
+        protected void setUp() {
+            listener = new CountingListener();
+            legacyListener = new CountingListener.Legacy();
+            replaceListeners(Arrays.asList(new SecurityListenerNewToLegacyLink(), listener));
+            replaceLegacyListeners(Arrays.asList(new SecurityListenerLegacyToNewLink(), legacyListener));
+
+            loginEvent = new LoginEventImpl("alice", "benchmark", "authenticated", "developers");
+            authenticationEvent = new AuthenticationEventImpl("alice", "benchmark");
+        }
+    }
+
+    @Benchmark
+    public void newToLegacyLoggedIn(Bridges state) {
+        SecurityListener2.fireLoggedIn(state.loginEvent);
+    }
+
+    @Benchmark
+    public void newToLegacyAuthenticated(Bridges state) {
+        SecurityListener2.fireAuthenticated(state.authenticationEvent);
+    }
+
+    @Benchmark
+    public long legacyToNewLoggedIn(Bridges state) {
+        SecurityListener.fireLoggedIn("alice", "benchmark");
+        return state.listener.count;
+    }
+
+    @Benchmark
+    public long legacyToNewFailedToLogIn(Bridges state) {
+        SecurityListener.fireFailedToLogIn("alice", "benchmark");
+        return state.listener.count;
+    }
+}
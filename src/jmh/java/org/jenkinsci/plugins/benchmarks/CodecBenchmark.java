@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.benchmarks;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.codec.EventDecoder;
+import org.jenkinsci.plugins.events.codec.EventEncoder;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.jenkinsci.plugins.events.impl.LoginEventImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the binary encoding of the events, in a stream where the usernames and authorities repeat
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"1", "100"})
+    public int distinctUsers;
+
+    private LoginEventImpl[] events;
+    private EventEncoder encoder;
+    private EventDecoder decoder;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        events = new LoginEventImpl[distinctUsers];
+        for (int i = 0; i < distinctUsers; i++) {
+            events[i] = new LoginEventImpl("user-" + i, "benchmark", "authenticated", "developers", "group-" + (i % 10));
+        }
+        encoder = new EventEncoder();
+        decoder = new EventDecoder();
+    }
+
+    @Benchmark
+    public int encode() {
+        LoginEventImpl event = events[next++ % events.length];
+        return encoder.encode(EventType.LOGGED_IN, event, next);
+    }
+
+    /**
+     * The encoder and the decoder stay in sync, after the first records only dictionary references are decoded
+     */
+    @Benchmark
+    public EventRecord roundTrip() throws IOException {
+        LoginEventImpl event = events[next++ % events.length];
+        int length = encoder.encode(EventType.LOGGED_IN, event, next);
+        return decoder.decode(encoder.getBuffer(), 0, length);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.benchmarks;
+
+import jenkins.security.SecurityListener;
+import org.acegisecurity.userdetails.UserDetails;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.*;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Listener doing the minimum work, to measure only the dispatch
+ */
+public class CountingListener extends SecurityListener2 {
+    public long count;
+
+    @Override
+    protected boolean authenticated(@Nonnull AuthenticationEvent event) {
+        count++;
+        return true;
+    }
+
+    @Override
+    protected boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
+        count++;
+        return true;
+    }
+
+    @Override
+    protected boolean loggedIn(@Nonnull LoginEvent event) {
+        count++;
+        return true;
+    }
+
+    @Override
+    protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
+        count++;
+        return true;
+    }
+
+    @Override
+    protected boolean loggedOut(@Nonnull LogoutEvent event) {
+        count++;
+        return true;
+    }
+
+    public static class Legacy extends SecurityListener {
+        public long count;
+
+        @Override
+        protected void authenticated(@Nonnull UserDetails details, @Nonnull String source) {
+            count++;
+        }
+
+        @Override
+        protected void failedToAuthenticate(@Nonnull String username, @Nonnull String source) {
+            count++;
+        }
+
+        @Override
+        protected void loggedIn(@Nonnull String username, @Nonnull String source) {
+            count++;
+        }
+
+        @Override
+        protected void failedToLogIn(@Nonnull String username, @Nonnull String source) {
+            count++;
+        }
+
+        @Override
+        protected void loggedOut(@Nonnull String username, @Nonnull String source) {
+            count++;
+        }
+    }
+}
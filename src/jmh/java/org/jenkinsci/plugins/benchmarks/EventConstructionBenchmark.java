@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.benchmarks;
+
+import org.jenkinsci.plugins.events.impl.LoginEventImpl;
+import org.jenkinsci.plugins.events.impl.LoginFailureExceptionEventImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the construction of the events, mostly their allocation, see the GC profiler output
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EventConstructionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Authorities {
+        @Param({"0", "10", "50", "300"})
+        public int authorityCount;
+
+        List<String> authorityList;
+        String[] authorityArray;
+
+        @Setup
+        public void setUp() {
+            authorityList = new ArrayList<>();
+            for (int i = 0; i < authorityCount; i++) {
+                authorityList.add("group-" + i);
+            }
+            authorityArray = authorityList.toArray(new String[0]);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Failure {
+        Exception exception = new IllegalStateException("Invalid password for alice");
+    }
+
+    @Benchmark
+    public LoginEventImpl loginEventFromCollection(Authorities state) {
+        return new LoginEventImpl("alice", "benchmark", state.authorityList);
+    }
+
+    @Benchmark
+    public LoginEventImpl loginEventFromArray(Authorities state) {
+        return new LoginEventImpl("alice", "benchmark", state.authorityArray);
+    }
+
+    @Benchmark
+    public LoginFailureExceptionEventImpl loginFailureWithException(Failure state) {
+        return new LoginFailureExceptionEventImpl("alice", "benchmark", state.exception);
+    }
+
+    @Benchmark
+    public LoginFailureExceptionEventImpl loginFailureWithNewException() {
+        return new LoginFailureExceptionEventImpl("alice", "benchmark", new IllegalStateException("Invalid password for alice"));
+    }
+}
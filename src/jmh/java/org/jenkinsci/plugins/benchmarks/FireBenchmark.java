@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.benchmarks;
+
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.*;
+import org.jenkinsci.plugins.events.impl.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each {@code SecurityListener2.fire*} depending on the number of listeners, the bridge is not registered
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FireBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Listeners extends JenkinsState {
+        @Param({"0", "1", "10", "50"})
+        public int listenerCount;
+
+        AuthenticationEvent authenticationEvent;
+        AuthenticationFailureEvent authenticationFailureEvent;
+        LoginEvent loginEvent;
+        LoginFailureEvent loginFailureEvent;
+        LogoutEvent logoutEvent;
+
+        @Override
+        protected void setUp() {
+            List<SecurityListener2> listeners = new ArrayList<>();
+            for (int i = 0; i < listenerCount; i++) {
+                listeners.add(new CountingListener());
+            }
+            replaceListeners(listeners);
+
+            authenticationEvent = new AuthenticationEventImpl("alice", "benchmark");
+            authenticationFailureEvent = new AuthenticationFailureEventImpl("alice", "benchmark");
+            loginEvent = new LoginEventImpl("alice", "benchmark", "authenticated", "developers");
+            loginFailureEvent = new LoginFailureEventImpl("alice", "benchmark");
+            logoutEvent = new LogoutEventImpl("alice", "benchmark");
+        }
+    }
+
+    @Benchmark
+    public void fireAuthenticated(Listeners state) {
+        SecurityListener2.fireAuthenticated(state.authenticationEvent);
+    }
+
+    @Benchmark
+    public void fireFailedToAuthenticate(Listeners state) {
+        SecurityListener2.fireFailedToAuthenticate(state.authenticationFailureEvent);
+    }
+
+    @Benchmark
+    public void fireLoggedIn(Listeners state) {
+        SecurityListener2.fireLoggedIn(state.loginEvent);
+    }
+
+    @Benchmark
+    public void fireFailedToLogIn(Listeners state) {
+        SecurityListener2.fireFailedToLogIn(state.loginFailureEvent);
+    }
+
+    @Benchmark
+    public void fireLoggedOut(Listeners state) {
+        SecurityListener2.fireLoggedOut(state.logoutEvent);
+    }
+}
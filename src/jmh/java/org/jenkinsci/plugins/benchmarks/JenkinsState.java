@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.benchmarks;
+
+import hudson.ExtensionList;
+import jenkins.security.SecurityListener;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.DispatchTable;
+import org.junit.runner.Description;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Base of the benchmark states requiring a running Jenkins, started once per trial.
+ */
+public abstract class JenkinsState {
+    protected JenkinsRule jenkins;
+
+    @Setup(Level.Trial)
+    public void startJenkins() throws Throwable {
+        jenkins = new BenchmarkJenkinsRule(getClass());
+        jenkins.before();
+        setUp();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopJenkins() throws Exception {
+        jenkins.after();
+    }
+
+    protected abstract void setUp() throws Exception;
+
+    /**
+     * Replace all the registered SecurityListener2, including the bridge, by the given ones
+     */
+    protected static void replaceListeners(Collection<? extends SecurityListener2> listeners) {
+        replace(ExtensionList.lookup(SecurityListener2.class), listeners);
+    }
+
+    /**
+     * Replace all the registered legacy SecurityListener, including the bridge, by the given ones
+     */
+    protected static void replaceLegacyListeners(Collection<? extends SecurityListener> listeners) {
+        replace(ExtensionList.lookup(SecurityListener.class), listeners);
+    }
+
+    private static <T> void replace(ExtensionList<T> list, Collection<? extends T> listeners) {
+        for (T existing : new ArrayList<>(list)) {
+            list.remove(existing);
+        }
+        list.addAll(listeners);
+        DispatchTable.invalidate();
+    }
+
+    private static class BenchmarkJenkinsRule extends JenkinsRule {
+        BenchmarkJenkinsRule(Class<?> benchmark) {
+            this.testDescription = Description.createSuiteDescription(benchmark);
+        }
+    }
+}
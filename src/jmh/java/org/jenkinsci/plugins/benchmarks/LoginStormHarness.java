@@ -0,0 +1,540 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.benchmarks;
+
+import jenkins.security.SecurityListener;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.User;
+import org.acegisecurity.userdetails.UserDetails;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.Asynchronous;
+import org.jenkinsci.plugins.dispatch.AuthenticationCoalescer;
+import org.jenkinsci.plugins.dispatch.LatencyHistogram;
+import org.jenkinsci.plugins.events.*;
+import org.jenkinsci.plugins.events.impl.*;
+import org.jenkinsci.plugins.impl.SecurityListenerLegacyToNewLink;
+import org.jenkinsci.plugins.impl.SecurityListenerNewToLegacyLink;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Login storm against a local Jenkins: many threads fire a mix of events, part of them through the legacy
+ * {@link SecurityListener} and the others through {@link SecurityListener2}, with both bridges registered.
+ * Reports the throughput, the latency of the fire calls and the allocation per event of the firing threads,
+ * then checks that every event reached every listener exactly once, whatever the side it was fired from.
+ * That check is also part of the build, on a smaller storm, see {@code SecurityListenerBridgeTest}.
+ *
+ * Not a JMH benchmark, the whole storm is the measurement:
+ * {@code mvn -Pjmh test-compile exec:exec -Djmh.main=org.jenkinsci.plugins.benchmarks.LoginStormHarness -Djmh.include=threads=16,events=2000000}
+ *
+ * The options are comma separated {@code key=value}:
+ * <ul>
+ *     <li>{@code threads}: number of firing threads, 8 by default</li>
+ *     <li>{@code events}: number of events per round, 1000000 by default</li>
+ *     <li>{@code rounds}: number of measured rounds, after a warmup one, 3 by default</li>
+ *     <li>{@code users}: number of distinct usernames, 1000 by default</li>
+ *     <li>{@code legacy}: percentage of the events fired through the legacy API, 50 by default</li>
+ *     <li>{@code mix}: weights of authenticated:failedToAuthenticate:loggedIn:failedToLogIn:loggedOut, 50:10:20:10:10 by default</li>
+ *     <li>{@code async}: also register an {@link Asynchronous} listener, true by default</li>
+ * </ul>
+ */
+public class LoginStormHarness {
+    private static final String SOURCE_PREFIX = "storm/";
+    private static final EventType[] MIX_ORDER = {
+            EventType.AUTHENTICATED, EventType.FAILED_TO_AUTHENTICATE,
+            EventType.LOGGED_IN, EventType.FAILED_TO_LOG_IN, EventType.LOGGED_OUT
+    };
+    private static final long ASYNC_TIMEOUT_SECONDS = 60;
+    private static final int MAX_REPORTED_VIOLATIONS = 10;
+
+    public static void main(String[] args) throws Throwable {
+        // without -Djmh.include, the profile passes its default pattern meant for the BenchmarkRunner
+        Options options = Options.parse(args.length > 0 && !".*".equals(args[0]) ? args[0] : "");
+        if (AuthenticationCoalescer.ENABLED) {
+            // the coalescer merges repeated authentications on purpose, exactly once cannot hold
+            System.err.println("The authentication coalescer must be disabled for the exactly once check");
+            System.exit(2);
+        }
+
+        JenkinsState jenkins = new JenkinsState() {
+            @Override
+            protected void setUp() {
+            }
+        };
+        jenkins.startJenkins();
+        boolean success = true;
+        try {
+            System.out.println("Login storm: " + options);
+            LoginStormHarness harness = new LoginStormHarness(options);
+            harness.run("warmup");
+            for (int round = 1; round <= options.rounds; round++) {
+                success &= harness.run("round " + round);
+            }
+        } finally {
+            jenkins.stopJenkins();
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    private final Options options;
+    private final String[] usernames;
+    private final UserDetails[] userDetails;
+    private final String[] sources;
+    private final EventType[] types;
+    private final boolean[] legacy;
+    private final int[] userOf;
+
+    private LoginStormHarness(Options options) {
+        this.options = options;
+
+        usernames = new String[options.users];
+        userDetails = new UserDetails[options.users];
+        for (int i = 0; i < options.users; i++) {
+            usernames[i] = "user" + i;
+            userDetails[i] = new User(usernames[i], "", true, true, true, true, new GrantedAuthority[0]);
+        }
+
+        // everything is generated before the storm, the firing threads only construct the events
+        Random random = new Random(42);
+        int totalWeight = 0;
+        for (int weight : options.mix) {
+            totalWeight += weight;
+        }
+        sources = new String[options.events];
+        types = new EventType[options.events];
+        legacy = new boolean[options.events];
+        userOf = new int[options.events];
+        for (int id = 0; id < options.events; id++) {
+            sources[id] = SOURCE_PREFIX + id;
+            types[id] = pick(random.nextInt(totalWeight), options.mix);
+            legacy[id] = random.nextInt(100) < options.legacyPercentage;
+            userOf[id] = random.nextInt(options.users);
+        }
+    }
+
+    private static EventType pick(int draw, int[] mix) {
+        for (int i = 0; i < mix.length; i++) {
+            draw -= mix[i];
+            if (draw < 0) {
+                return MIX_ORDER[i];
+            }
+        }
+        return MIX_ORDER[MIX_ORDER.length - 1];
+    }
+
+    private boolean run(String name) throws InterruptedException {
+        int events = options.events;
+        RecordingListener listener = new RecordingListener(events);
+        RecordingLegacyListener legacyListener = new RecordingLegacyListener(events);
+        List<SecurityListener2> listeners = new ArrayList<>();
+        listeners.add(new SecurityListenerNewToLegacyLink());
+        listeners.add(listener);
+        AsyncRecordingListener asyncListener = null;
+        if (options.async) {
+            asyncListener = new AsyncRecordingListener(events);
+            listeners.add(asyncListener);
+        }
+        JenkinsState.replaceListeners(listeners);
+        JenkinsState.replaceLegacyListeners(Arrays.asList(new SecurityListenerLegacyToNewLink(), legacyListener));
+
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder allocatedBytes = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[options.threads];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long allocatedBefore = allocatedBytes();
+                for (int id = first; id < events; id += threads.length) {
+                    long begin = System.nanoTime();
+                    fire(id);
+                    latency.record(System.nanoTime() - begin);
+                }
+                allocatedBytes.add(allocatedBytes() - allocatedBefore);
+            }, "login-storm-" + t);
+            threads[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - begin;
+
+        boolean asyncCompleted = true;
+        if (asyncListener != null) {
+            asyncCompleted = asyncListener.awaitTotal(events, ASYNC_TIMEOUT_SECONDS);
+        }
+        long drainedNanos = System.nanoTime() - begin;
+
+        System.out.println();
+        System.out.println("== " + name);
+        System.out.printf("throughput: %,.0f events/s (%,d events in %d ms, %d threads)%n",
+                events * 1e9 / elapsedNanos, events, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), threads.length);
+        if (asyncListener != null) {
+            System.out.printf("asynchronous listener drained after %d ms%n", TimeUnit.NANOSECONDS.toMillis(drainedNanos));
+        }
+        System.out.printf("fire latency: mean %,d ns, p50 <= %,d ns, p99 <= %,d ns, p99.9 <= %,d ns%n",
+                latency.getTotalNanos() / Math.max(1, latency.getCount()),
+                latency.getPercentileUpperBound(0.5),
+                latency.getPercentileUpperBound(0.99),
+                latency.getPercentileUpperBound(0.999));
+        long allocated = allocatedBytes.sum();
+        if (allocated >= 0) {
+            System.out.printf("allocation: %,d bytes/event on the firing threads%n", allocated / events);
+        } else {
+            System.out.println("allocation: not supported by this JVM");
+        }
+
+        boolean success = listener.verify("SecurityListener2") & legacyListener.verify("legacy SecurityListener");
+        if (asyncListener != null) {
+            if (!asyncCompleted) {
+                System.out.println("FAILED asynchronous listener: not drained after " + ASYNC_TIMEOUT_SECONDS + " s");
+            }
+            success &= asyncCompleted & asyncListener.verify("asynchronous SecurityListener2");
+        }
+        return success;
+    }
+
+    private void fire(int id) {
+        String username = usernames[userOf[id]];
+        String source = sources[id];
+        if (legacy[id]) {
+            switch (types[id]) {
+                case AUTHENTICATED:
+                    SecurityListener.fireAuthenticated(userDetails[userOf[id]], source);
+                    break;
+                case FAILED_TO_AUTHENTICATE:
+                    SecurityListener.fireFailedToAuthenticate(username, source);
+                    break;
+                case LOGGED_IN:
+                    SecurityListener.fireLoggedIn(username, source);
+                    break;
+                case FAILED_TO_LOG_IN:
+                    SecurityListener.fireFailedToLogIn(username, source);
+                    break;
+                case LOGGED_OUT:
+                    SecurityListener.fireLoggedOut(username, source);
+                    break;
+            }
+        } else {
+            switch (types[id]) {
+                case AUTHENTICATED:
+                    SecurityListener2.fireAuthenticated(new AuthenticationEventImpl(username, source));
+                    break;
+                case FAILED_TO_AUTHENTICATE:
+                    SecurityListener2.fireFailedToAuthenticate(new AuthenticationFailureEventImpl(username, source));
+                    break;
+                case LOGGED_IN:
+                    SecurityListener2.fireLoggedIn(new LoginEventImpl(username, source, "authenticated"));
+                    break;
+                case FAILED_TO_LOG_IN:
+                    SecurityListener2.fireFailedToLogIn(new LoginFailureEventImpl(username, source));
+                    break;
+                case LOGGED_OUT:
+                    SecurityListener2.fireLoggedOut(new LogoutEventImpl(username, source));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, negative if not supported
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Extract the event id from the trailing digits of the source, without allocation.
+     * The bridges may prefix the source, never suffix it.
+     *
+     * @return the id or -1 if the source does not come from the storm
+     */
+    static int idOf(String source) {
+        if (source == null) {
+            return -1;
+        }
+        int end = source.length();
+        int start = end;
+        while (start > 0 && Character.isDigit(source.charAt(start - 1))) {
+            start--;
+        }
+        if (start == end || end - start > 9 || !source.startsWith(SOURCE_PREFIX, start - SOURCE_PREFIX.length())) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = start; i < end; i++) {
+            id = id * 10 + (source.charAt(i) - '0');
+        }
+        return id;
+    }
+
+    /**
+     * Count of the deliveries per event id, to detect the lost and the duplicated events
+     */
+    private static class Deliveries {
+        private final AtomicIntegerArray counts;
+        private final LongAdder total = new LongAdder();
+        private final LongAdder unknown = new LongAdder();
+
+        Deliveries(int events) {
+            counts = new AtomicIntegerArray(events);
+        }
+
+        void record(String source) {
+            int id = idOf(source);
+            if (id < 0 || id >= counts.length()) {
+                unknown.increment();
+            } else {
+                counts.incrementAndGet(id);
+            }
+            total.increment();
+        }
+
+        boolean verify(String name) {
+            int lost = 0;
+            int duplicated = 0;
+            StringBuilder examples = new StringBuilder();
+            for (int id = 0; id < counts.length(); id++) {
+                int count = counts.get(id);
+                if (count != 1) {
+                    if (count == 0) {
+                        lost++;
+                    } else {
+                        duplicated++;
+                    }
+                    if (lost + duplicated <= MAX_REPORTED_VIOLATIONS) {
+                        examples.append(' ').append(id).append('x').append(count);
+                    }
+                }
+            }
+            long unknownCount = unknown.sum();
+            if (lost == 0 && duplicated == 0 && unknownCount == 0) {
+                System.out.println("OK " + name + ": " + total.sum() + " events, each exactly once");
+                return true;
+            }
+            System.out.println("FAILED " + name + ": " + lost + " lost, " + duplicated + " duplicated, "
+                    + unknownCount + " unknown sources, e.g." + examples);
+            return false;
+        }
+    }
+
+    private static class RecordingListener extends SecurityListener2 {
+        final Deliveries deliveries;
+
+        RecordingListener(int events) {
+            deliveries = new Deliveries(events);
+        }
+
+        boolean verify(String name) {
+            return deliveries.verify(name);
+        }
+
+        @Override
+        protected boolean authenticated(@Nonnull AuthenticationEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean loggedIn(@Nonnull LoginEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean loggedOut(@Nonnull LogoutEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+    }
+
+    @Asynchronous
+    private static class AsyncRecordingListener extends RecordingListener {
+        AsyncRecordingListener(int events) {
+            super(events);
+        }
+
+        boolean awaitTotal(long expected, long timeoutSeconds) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (deliveries.total.sum() < expected) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+    }
+
+    private static class RecordingLegacyListener extends SecurityListener {
+        final Deliveries deliveries;
+
+        RecordingLegacyListener(int events) {
+            deliveries = new Deliveries(events);
+        }
+
+        boolean verify(String name) {
+            return deliveries.verify(name);
+        }
+
+        @Override
+        protected void authenticated(@Nonnull UserDetails details, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void failedToAuthenticate(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void loggedIn(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void failedToLogIn(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void loggedOut(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+    }
+
+    private static class Options {
+        int threads = 8;
+        int events = 1_000_000;
+        int rounds = 3;
+        int users = 1000;
+        int legacyPercentage = 50;
+        int[] mix = {50, 10, 20, 10, 10};
+        boolean async = true;
+
+        static Options parse(String arguments) {
+            Options options = new Options();
+            for (String option : arguments.split(",")) {
+                if (option.trim().isEmpty()) {
+                    continue;
+                }
+                int separator = option.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Expected key=value: " + option);
+                }
+                String key = option.substring(0, separator).trim();
+                String value = option.substring(separator + 1).trim();
+                switch (key) {
+                    case "threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "events":
+                        options.events = Integer.parseInt(value);
+                        break;
+                    case "rounds":
+                        options.rounds = Integer.parseInt(value);
+                        break;
+                    case "users":
+                        options.users = Integer.parseInt(value);
+                        break;
+                    case "legacy":
+                        options.legacyPercentage = Integer.parseInt(value);
+                        break;
+                    case "mix":
+                        options.mix = parseMix(value);
+                        break;
+                    case "async":
+                        options.async = Boolean.parseBoolean(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + key);
+                }
+            }
+            if (options.threads < 1 || options.events < 1 || options.users < 1 || options.rounds < 0) {
+                throw new IllegalArgumentException("threads, events and users must be positive: " + options);
+            }
+            return options;
+        }
+
+        private static int[] parseMix(String value) {
+            String[] parts = value.split(":");
+            if (parts.length != MIX_ORDER.length) {
+                throw new IllegalArgumentException("Expected " + MIX_ORDER.length + " weights in the mix: " + value);
+            }
+            int[] mix = new int[parts.length];
+            int total = 0;
+            for (int i = 0; i < parts.length; i++) {
+                mix[i] = Integer.parseInt(parts[i].trim());
+                if (mix[i] < 0) {
+                    throw new IllegalArgumentException("Negative weight in the mix: " + value);
+                }
+                total += mix[i];
+            }
+            if (total == 0) {
+                throw new IllegalArgumentException("Empty mix: " + value);
+            }
+            return mix;
+        }
+
+        @Override
+        public String toString() {
+            return "threads=" + threads + ",events=" + events + ",rounds=" + rounds + ",users=" + users
+                    + ",legacy=" + legacyPercentage + ",mix=" + mix[0] + ":" + mix[1] + ":" + mix[2] + ":" + mix[3] + ":" + mix[4]
+                    + ",async=" + async;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins;
+
+import hudson.ExtensionList;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.events.*;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listener receiving the security events by batches instead of one by one,
+ * useful when each call implies an I/O, like writing to a database or a remote collector.
+ *
+ * The events are accumulated and passed to {@link #onEvents(List)} as soon as there are enough of them
+ * or when the oldest one waited long enough. The batches are passed one at a time, in the order of the events,
+ * from a thread dedicated to the listener, so a slow implementation does not hold the threads shared with Jenkins.
+ *
+ * When too many events are waiting, the new ones are dropped, except the failures: those are passed to
+ * {@link #onEvents(List)} by the thread firing them, slowing it down rather than losing them.
+ *
+ * A batch listener cannot prevent the other listeners to receive an event.
+ * Once Jenkins is shutting down, its thread is stopped and the events are passed by the thread firing them.
+ */
+public abstract class BatchSecurityListener extends SecurityListener2 {
+    private static final Logger LOGGER = Logger.getLogger(BatchSecurityListener.class.getName());
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = SystemProperties.getInteger(BatchSecurityListener.class.getName() + ".maxBatchSize", 500);
+    public static final long DEFAULT_MAX_DELAY_MILLIS = SystemProperties.getLong(BatchSecurityListener.class.getName() + ".maxDelay", 1_000L);
+
+    /** Number of full batches that can wait before the new events, other than failures, are dropped */
+    private static final int MAX_PENDING_BATCHES = 64;
+
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final int maxPending;
+
+    private final Queue<SecurityEvent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean immediateFlushScheduled = new AtomicBoolean();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Object flushLock = new Object();
+    private volatile ScheduledExecutorService executor;
+    private volatile boolean closed;
+
+    protected BatchSecurityListener() {
+        this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxBatchSize   maximum number of events passed to a single {@link #onEvents(List)} call
+     * @param maxDelayMillis maximum time an event waits before being flushed, even if the batch is not full
+     */
+    protected BatchSecurityListener(int maxBatchSize, long maxDelayMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1, was " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = Math.max(0, maxDelayMillis);
+        this.maxPending = maxBatchSize * MAX_PENDING_BATCHES;
+    }
+
+    /**
+     * Receive the accumulated events, in the order they were fired.
+     * Never called concurrently for the same listener.
+     *
+     * @param events not empty, at most the maximum batch size, can be kept by the implementation
+     */
+    protected abstract void onEvents(@Nonnull List<SecurityEvent> events);
+
+    /**
+     * @return the number of events not passed to {@link #onEvents(List)} because too many were already waiting,
+     * never failure events
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    protected final boolean authenticated(@Nonnull AuthenticationEvent event) {
+        return add(event, false);
+    }
+
+    @Override
+    protected final boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
+        return add(event, true);
+    }
+
+    @Override
+    protected final boolean loggedIn(@Nonnull LoginEvent event) {
+        return add(event, false);
+    }
+
+    @Override
+    protected final boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
+        return add(event, true);
+    }
+
+    @Override
+    protected final boolean loggedOut(@Nonnull LogoutEvent event) {
+        return add(event, false);
+    }
+
+    private boolean add(@Nonnull SecurityEvent event, boolean failure) {
+        int count = pendingCount.incrementAndGet();
+        if (count > maxPending) {
+            if (failure) {
+                pending.add(event);
+                // the dedicated thread cannot keep up, the caller takes its share
+                flush();
+                return true;
+            }
+            pendingCount.decrementAndGet();
+            if (droppedCount.getAndIncrement() == 0) {
+                LOGGER.log(Level.WARNING, "Listener {0} does not process the events fast enough, the new ones are dropped", getClass().getName());
+            }
+            return true;
+        }
+        pending.add(event);
+
+        if (count >= maxBatchSize) {
+            if (immediateFlushScheduled.compareAndSet(false, true)) {
+                scheduleFlush(0);
+            }
+        } else if (count == 1) {
+            // first event of a new batch
+            scheduleFlush(maxDelayMillis);
+        }
+        return true;
+    }
+
+    /**
+     * Flush from the dedicated thread, or right away from the calling one once closed
+     */
+    private void scheduleFlush(long delayMillis) {
+        ScheduledExecutorService result = executor;
+        if (result == null) {
+            synchronized (this) {
+                result = executor;
+                if (result == null && !closed) {
+                    ScheduledThreadPoolExecutor created = new ScheduledThreadPoolExecutor(1,
+                            new NamingThreadFactory(new DaemonThreadFactory(), "BatchSecurityListener " + getClass().getName()));
+                    // the delayed flushes are not needed once closed, the pending events are flushed by close
+                    created.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+                    executor = result = created;
+                }
+            }
+        }
+        if (result == null) {
+            flush();
+        } else if (delayMillis == 0) {
+            result.execute(this::flush);
+        } else {
+            result.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Pass all the pending events to {@link #onEvents(List)}, from the calling thread.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            immediateFlushScheduled.set(false);
+            while (true) {
+                List<SecurityEvent> batch = new ArrayList<>(Math.min(maxBatchSize, pendingCount.get()));
+                SecurityEvent event;
+                while (batch.size() < maxBatchSize && (event = pending.poll()) != null) {
+                    batch.add(event);
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                int remaining = pendingCount.addAndGet(-batch.size());
+                try {
+                    onEvents(batch);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Listener " + getClass().getName() + " failed to process a batch of " + batch.size() + " events", e);
+                }
+                if (remaining == 0) {
+                    break;
+                }
+            }
+
+            if (pendingCount.get() > 0 && !closed) {
+                // an event was counted but not yet queued when we looked, it will be part of the next batch
+                scheduleFlush(maxDelayMillis);
+            }
+        }
+    }
+
+    /**
+     * Pass the pending events and stop the dedicated thread, the later events are passed right away
+     */
+    private void close() {
+        closed = true;
+        ScheduledExecutorService toStop;
+        synchronized (this) {
+            toStop = executor;
+            executor = null;
+        }
+        if (toStop != null) {
+            // a flush already running is waited for by the one below, through the flush lock
+            toStop.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Called by {@link org.jenkinsci.plugins.impl.ShutdownSequence} once the asynchronous dispatch is drained
+     */
+    public static void flushAll() {
+        for (BatchSecurityListener listener : ExtensionList.lookup(BatchSecurityListener.class)) {
+            listener.close();
+        }
+    }
+}
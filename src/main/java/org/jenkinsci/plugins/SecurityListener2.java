@@ -23,15 +23,44 @@
  */
 package org.jenkinsci.plugins;
 
-import hudson.ExtensionList;
 import hudson.ExtensionPoint;
+import org.jenkinsci.plugins.dispatch.AsyncDispatcher;
+import org.jenkinsci.plugins.dispatch.Asynchronous;
+import org.jenkinsci.plugins.dispatch.AuthenticationCoalescer;
+import org.jenkinsci.plugins.dispatch.CircuitBreaker;
+import org.jenkinsci.plugins.dispatch.DispatchMetrics;
+import org.jenkinsci.plugins.dispatch.DispatchTable;
+import org.jenkinsci.plugins.dispatch.EventTime;
+import org.jenkinsci.plugins.dispatch.Independent;
+import org.jenkinsci.plugins.dispatch.ListenerHandle;
+import org.jenkinsci.plugins.dispatch.ParallelDispatcher;
+import org.jenkinsci.plugins.dispatch.Subscription;
 import org.jenkinsci.plugins.events.*;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Listen to the security events, replacement of the legacy {@link jenkins.security.SecurityListener}
+ * with events carrying more information.
+ *
+ * By default the listeners are called synchronously by the thread firing the event,
+ * the implementations annotated with {@link Asynchronous} are called from dedicated threads
+ * and the ones annotated with {@link Independent} concurrently with the others.
+ *
+ * The listeners are called by decreasing {@link hudson.Extension#ordinal()}, the synchronous ones first.
+ * As soon as one of them returns false, the event is not passed to the next ones,
+ * except the built-in ones recording the events, see {@link org.jenkinsci.plugins.dispatch.Essential}.
+ * The independent listeners are not affected by the others, see {@link Independent}.
+ * A listener can declare the events it is interested in with a {@link Subscription}, it does not receive the others.
+ *
+ * A listener throwing an exception does not prevent the next ones to receive the event.
+ * When it keeps failing or being too slow, it is skipped for a while, see {@link CircuitBreaker}.
+ */
 public abstract class SecurityListener2 implements ExtensionPoint {
     private static final Logger LOGGER = Logger.getLogger(SecurityListener2.class.getName());
 
@@ -39,7 +68,8 @@ public abstract class SecurityListener2 implements ExtensionPoint {
      * Fired when a user was successfully authenticated using (any) credentials.
      *
      * @param event contains username of the authenticated user and source of that event.
-     * @return true means we can continue, false that the listener does not want other to have that event
+     * @return true means we can continue, false that the listener does not want other to have that event,
+     * the listeners with a lower ordinal will then not receive it
      * TODO add implementation links
      */
     protected boolean authenticated(@Nonnull AuthenticationEvent event) {
@@ -52,7 +82,8 @@ public abstract class SecurityListener2 implements ExtensionPoint {
      * we do fire this event only when even the last layer failed to authenticate.
      *
      * @param event contains username of the user and source of that event.
-     * @return true means we can continue, false that the listener does not want other to have that event
+     * @return true means we can continue, false that the listener does not want other to have that event,
+     * the listeners with a lower ordinal will then not receive it
      * @see #authenticated
      * TODO add implementation links
      */
@@ -66,7 +97,8 @@ public abstract class SecurityListener2 implements ExtensionPoint {
      * It should be called after the {@link org.acegisecurity.context.SecurityContextHolder#getContext()}'s authentication is set.
      *
      * @param event contains the username of the user, the granted authorities and the source of the event
-     * @return true means we can continue, false that the listener does not want other to have that event
+     * @return true means we can continue, false that the listener does not want other to have that event,
+     * the listeners with a lower ordinal will then not receive it
      * TODO add implementation links
      */
     protected boolean loggedIn(@Nonnull LoginEvent event) {
@@ -78,7 +110,8 @@ public abstract class SecurityListener2 implements ExtensionPoint {
      * Would be called after {@link #failedToAuthenticate}.
      *
      * @param event contains the username and the source of the event
-     * @return true means we can continue, false that the listener does not want other to have that event
+     * @return true means we can continue, false that the listener does not want other to have that event,
+     * the listeners with a lower ordinal will then not receive it
      * TODO add implementation links
      */
     protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
@@ -89,64 +122,284 @@ public abstract class SecurityListener2 implements ExtensionPoint {
      * Fired when a user logs out.
      *
      * @param event contains the username and the source of the event
-     * @return true means we can continue, false that the listener does not want other to have that event
+     * @return true means we can continue, false that the listener does not want other to have that event,
+     * the listeners with a lower ordinal will then not receive it
      * TODO add implementation links
      */
     protected boolean loggedOut(@Nonnull LogoutEvent event) {
         return true;
     }
 
+    /**
+     * A disabled listener is not called at all, like if it was not registered.
+     * Evaluated once when the listeners are loaded, typically for features enabled by a system property.
+     *
+     * @return true by default
+     */
+    public boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Allow the callers to skip the creation of an event that nobody would receive
+     *
+     * @return true if at least one enabled listener overrides the callback of that event type
+     */
+    public static boolean hasListeners(@Nonnull EventType type) {
+        return DispatchTable.get().hasConsumers(type);
+    }
+
+    /**
+     * Same as {@link #hasListeners(EventType)} but ignoring the listeners not interested in the legacy events,
+     * like the bridge sending the events back to the legacy listeners.
+     */
+    @Restricted(NoExternalUse.class)
+    public static boolean hasListenersForLegacy(@Nonnull EventType type) {
+        return DispatchTable.get().hasLegacyConsumers(type);
+    }
+
     /**
      * @see #authenticated(AuthenticationEvent)
      */
     public static void fireAuthenticated(@Nonnull AuthenticationEvent event) {
-        LOGGER.log(Level.FINE, "authenticated: {0} from {1}", new Object[]{event.getUsername(), event.getSource()});
-        for (SecurityListener2 l : all()) {
-            l.authenticated(event);
-        }
+        fireCountingSkipped(EventType.AUTHENTICATED, event);
     }
 
     /**
      * @see #failedToAuthenticate(AuthenticationFailureEvent)
      */
     public static void fireFailedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
-        LOGGER.log(Level.FINE, "failed to authenticate: {0} from {1}", new Object[]{event.getUsername(), event.getSource()});
-        for (SecurityListener2 l : all()) {
-            l.failedToAuthenticate(event);
-        }
+        fireCountingSkipped(EventType.FAILED_TO_AUTHENTICATE, event);
     }
 
     /**
      * @see #loggedIn(LoginEvent)
      */
     public static void fireLoggedIn(@Nonnull LoginEvent event) {
-        LOGGER.log(Level.FINE, "logged in: {0} from {1}", new Object[]{event.getUsername(), event.getSource()});
-        for (SecurityListener2 l : all()) {
-            l.loggedIn(event);
-        }
+        fireCountingSkipped(EventType.LOGGED_IN, event);
     }
 
     /**
      * @see #failedToLogIn(LoginFailureEvent)
      */
     public static void fireFailedToLogIn(@Nonnull LoginFailureEvent event) {
-        LOGGER.log(Level.FINE, "failed to log in: {0} from {1}", new Object[]{event.getUsername(), event.getSource()});
-        for (SecurityListener2 l : all()) {
-            l.failedToLogIn(event);
-        }
+        fireCountingSkipped(EventType.FAILED_TO_LOG_IN, event);
     }
 
     /**
      * @see #loggedOut(LogoutEvent)
      */
     public static void fireLoggedOut(@Nonnull LogoutEvent event) {
-        LOGGER.log(Level.FINE, "logged out: {0} from {1}", new Object[]{event.getUsername(), event.getSource()});
-        for (SecurityListener2 l : all()) {
-            l.loggedOut(event);
+        fireCountingSkipped(EventType.LOGGED_OUT, event);
+    }
+
+    /**
+     * Same as the {@code fire*} method of the type, telling in addition how many listeners did not receive the event
+     * because a previous one returned false. The listeners filtered out by their {@link Subscription} are not counted.
+     *
+     * @param event must implement the {@link EventType#getEventClass() event interface} of the type
+     * @return the number of listeners skipped
+     */
+    public static int fireCountingSkipped(@Nonnull EventType type, @Nonnull SecurityEvent event) {
+        if (!type.getEventClass().isInstance(event)) {
+            throw new IllegalArgumentException("A " + type + " event must implement " + type.getEventClass().getName());
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "{0}: {1} from {2}", new Object[]{type, event.getUsername(), event.getSource()});
+        }
+        if (type == EventType.AUTHENTICATED && AuthenticationCoalescer.ENABLED
+                && AuthenticationCoalescer.getOrCreate(SecurityListener2::fireCoalesced).coalesce((AuthenticationEvent) event) == null) {
+            // will be delivered later as part of a RepeatedEvent
+            return 0;
+        }
+        return fire(type, event);
+    }
+
+    private static int fire(@Nonnull EventType type, @Nonnull SecurityEvent event) {
+        DispatchTable table = DispatchTable.get();
+        ListenerHandle[] synchronous = table.getSynchronous(type);
+        ListenerHandle[] asynchronous = table.getAsynchronous(type);
+        ListenerHandle[] blocking = table.getIndependentBlocking(type);
+        ListenerHandle[] nonBlocking = table.getIndependentNonBlocking(type);
+        long[] route = table.route(event);
+        try {
+            return fireRouted(type, event, synchronous, asynchronous, blocking, nonBlocking, route);
+        } finally {
+            DispatchTable.release(route);
+        }
+    }
+
+    private static int fireRouted(@Nonnull EventType type, @Nonnull SecurityEvent event,
+                                  @Nonnull ListenerHandle[] synchronous, @Nonnull ListenerHandle[] asynchronous,
+                                  @Nonnull ListenerHandle[] blocking, @Nonnull ListenerHandle[] nonBlocking, @CheckForNull long[] route) {
+        ParallelDispatcher.Pending pending = null;
+        if (blocking.length > 0 || nonBlocking.length > 0) {
+            // runs while the firing thread calls the sequential listeners
+            pending = ParallelDispatcher.start(blocking, nonBlocking, route, type, event, SecurityListener2::deliver);
+        }
+        boolean vetoed = false;
+        int skipped = 0;
+        for (ListenerHandle handle : synchronous) {
+            if (!DispatchTable.accepts(route, handle)) {
+                continue;
+            }
+            if (vetoed && !handle.isEssential()) {
+                skipped++;
+            } else if (!deliver(handle, type, event)) {
+                vetoed = true;
+            }
+        }
+        if (pending != null && !pending.await()) {
+            vetoed = true;
+        }
+
+        if (vetoed) {
+            // the essential ones still record it, without waiting for the dispatch threads
+            return skipped + fireEssential(asynchronous, route, type, event);
+        }
+        if (asynchronous.length > 0
+                && !AsyncDispatcher.getOrStart(SecurityListener2::fireAsynchronous, SecurityListener2::fireEssential).publish(type, event)) {
+            // queue full or Jenkins shutting down, better late than never
+            fireAsynchronous(type, event);
         }
+        return 0;
     }
 
-    private static List<SecurityListener2> all() {
-        return ExtensionList.lookup(SecurityListener2.class);
+    /**
+     * Deliver the event to the {@link Essential} handles only
+     *
+     * @return the number of the other handles accepting it, that were skipped
+     */
+    private static int fireEssential(@Nonnull ListenerHandle[] handles, @CheckForNull long[] route,
+                                     @Nonnull EventType type, @Nonnull SecurityEvent event) {
+        int skipped = 0;
+        for (ListenerHandle handle : handles) {
+            if (!DispatchTable.accepts(route, handle)) {
+                continue;
+            }
+            if (handle.isEssential()) {
+                deliver(handle, type, event);
+            } else {
+                skipped++;
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Called with the events merged by the {@link AuthenticationCoalescer}
+     */
+    private static void fireCoalesced(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "coalesced {0}: {1} from {2}", new Object[]{type, event.getUsername(), event.getSource()});
+        }
+        fire(type, event);
+    }
+
+    /**
+     * Called by the dispatch threads, or by the firing thread when the event could not be queued
+     */
+    private static void fireAsynchronous(@Nonnull EventType type, @Nonnull SecurityEvent event) {
+        DispatchTable table = DispatchTable.get();
+        long[] route = table.route(event);
+        try {
+            boolean vetoed = false;
+            for (ListenerHandle handle : table.getAsynchronous(type)) {
+                if (!DispatchTable.accepts(route, handle) || (vetoed && !handle.isEssential())) {
+                    continue;
+                }
+                if (!deliver(handle, type, event)) {
+                    vetoed = true;
+                }
+            }
+        } finally {
+            DispatchTable.release(route);
+        }
+    }
+
+    /**
+     * As the {@link AsyncDispatcher} sink, the listeners get the time from {@link EventTime}
+     */
+    private static void fireAsynchronous(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        fireAsynchronous(type, event);
+    }
+
+    /**
+     * Called by the firing thread with the events dropped by the {@link AsyncDispatcher}
+     */
+    private static void fireEssential(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        DispatchTable table = DispatchTable.get();
+        long[] route = table.route(event);
+        try {
+            fireEssential(table.getAsynchronous(type), route, type, event);
+        } finally {
+            DispatchTable.release(route);
+        }
+    }
+
+    /**
+     * @return the value returned by the listener, true if it was skipped or failed
+     */
+    private static boolean deliver(@Nonnull ListenerHandle handle, @Nonnull EventType type, @Nonnull SecurityEvent event) {
+        CircuitBreaker breaker = handle.getCircuitBreaker();
+        if (!breaker.allowCall()) {
+            return true;
+        }
+
+        long start = System.nanoTime();
+        boolean result = true;
+        boolean failed = false;
+        try {
+            result = deliver(handle.getListener(), type, event);
+        } catch (RuntimeException e) {
+            failed = true;
+            Level level = breaker.getConsecutiveFailures() == 0 ? Level.WARNING : Level.FINE;
+            LOGGER.log(level, "Listener " + handle.getListener().getClass().getName() + " failed to process " + type, e);
+        }
+        long duration = System.nanoTime() - start;
+
+        if (DispatchMetrics.ENABLED) {
+            handle.getMetrics().record(type, duration, failed);
+        }
+        breaker.recordCall(duration, failed);
+        return result;
+    }
+
+    /**
+     * Deliver a past event to a single listener, outside of the dispatch, e.g. when replaying the journal.
+     * The event is filtered by the {@link Subscription} of the listener like a live one.
+     * The exceptions thrown by the listener are propagated.
+     *
+     * @return the value returned by the listener, true if it is not subscribed to the event
+     */
+    @Restricted(NoExternalUse.class)
+    public static boolean replay(@Nonnull SecurityListener2 l, @Nonnull EventType type, @Nonnull SecurityEvent event) {
+        DispatchTable table = DispatchTable.get();
+        long[] route = table.route(event);
+        try {
+            if (!table.accepts(route, l, type)) {
+                return true;
+            }
+        } finally {
+            DispatchTable.release(route);
+        }
+        return deliver(l, type, event);
+    }
+
+    private static boolean deliver(@Nonnull SecurityListener2 l, @Nonnull EventType type, @Nonnull SecurityEvent event) {
+        switch (type) {
+            case AUTHENTICATED:
+                return l.authenticated((AuthenticationEvent) event);
+            case FAILED_TO_AUTHENTICATE:
+                return l.failedToAuthenticate((AuthenticationFailureEvent) event);
+            case LOGGED_IN:
+                return l.loggedIn((LoginEvent) event);
+            case FAILED_TO_LOG_IN:
+                return l.failedToLogIn((LoginFailureEvent) event);
+            case LOGGED_OUT:
+                return l.loggedOut((LogoutEvent) event);
+            default:
+                throw new AssertionError("Unknown event type " + type);
+        }
     }
 }
@@ -0,0 +1,283 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.audit;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.LoginEvent;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.optional.EventWithException;
+import org.jenkinsci.plugins.events.optional.ExceptionSummary;
+import org.jenkinsci.plugins.events.optional.RepeatedEvent;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+/**
+ * Encode a security event as one line of JSON, in UTF-8, into a buffer reused from one line to the next.
+ *
+ * <pre>{"time":"2017-06-01T12:00:00.000Z","type":"LOGGED_IN","username":"alice","source":"...","authorities":["authenticated"]}</pre>
+ *
+ * The optional fields are {@code authorities}, {@code repeat}, {@code reason}, {@code exception}
+ * and {@code legacy}, only present when the event carries them.
+ * Not thread safe.
+ */
+final class AuditLineEncoder {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private byte[] buffer = new byte[512];
+    private int length;
+
+    /**
+     * @return the length of the line, including its final new line, available in {@link #getBuffer()}
+     */
+    int encode(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        length = 0;
+        put('{');
+        name("time", true);
+        put('"');
+        timestamp(timeMillis);
+        put('"');
+        stringField("type", type.name());
+        stringField("username", event.getUsername());
+        stringField("source", event.getSource());
+
+        if (event instanceof LoginEvent) {
+            name("authorities", false);
+            put('[');
+            boolean first = true;
+            for (String authority : ((LoginEvent) event).getAuthorities()) {
+                if (!first) {
+                    put(',');
+                }
+                string(authority);
+                first = false;
+            }
+            put(']');
+        }
+        if (event instanceof RepeatedEvent) {
+            int count = ((RepeatedEvent) event).getRepeatCount();
+            if (count > 1) {
+                name("repeat", false);
+                number(count);
+            }
+        }
+        if (event instanceof EventWithException) {
+            EventWithException withException = (EventWithException) event;
+            String reason = withException.getReason();
+            if (reason != null) {
+                stringField("reason", reason);
+            }
+            ExceptionSummary summary = withException.getExceptionSummary();
+            if (summary != null) {
+                name("exception", false);
+                put('{');
+                name("class", true);
+                string(summary.getClassName());
+                if (summary.getMessage() != null) {
+                    stringField("message", summary.getMessage());
+                }
+                put('}');
+            }
+        }
+        if (event.isFromLegacy()) {
+            name("legacy", false);
+            ascii("true");
+        }
+        put('}');
+        put('\n');
+        return length;
+    }
+
+    @Nonnull byte[] getBuffer() {
+        return buffer;
+    }
+
+    private void stringField(@Nonnull String name, @CheckForNull String value) {
+        name(name, false);
+        string(value);
+    }
+
+    private void name(@Nonnull String name, boolean first) {
+        if (!first) {
+            put(',');
+        }
+        put('"');
+        ascii(name);
+        put('"');
+        put(':');
+    }
+
+    private void string(@CheckForNull String value) {
+        if (value == null) {
+            ascii("null");
+            return;
+        }
+        put('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                ensure(2);
+                buffer[length++] = '\\';
+                buffer[length++] = (byte) c;
+            } else if (c < 0x20) {
+                escapeControl(c);
+            } else if (c < 0x80) {
+                ensure(1);
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // not encodable in UTF-8 on its own
+                ensure(1);
+                buffer[length++] = '?';
+            } else {
+                ensure(3);
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        put('"');
+    }
+
+    private void escapeControl(char c) {
+        ensure(6);
+        buffer[length++] = '\\';
+        switch (c) {
+            case '\n':
+                buffer[length++] = 'n';
+                break;
+            case '\r':
+                buffer[length++] = 'r';
+                break;
+            case '\t':
+                buffer[length++] = 't';
+                break;
+            case '\b':
+                buffer[length++] = 'b';
+                break;
+            case '\f':
+                buffer[length++] = 'f';
+                break;
+            default:
+                buffer[length++] = 'u';
+                buffer[length++] = '0';
+                buffer[length++] = '0';
+                buffer[length++] = HEX[c >> 4];
+                buffer[length++] = HEX[c & 0xf];
+        }
+    }
+
+    /**
+     * ISO 8601 in UTC with milliseconds, the date computed from the days since the epoch
+     * as in the {@code civil_from_days} algorithm of Howard Hinnant
+     */
+    private void timestamp(long timeMillis) {
+        long days = Math.floorDiv(timeMillis, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(timeMillis, MILLIS_PER_DAY);
+
+        long shifted = days + 719_468;
+        long era = Math.floorDiv(shifted, 146_097);
+        long dayOfEra = shifted - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        digits((int) year, 4);
+        put('-');
+        digits(month, 2);
+        put('-');
+        digits(day, 2);
+        put('T');
+        digits(millisOfDay / 3_600_000, 2);
+        put(':');
+        digits(millisOfDay / 60_000 % 60, 2);
+        put(':');
+        digits(millisOfDay / 1000 % 60, 2);
+        put('.');
+        digits(millisOfDay % 1000, 3);
+        put('Z');
+    }
+
+    /**
+     * @param value positive, with at most {@code width} digits
+     */
+    private void digits(int value, int width) {
+        ensure(width);
+        for (int i = width - 1; i >= 0; i--) {
+            buffer[length + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += width;
+    }
+
+    private void number(long value) {
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int width = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            width++;
+        }
+        ensure(width);
+        for (int i = width - 1; i >= 0; i--) {
+            buffer[length + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += width;
+    }
+
+    private void ascii(@Nonnull String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void put(char c) {
+        ensure(1);
+        buffer[length++] = (byte) c;
+    }
+
+    private void ensure(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.audit;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Audit log of the security events, one JSON line per event written by the {@link AuditLineEncoder}.
+ *
+ * The lines are encoded into a pool of direct buffers. A full buffer, or a partial one every flush interval,
+ * is handed to a single writer thread that owns the {@link FileChannel}, so the appending thread never waits
+ * for the disk unless all the buffers are already waiting for it.
+ *
+ * The active file is {@code audit.log}. It is rolled to {@code audit-<time>.log} when it would exceed
+ * the maximum size or is older than the rotation interval, the rolled files are compressed with gzip
+ * in the background and the oldest ones deleted beyond the maximum count.
+ *
+ * An I/O error does not propagate to the caller, the lines are counted as dropped
+ * and the file is opened again for the next ones.
+ */
+@Restricted(NoExternalUse.class)
+public final class AuditLog {
+    private static final Logger LOGGER = Logger.getLogger(AuditLog.class.getName());
+
+    static final String ACTIVE_NAME = "audit.log";
+    private static final String ROLLED_PREFIX = "audit-";
+    private static final String ROLLED_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".log.gz";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final String PREFIX = AuditLog.class.getName();
+    private static final int BUFFER_SIZE = Math.max(4 * 1024, SystemProperties.getInteger(PREFIX + ".bufferSize", 256 * 1024));
+    private static final int BUFFER_COUNT = Math.max(2, SystemProperties.getInteger(PREFIX + ".buffers", 4));
+    private static final long FLUSH_INTERVAL_MILLIS = Math.max(10, SystemProperties.getLong(PREFIX + ".flushInterval", 1_000L));
+    private static final long MAX_FILE_SIZE = Math.max(BUFFER_SIZE, SystemProperties.getLong(PREFIX + ".maxFileSize", 64L * 1024 * 1024));
+    /**
+     * 0 to roll only on size
+     */
+    private static final long ROTATION_MILLIS = TimeUnit.HOURS.toMillis(SystemProperties.getInteger(PREFIX + ".rotationHours", 24));
+    private static final int MAX_FILES = Math.max(1, SystemProperties.getInteger(PREFIX + ".maxFiles", 30));
+    private static final boolean COMPRESS = SystemProperties.getBoolean(PREFIX + ".compress", true);
+    /**
+     * How long an append waits for the writer to give back a buffer before dropping the line
+     */
+    private static final long BUFFER_WAIT_MILLIS = SystemProperties.getLong(PREFIX + ".bufferWait", 1_000L);
+
+    /**
+     * After an append did not get a buffer in time, the next ones do not wait during that delay
+     */
+    private static final long STARVED_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * While the file cannot be opened, the buffers are dropped without trying again before that delay
+     */
+    private static final long RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final File directory;
+    private final File activeFile;
+    private final ThreadPoolExecutor writer;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+
+    // guarded by lock, used by the appending threads
+    private final Object lock = new Object();
+    private final AuditLineEncoder encoder = new AuditLineEncoder();
+    private ByteBuffer current;
+    private int linesInCurrent;
+    private boolean starved;
+    private long starvedUntilNanos;
+
+    // only used by the writer thread
+    private boolean recovered;
+    private FileChannel channel;
+    private long fileSize;
+    private long fileStartMillis;
+    private boolean failing;
+    private long retryAtNanos;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+
+    private final ScheduledFuture<?> flushTask;
+    /** Guarded by the lock, the lines appended after {@link #close()} are not flushed periodically anymore */
+    private boolean closed;
+
+    public AuditLog(@Nonnull File directory) {
+        this.directory = directory;
+        this.activeFile = new File(directory, ACTIVE_NAME);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        // a single thread keeps the buffers in order, it stops when there is nothing to write
+        writer = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "AuditLog writer"));
+        flushTask = Timer.get().scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void append(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        synchronized (lock) {
+            int length = encoder.encode(type, event, timeMillis);
+            if (length > BUFFER_SIZE) {
+                LOGGER.log(Level.FINE, "Security event of {0} bytes is too large for the audit log", length);
+                dropped.incrementAndGet();
+                return;
+            }
+            if (current != null && current.remaining() < length) {
+                submitCurrent();
+            }
+            if (current == null) {
+                current = takeFreeBuffer();
+                if (current == null) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+            current.put(encoder.getBuffer(), 0, length);
+            linesInCurrent++;
+            appended.incrementAndGet();
+            if (closed) {
+                submitCurrent();
+            }
+        }
+    }
+
+    /**
+     * Wait for the writer to give back a buffer, unless it already failed to do it in time recently
+     */
+    private @CheckForNull ByteBuffer takeFreeBuffer() {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            starved = false;
+            return buffer;
+        }
+        if (starved && System.nanoTime() - starvedUntilNanos < 0) {
+            return null;
+        }
+        try {
+            buffer = free.poll(BUFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (buffer == null) {
+            if (!starved) {
+                LOGGER.log(Level.WARNING, "The audit log is not written fast enough to {0}, the new events are dropped", activeFile);
+            }
+            starved = true;
+            starvedUntilNanos = System.nanoTime() + STARVED_DELAY_NANOS;
+        } else {
+            starved = false;
+        }
+        return buffer;
+    }
+
+    private void submitCurrent() {
+        ByteBuffer buffer = current;
+        int lines = linesInCurrent;
+        current = null;
+        linesInCurrent = 0;
+        if (buffer != null) {
+            writer.execute(() -> write(buffer, lines));
+        }
+    }
+
+    /**
+     * Hand the lines appended so far to the writer, and roll the file if it is too old.
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (current != null && linesInCurrent > 0) {
+                submitCurrent();
+            } else if (ROTATION_MILLIS > 0) {
+                writer.execute(this::rollIfTooOld);
+            }
+        }
+    }
+
+    /**
+     * Stop the periodic flush, write the pending lines and close the file.
+     * A later {@link #append} opens it again and its line is written right away.
+     */
+    public void close() {
+        flushTask.cancel(false);
+        Future<?> channelClosed;
+        synchronized (lock) {
+            closed = true;
+            submitCurrent();
+            channelClosed = writer.submit(this::closeChannel);
+        }
+        try {
+            channelClosed.get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.log(Level.WARNING, "Failed to close the audit log " + activeFile, e);
+        }
+    }
+
+    // writer thread
+
+    private void write(@Nonnull ByteBuffer buffer, int lines) {
+        buffer.flip();
+        try {
+            FileChannel target = openChannel();
+            if (target == null) {
+                dropped.addAndGet(lines);
+                return;
+            }
+            if (fileSize > 0 && (fileSize + buffer.remaining() > MAX_FILE_SIZE || isTooOld())) {
+                roll();
+                target = openChannel();
+                if (target == null) {
+                    dropped.addAndGet(lines);
+                    return;
+                }
+            }
+            int bytes = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            fileSize += bytes;
+            written.addAndGet(lines);
+            writtenBytes.addAndGet(bytes);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to write " + lines + " security events to the audit log " + activeFile, e);
+            dropped.addAndGet(lines);
+            closeChannel();
+        } finally {
+            buffer.clear();
+            free.add(buffer);
+        }
+    }
+
+    private @CheckForNull FileChannel openChannel() {
+        if (channel != null) {
+            return channel;
+        }
+        if (failing && System.nanoTime() - retryAtNanos < 0) {
+            return null;
+        }
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed to create " + directory);
+            }
+            if (!recovered) {
+                recover();
+                recovered = true;
+            }
+            channel = FileChannel.open(activeFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+            if (fileStartMillis == 0) {
+                fileStartMillis = System.currentTimeMillis();
+            }
+            if (failing) {
+                LOGGER.log(Level.INFO, "Security event audit log writing again to {0}", activeFile);
+                failing = false;
+            }
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            if (!failing) {
+                LOGGER.log(Level.WARNING, "Failed to open the security event audit log " + activeFile, e);
+                failing = true;
+            }
+            retryAtNanos = System.nanoTime() + RETRY_DELAY_NANOS;
+            closeChannel();
+            return null;
+        }
+    }
+
+    /**
+     * Continue the file of the previous run, aged from its creation, and compress the rolled files it left uncompressed
+     */
+    private void recover() throws IOException {
+        if (activeFile.length() > 0) {
+            fileStartMillis = Files.readAttributes(activeFile.toPath(), BasicFileAttributes.class).creationTime().toMillis();
+        }
+        if (COMPRESS) {
+            for (File rolled : listRolled()) {
+                if (rolled.getName().endsWith(ROLLED_SUFFIX)) {
+                    Timer.get().execute(() -> compress(rolled));
+                }
+            }
+        }
+    }
+
+    private boolean isTooOld() {
+        return ROTATION_MILLIS > 0 && System.currentTimeMillis() - fileStartMillis >= ROTATION_MILLIS;
+    }
+
+    private void rollIfTooOld() {
+        if (channel != null && fileSize > 0 && isTooOld()) {
+            roll();
+        }
+    }
+
+    private void roll() {
+        closeChannel();
+        File rolled = rolledFile();
+        if (!activeFile.renameTo(rolled)) {
+            // the lines keep going to the same file rather than being lost
+            LOGGER.log(Level.WARNING, "Failed to roll the security event audit log {0} to {1}", new Object[]{activeFile, rolled});
+            fileStartMillis = System.currentTimeMillis();
+            return;
+        }
+        fileStartMillis = 0;
+        rotations.incrementAndGet();
+        if (COMPRESS) {
+            Timer.get().execute(() -> compress(rolled));
+        }
+        applyRetention();
+    }
+
+    private @Nonnull File rolledFile() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String name = ROLLED_PREFIX + format.format(new Date());
+        File rolled = new File(directory, name + ROLLED_SUFFIX);
+        for (int i = 1; rolled.exists() || new File(directory, name + COMPRESSED_SUFFIX).exists(); i++) {
+            name = ROLLED_PREFIX + format.format(new Date()) + "-" + i;
+            rolled = new File(directory, name + ROLLED_SUFFIX);
+        }
+        return rolled;
+    }
+
+    private void closeChannel() {
+        FileChannel c = channel;
+        channel = null;
+        fileSize = 0;
+        if (c != null) {
+            try {
+                c.force(false);
+                c.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close the security event audit log " + activeFile, e);
+            }
+        }
+    }
+
+    /**
+     * Replace the rolled file by its gzip version, written next to it first so a partial one is never visible
+     */
+    private void compress(@Nonnull File rolled) {
+        String name = rolled.getName();
+        File compressed = new File(directory, name.substring(0, name.length() - ROLLED_SUFFIX.length()) + COMPRESSED_SUFFIX);
+        File temporary = new File(directory, compressed.getName() + TEMPORARY_SUFFIX);
+        try {
+            try (InputStream in = new FileInputStream(rolled);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(temporary), 64 * 1024)) {
+                byte[] chunk = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(chunk)) >= 0) {
+                    out.write(chunk, 0, read);
+                }
+            }
+            if (!temporary.renameTo(compressed)) {
+                throw new IOException("Failed to rename " + temporary + " to " + compressed);
+            }
+            if (!rolled.delete()) {
+                LOGGER.log(Level.WARNING, "Failed to delete the compressed security event audit log {0}", rolled);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to compress the security event audit log " + rolled, e);
+            if (temporary.exists() && !temporary.delete()) {
+                LOGGER.log(Level.FINE, "Failed to delete {0}", temporary);
+            }
+        }
+    }
+
+    private void applyRetention() {
+        File[] rolled = listRolled();
+        // a file being compressed can appear under both names
+        List<String> baseNames = Arrays.stream(rolled).map(AuditLog::baseNameOf).distinct().collect(Collectors.toList());
+        int excess = baseNames.size() - MAX_FILES;
+        if (excess <= 0) {
+            return;
+        }
+        Set<String> expired = new HashSet<>(baseNames.subList(0, excess));
+        for (File file : rolled) {
+            if (!expired.contains(baseNameOf(file))) {
+                continue;
+            }
+            if (file.delete()) {
+                LOGGER.log(Level.FINE, "Deleted the security event audit log {0}", file);
+            } else {
+                LOGGER.log(Level.WARNING, "Failed to delete the security event audit log {0}", file);
+            }
+        }
+    }
+
+    /**
+     * @return the rolled files, compressed or not, ordered by the time in their name
+     */
+    private @Nonnull File[] listRolled() {
+        File[] files = directory.listFiles(f -> f.getName().startsWith(ROLLED_PREFIX)
+                && (f.getName().endsWith(ROLLED_SUFFIX) || f.getName().endsWith(COMPRESSED_SUFFIX)));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Comparator.comparing(AuditLog::baseNameOf));
+        return files;
+    }
+
+    private static @Nonnull String baseNameOf(@Nonnull File file) {
+        String name = file.getName();
+        return name.endsWith(COMPRESSED_SUFFIX)
+                ? name.substring(0, name.length() - COMPRESSED_SUFFIX.length())
+                : name.substring(0, name.length() - ROLLED_SUFFIX.length());
+    }
+
+    public @Nonnull File getDirectory() {
+        return directory;
+    }
+
+    public long getAppendedCount() {
+        return appended.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public @Nonnull JSONObject toJSON() {
+        return new JSONObject()
+                .element("file", activeFile.getAbsolutePath())
+                .element("bufferSize", BUFFER_SIZE)
+                .element("buffers", BUFFER_COUNT)
+                .element("freeBuffers", free.size())
+                .element("maxFileSize", MAX_FILE_SIZE)
+                .element("rotationHours", TimeUnit.MILLISECONDS.toHours(ROTATION_MILLIS))
+                .element("maxFiles", MAX_FILES)
+                .element("compress", COMPRESS)
+                .element("appended", appended.get())
+                .element("written", written.get())
+                .element("writtenBytes", writtenBytes.get())
+                .element("dropped", dropped.get())
+                .element("rotations", rotations.get())
+                .element("rolledFiles", listRolled().length);
+    }
+}
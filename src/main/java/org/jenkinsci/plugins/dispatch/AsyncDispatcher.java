@@ -0,0 +1,578 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deliver the events to the {@link Asynchronous} listeners from dedicated consumer threads.
+ * The thread firing the event only publishes it into a preallocated {@link EventRing}.
+ *
+ * The events are spread over lanes by username, each lane having its own ring and a single consumer,
+ * so that the events of a user are delivered in the order they were published while distinct users are
+ * delivered in parallel. What happens to an event that does not fit in its lane depends on the {@link Backpressure}
+ * policy. An event delivered by the firing thread can be delivered out of order. The oldest events of a full lane
+ * are dropped by its consumer, that keeps delivering the failures among them in order.
+ * A dropped event is still delivered to the {@link Essential} listeners, by the thread dropping it.
+ * The time at which each event was published is kept with it, see {@link EventTime}.
+ *
+ * With the {@link Backpressure#SPILL} policy, the overflow is written in {@code $JENKINS_HOME/security-events/spill}
+ * unless the {@code spillDirectory} property says otherwise. The files left there by a crash are delivered
+ * from a dedicated thread when the dispatcher starts, they are older than the events published meanwhile.
+ *
+ * Started with the first asynchronous listener and drained when Jenkins is shutting down.
+ * Once drained it stays closed, the events fired later are delivered by the firing thread.
+ */
+@Restricted(NoExternalUse.class)
+public final class AsyncDispatcher {
+    private static final Logger LOGGER = Logger.getLogger(AsyncDispatcher.class.getName());
+
+    private static final int CAPACITY = SystemProperties.getInteger(AsyncDispatcher.class.getName() + ".capacity", 8192);
+    private static final int LANES = SystemProperties.getInteger(AsyncDispatcher.class.getName() + ".lanes",
+            SystemProperties.getInteger(AsyncDispatcher.class.getName() + ".consumers",
+                    Math.min(4, Runtime.getRuntime().availableProcessors())));
+    private static final long DRAIN_TIMEOUT_MILLIS = SystemProperties.getLong(AsyncDispatcher.class.getName() + ".drainTimeout", 10_000L);
+    private static final Backpressure BACKPRESSURE = readBackpressure();
+    private static final long BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            SystemProperties.getLong(AsyncDispatcher.class.getName() + ".blockMillis", 100L));
+    private static final int SAMPLE_RATE = SystemProperties.getInteger(AsyncDispatcher.class.getName() + ".sampleRate", 1000);
+    private static final int SPILL_MAX_EVENTS = SystemProperties.getInteger(AsyncDispatcher.class.getName() + ".spillMaxEvents", 1_000_000);
+    private static final String SPILL_DIRECTORY = SystemProperties.getString(AsyncDispatcher.class.getName() + ".spillDirectory");
+
+    /** Number of empty polls before a consumer parks */
+    private static final int SPIN_BEFORE_PARK = 100;
+    /** Between two attempts to queue an event with the {@link Backpressure#BLOCK} policy */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    /** Safety net in case of a missed wake up */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static volatile AsyncDispatcher instance;
+
+    private final EventSink sink;
+    private final EventSink essentialSink;
+    private final Lane[] lanes;
+    private final EventSink evict = this::evict;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder deliveredByCaller = new LongAdder();
+    private final AtomicLong sampleSecond = new AtomicLong();
+    private final AtomicInteger sampleCount = new AtomicInteger();
+
+    private volatile boolean closed;
+    private volatile boolean stopping;
+
+    /**
+     * A dispatcher without lanes, already closed
+     */
+    private AsyncDispatcher() {
+        this.sink = (type, event, timeMillis) -> {
+        };
+        this.essentialSink = sink;
+        this.lanes = new Lane[0];
+        this.closed = true;
+        this.stopping = true;
+    }
+
+    private AsyncDispatcher(@Nonnull EventSink sink, @Nonnull EventSink essentialSink) {
+        this.sink = sink;
+        this.essentialSink = essentialSink;
+        this.lanes = new Lane[Math.max(1, LANES)];
+
+        // the total capacity is shared by the lanes
+        int laneCapacity = Math.max(64, CAPACITY / lanes.length);
+        ThreadFactory threadFactory = new NamingThreadFactory(new DaemonThreadFactory(), "SecurityListener2 dispatch");
+        File spillDirectory = getSpillDirectory();
+        // before any lane spills in the same directory
+        List<File> leftovers = spillDirectory == null ? null : SpillBuffer.listLeftovers(spillDirectory);
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = new Lane(laneCapacity, BACKPRESSURE == Backpressure.SPILL
+                    ? new SpillBuffer(spillDirectory, SPILL_MAX_EVENTS) : null);
+            lane.thread = threadFactory.newThread(lane);
+            lanes[i] = lane;
+        }
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+        if (leftovers != null && !leftovers.isEmpty()) {
+            threadFactory.newThread(() -> {
+                long recovered = SpillBuffer.recover(leftovers, this::deliver);
+                LOGGER.log(Level.INFO, "{0} security events recovered from {1} spill files of a previous run",
+                        new Object[]{recovered, leftovers.size()});
+            }).start();
+        }
+    }
+
+    /**
+     * @return null for the default temporary directory, when Jenkins is not available
+     */
+    private static @CheckForNull File getSpillDirectory() {
+        if (SPILL_DIRECTORY != null) {
+            return new File(SPILL_DIRECTORY);
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins == null ? null : new File(new File(jenkins.getRootDir(), "security-events"), "spill");
+    }
+
+    private static @Nonnull Backpressure readBackpressure() {
+        String value = SystemProperties.getString(AsyncDispatcher.class.getName() + ".backpressure", Backpressure.SYNCHRONOUS.name());
+        try {
+            return Backpressure.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Unknown backpressure policy {0}, using {1}", new Object[]{value, Backpressure.SYNCHRONOUS});
+            return Backpressure.SYNCHRONOUS;
+        }
+    }
+
+    public static boolean isAsynchronous(@Nonnull SecurityListener2 listener) {
+        return listener.getClass().isAnnotationPresent(Asynchronous.class);
+    }
+
+    /**
+     * @param sink called by the consumer threads for each event, must not throw
+     * @param essentialSink called by the firing thread for each dropped event, to deliver it to the {@link Essential} listeners only
+     */
+    public static @Nonnull AsyncDispatcher getOrStart(@Nonnull EventSink sink, @Nonnull EventSink essentialSink) {
+        AsyncDispatcher dispatcher = instance;
+        if (dispatcher != null) {
+            return dispatcher;
+        }
+        synchronized (AsyncDispatcher.class) {
+            if (instance == null) {
+                instance = new AsyncDispatcher(sink, essentialSink);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @return null if no asynchronous listener received an event yet, the closed dispatcher after the shutdown
+     */
+    public static @CheckForNull AsyncDispatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return false if the event was neither queued nor dropped, because the lane of its user is full
+     * or the dispatcher is stopped. The caller is then responsible to deliver it.
+     */
+    public boolean publish(@Nonnull EventType type, @Nonnull SecurityEvent event) {
+        if (closed) {
+            return false;
+        }
+        Lane lane = lanes[laneOf(event.getUsername(), lanes.length)];
+        // announced before checking closed again, so that the drain waits for this event
+        lane.publishing.incrementAndGet();
+        boolean published;
+        try {
+            published = !closed && publish(lane, type, event);
+        } finally {
+            lane.publishing.decrementAndGet();
+        }
+        if (published && stopping) {
+            // the drain stopped waiting for this publisher, its event could be left in the ring
+            while (lane.ring.poll(this::deliver)) {
+                deliveredByCaller.increment();
+            }
+        }
+        return published;
+    }
+
+    private boolean publish(@Nonnull Lane lane, @Nonnull EventType type, @Nonnull SecurityEvent event) {
+        long timeMillis = System.currentTimeMillis();
+        if (BACKPRESSURE == Backpressure.SAMPLE && !isFailure(type)
+                && lane.ring.size() >= lane.ring.capacity() / 2 && !sample()) {
+            discard(type, event, timeMillis);
+            return true;
+        }
+        if ((lane.spill != null && lane.spill.isActive()) || !lane.ring.offer(type, event, timeMillis)) {
+            lane.rejected.increment();
+            return overloaded(lane, type, event, timeMillis);
+        }
+        queued(lane);
+        return true;
+    }
+
+    private void queued(@Nonnull Lane lane) {
+        int depth = lane.ring.size();
+        if (depth > lane.maxDepth) {
+            lane.maxDepth = depth;
+        }
+        if (lane.parked) {
+            LockSupport.unpark(lane.thread);
+        }
+    }
+
+    private boolean overloaded(@Nonnull Lane lane, @Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        switch (BACKPRESSURE) {
+            case BLOCK:
+                long deadline = System.nanoTime() + BLOCK_NANOS;
+                do {
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (lane.ring.offer(type, event, timeMillis)) {
+                        queued(lane);
+                        return true;
+                    }
+                } while (deadline - System.nanoTime() > 0 && !closed);
+                break;
+            case DROP_OLDEST:
+                // the consumer drops the head, evicting it from here would race with the delivery of the same user
+                lane.evictions.incrementAndGet();
+                LockSupport.unpark(lane.thread);
+                for (int attempt = 0; attempt < 3; attempt++) {
+                    if (lane.ring.offer(type, event, timeMillis)) {
+                        // withdraw the request unless the consumer already served it
+                        takeEviction(lane);
+                        queued(lane);
+                        return true;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                if (!takeEviction(lane) && lane.ring.offer(type, event, timeMillis)) {
+                    // the head was dropped meanwhile
+                    queued(lane);
+                    return true;
+                }
+                break;
+            case SPILL:
+                if (lane.spill.append(type, event, timeMillis)) {
+                    // the consumer could be parked on an empty ring
+                    LockSupport.unpark(lane.thread);
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        return drop(type, event, timeMillis);
+    }
+
+    /**
+     * @return false if the caller must deliver the event, true if it was dropped
+     */
+    private boolean drop(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        if (BACKPRESSURE == Backpressure.SYNCHRONOUS || isFailure(type)) {
+            deliveredByCaller.increment();
+            return false;
+        }
+        discard(type, event, timeMillis);
+        return true;
+    }
+
+    /**
+     * Drop the event for all but the {@link Essential} listeners
+     */
+    private void discard(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        dropped.increment();
+        deliver(essentialSink, type, event, timeMillis);
+    }
+
+    /**
+     * @return false if no eviction was requested, e.g. they were all done by the consumer
+     */
+    private static boolean takeEviction(@Nonnull Lane lane) {
+        int evictions;
+        do {
+            evictions = lane.evictions.get();
+            if (evictions <= 0) {
+                return false;
+            }
+        } while (!lane.evictions.compareAndSet(evictions, evictions - 1));
+        return true;
+    }
+
+    /**
+     * Called with the oldest event of a full lane, by its consumer, see {@link Backpressure#DROP_OLDEST}
+     */
+    private void evict(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        if (!drop(type, event, timeMillis)) {
+            deliver(type, event, timeMillis);
+        }
+    }
+
+    private static boolean isFailure(@Nonnull EventType type) {
+        return type == EventType.FAILED_TO_AUTHENTICATE || type == EventType.FAILED_TO_LOG_IN;
+    }
+
+    /**
+     * @return true if the event fits in the rate of the current second, shared by the lanes
+     */
+    private boolean sample() {
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long current = sampleSecond.get();
+        if (current != second && sampleSecond.compareAndSet(current, second)) {
+            sampleCount.set(0);
+        }
+        return sampleCount.incrementAndGet() <= SAMPLE_RATE;
+    }
+
+    private static int laneOf(@Nonnull String username, int laneCount) {
+        int h = username.hashCode();
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % laneCount;
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (Lane lane : lanes) {
+            size += lane.ring.size();
+        }
+        return size;
+    }
+
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for (Lane lane : lanes) {
+            capacity += lane.ring.capacity();
+        }
+        return capacity;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return the number of events currently queued in each lane
+     */
+    public @Nonnull int[] getLaneDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].ring.size();
+        }
+        return depths;
+    }
+
+    /**
+     * @return the ratio between the busiest lane and the average one, from the events they received since the start,
+     * 1 when the users are evenly spread
+     */
+    public double getSkew() {
+        long max = 0;
+        long total = 0;
+        for (Lane lane : lanes) {
+            long received = lane.delivered + lane.ring.size();
+            max = Math.max(max, received);
+            total += received;
+        }
+        return total == 0 ? 1 : (double) max * lanes.length / total;
+    }
+
+    /**
+     * @return the number of events that were not delivered because of the backpressure, never failure events,
+     * the {@link Essential} listeners received them anyway
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of events that could not be queued and were delivered by the firing thread
+     */
+    public long getDeliveredByCallerCount() {
+        return deliveredByCaller.sum();
+    }
+
+    public @Nonnull JSONObject toJSON() {
+        JSONArray laneStates = new JSONArray();
+        for (Lane lane : lanes) {
+            JSONObject laneState = new JSONObject()
+                    .element("depth", lane.ring.size())
+                    .element("maxDepth", lane.maxDepth)
+                    .element("capacity", lane.ring.capacity())
+                    .element("delivered", lane.delivered)
+                    .element("rejected", lane.rejected.sum());
+            if (lane.spill != null) {
+                laneState.element("spilled", lane.spill.getSpilledCount())
+                        .element("reinjected", lane.spill.getReinjectedCount());
+            }
+            laneStates.element(laneState);
+        }
+        return new JSONObject()
+                .element("backpressure", BACKPRESSURE.name())
+                .element("dropped", getDroppedCount())
+                .element("deliveredByCaller", getDeliveredByCallerCount())
+                .element("queueSize", getQueueSize())
+                .element("queueCapacity", getQueueCapacity())
+                .element("skew", getSkew())
+                .element("lanes", laneStates);
+    }
+
+    /**
+     * Stop accepting new events, let the consumers deliver the ones already queued, then stop them.
+     * The dispatcher is kept closed so the next events, e.g. flushed by the batch listeners,
+     * are delivered synchronously instead of being queued to lanes nobody would drain.
+     * Called by {@link org.jenkinsci.plugins.impl.ShutdownSequence}, before the listeners recording the events are closed.
+     */
+    public static void shutdown() throws InterruptedException {
+        AsyncDispatcher dispatcher;
+        synchronized (AsyncDispatcher.class) {
+            dispatcher = instance;
+            if (dispatcher == null) {
+                // started closed, a late publisher gets the events back
+                instance = dispatcher = new AsyncDispatcher();
+            }
+        }
+        dispatcher.drainAndStop();
+    }
+
+    /**
+     * Forget the dispatcher closed by a previous shutdown, when Jenkins is started again in the same JVM
+     */
+    @Initializer(after = InitMilestone.STARTED)
+    public static void reset() {
+        synchronized (AsyncDispatcher.class) {
+            if (instance != null && instance.closed) {
+                instance = null;
+            }
+        }
+    }
+
+    private void drainAndStop() throws InterruptedException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+        // the publishers that passed the closed check queue their event before the consumers stop
+        for (Lane lane : lanes) {
+            while (lane.publishing.get() > 0 && deadline - System.nanoTime() > 0) {
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+        }
+        stopping = true;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+        for (Lane lane : lanes) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            lane.thread.join(Math.max(1, remainingMillis));
+        }
+
+        // a publisher still running after the deadline could have queued meanwhile
+        int remaining = 0;
+        for (Lane lane : lanes) {
+            if (lane.thread.isAlive()) {
+                // still delivering, polling its ring here would break the order of its users
+                LOGGER.log(Level.WARNING, "Security event dispatch lane {0} still busy after {1} ms, {2} events left to it",
+                        new Object[]{lane.thread.getName(), DRAIN_TIMEOUT_MILLIS, lane.ring.size()});
+                continue;
+            }
+            while (lane.ring.poll(this::deliver) || (lane.spill != null && lane.spill.drain(this::deliver))) {
+                remaining++;
+            }
+        }
+        if (remaining > 0) {
+            LOGGER.log(Level.INFO, "{0} security events delivered during shutdown by the terminating thread", remaining);
+        }
+    }
+
+    private void deliver(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        deliver(sink, type, event, timeMillis);
+    }
+
+    private static void deliver(@Nonnull EventSink sink, @Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        EventTime time = EventTime.get();
+        long previous = time.enter(timeMillis);
+        try {
+            sink.accept(type, event, timeMillis);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Problem during asynchronous dispatch of " + type + " for " + event.getUsername(), e);
+        } finally {
+            time.exit(previous);
+        }
+    }
+
+    /**
+     * A ring with its single consumer thread
+     */
+    private final class Lane implements Runnable {
+        private final EventRing ring;
+        private final SpillBuffer spill;
+        private final LongAdder rejected = new LongAdder();
+        /** Number of publishers between their check of closed and the end of their publish */
+        private final AtomicInteger publishing = new AtomicInteger();
+        /** Number of events to drop from the head, requested by the producers finding the ring full */
+        private final AtomicInteger evictions = new AtomicInteger();
+        private Thread thread;
+        private volatile boolean parked;
+        // only written by the consumer
+        private volatile long delivered;
+        // written by the producers without synchronization, a lost update only lowers the indication
+        private volatile int maxDepth;
+
+        Lane(int capacity, @CheckForNull SpillBuffer spill) {
+            this.ring = new EventRing(capacity);
+            this.spill = spill;
+        }
+
+        @Override
+        public void run() {
+            EventSink deliver = AsyncDispatcher.this::deliver;
+            int idle = 0;
+            while (true) {
+                if (ring.poll(evictions.get() > 0 && takeEviction(this) ? evict : deliver)) {
+                    delivered++;
+                    idle = 0;
+                } else if (spill != null && spill.isActive() && spill.drain(deliver)) {
+                    idle = 0;
+                } else if (stopping) {
+                    return;
+                } else if (++idle < SPIN_BEFORE_PARK) {
+                    Thread.yield();
+                } else {
+                    parked = true;
+                    if (ring.size() == 0 && !stopping) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    parked = false;
+                }
+            }
+        }
+    }
+}
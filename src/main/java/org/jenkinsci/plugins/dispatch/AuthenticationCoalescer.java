@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.events.AuthenticationEvent;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.impl.CoalescedAuthenticationEventImpl;
+import org.jenkinsci.plugins.events.impl.CoalescedAuthenticationWithUserDetailsEventImpl;
+import org.jenkinsci.plugins.events.optional.RepeatedEvent;
+import org.jenkinsci.plugins.events.optional.UserDetailsProvider;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Merge the identical authentication events (same username and source) received during a window,
+ * typically an API token used by a CI fleet for each of its requests.
+ *
+ * The first event of a window is delivered as is. The next ones are absorbed,
+ * and delivered at the end of the window as a single {@link RepeatedEvent} counting them.
+ * The failure events are never coalesced.
+ *
+ * Disabled by default, the number of windows tracked at the same time is bounded,
+ * when the limit is reached the events of new username / source pairs are delivered directly.
+ * Once Jenkins is shutting down, the pending windows are delivered and the events are not coalesced anymore.
+ */
+@Restricted(NoExternalUse.class)
+public final class AuthenticationCoalescer {
+    private static final String PREFIX = AuthenticationCoalescer.class.getName();
+    public static final boolean ENABLED = SystemProperties.getBoolean(PREFIX + ".enabled", false);
+    private static final long WINDOW_MILLIS = SystemProperties.getLong(PREFIX + ".window", 10_000L);
+    private static final int MAX_WINDOWS = SystemProperties.getInteger(PREFIX + ".maxWindows", 10_000);
+
+    private static volatile AuthenticationCoalescer instance;
+
+    private final long windowNanos = TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS);
+    private final ConcurrentMap<Key, Window> windows = new ConcurrentHashMap<>();
+    private final EventSink sink;
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+    private final LongAdder absorbedCount = new LongAdder();
+    private volatile ScheduledFuture<?> sweepTask;
+    private volatile boolean closed;
+
+    private AuthenticationCoalescer(@Nonnull EventSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param sink receives the merged events, must not coalesce them again
+     */
+    public static @Nonnull AuthenticationCoalescer getOrCreate(@Nonnull EventSink sink) {
+        AuthenticationCoalescer coalescer = instance;
+        if (coalescer != null) {
+            return coalescer;
+        }
+        synchronized (AuthenticationCoalescer.class) {
+            if (instance == null) {
+                instance = new AuthenticationCoalescer(sink);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @return the event to deliver now, null if it was absorbed
+     */
+    public @CheckForNull AuthenticationEvent coalesce(@Nonnull AuthenticationEvent event) {
+        Key key = new Key(event.getUsername(), event.getSource(), event.isFromLegacy());
+        long now = System.nanoTime();
+        while (true) {
+            if (closed) {
+                return event;
+            }
+            Window window = windows.get(key);
+            if (window == null) {
+                if (windows.size() >= MAX_WINDOWS) {
+                    return event;
+                }
+                if (windows.putIfAbsent(key, new Window(now)) == null) {
+                    scheduleSweep();
+                    return event;
+                }
+            } else if (now - window.start < windowNanos) {
+                if (window.absorb(event)) {
+                    absorbedCount.increment();
+                    return null;
+                }
+                // closed concurrently, a new window will be created
+            } else if (windows.replace(key, window, new Window(now))) {
+                flush(window);
+                return event;
+            }
+        }
+    }
+
+    /**
+     * @return the number of events absorbed since the startup
+     */
+    public long getAbsorbedCount() {
+        return absorbedCount.sum();
+    }
+
+    public int getWindowCount() {
+        return windows.size();
+    }
+
+    private void scheduleSweep() {
+        if (sweepScheduled.compareAndSet(false, true)) {
+            sweepTask = Timer.get().scheduleAtFixedRate(this::sweep, WINDOW_MILLIS, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+            if (closed) {
+                // closed while scheduling, before the task could be seen
+                sweepTask.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Deliver the absorbed events of the expired windows and forget them
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Map.Entry<Key, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            if (now - window.start >= windowNanos && windows.remove(entry.getKey(), window)) {
+                flush(window);
+            }
+        }
+    }
+
+    private void flushAll() {
+        for (Map.Entry<Key, Window> entry : windows.entrySet()) {
+            if (windows.remove(entry.getKey(), entry.getValue())) {
+                flush(entry.getValue());
+            }
+        }
+    }
+
+    private void flush(@Nonnull Window window) {
+        int absorbed = window.close();
+        AuthenticationEvent latest = window.latest;
+        if (absorbed > 0 && latest != null) {
+            sink.accept(EventType.AUTHENTICATED, merge(latest, absorbed), System.currentTimeMillis());
+        }
+    }
+
+    private static @Nonnull AuthenticationEvent merge(@Nonnull AuthenticationEvent latest, int count) {
+        if (latest instanceof UserDetailsProvider) {
+            return new CoalescedAuthenticationWithUserDetailsEventImpl(
+                    ((UserDetailsProvider) latest).getUserDetails(), latest.getSource(), count, latest.isFromLegacy());
+        }
+        return new CoalescedAuthenticationEventImpl(latest.getUsername(), latest.getSource(), count, latest.isFromLegacy());
+    }
+
+    /**
+     * Deliver the pending windows, called by {@link org.jenkinsci.plugins.impl.ShutdownSequence} before the dispatcher is drained
+     */
+    public static void shutdown() {
+        AuthenticationCoalescer coalescer = instance;
+        if (coalescer != null) {
+            coalescer.close();
+        }
+    }
+
+    /**
+     * Forget the coalescer closed by a previous shutdown, with the sink it was created with,
+     * when Jenkins is started again in the same JVM
+     */
+    @Initializer(after = InitMilestone.STARTED)
+    public static void reset() {
+        synchronized (AuthenticationCoalescer.class) {
+            if (instance != null && instance.closed) {
+                instance = null;
+            }
+        }
+    }
+
+    private void close() {
+        closed = true;
+        ScheduledFuture<?> task = sweepTask;
+        if (task != null) {
+            task.cancel(false);
+        }
+        flushAll();
+    }
+
+    private static final class Window {
+        private final long start;
+        /** number of absorbed events, -1 once closed */
+        private final AtomicInteger absorbed = new AtomicInteger();
+        private volatile AuthenticationEvent latest;
+
+        Window(long start) {
+            this.start = start;
+        }
+
+        boolean absorb(@Nonnull AuthenticationEvent event) {
+            // set before, to be visible when closing, no matter if the absorption succeeds
+            latest = event;
+            while (true) {
+                int count = absorbed.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (absorbed.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        int close() {
+            return absorbed.getAndSet(-1);
+        }
+    }
+
+    /**
+     * The origin is part of the key, a legacy and a new event must not be merged: the bridges route them differently
+     */
+    private static final class Key {
+        private final String username;
+        private final String source;
+        private final boolean fromLegacy;
+        private final int hash;
+
+        Key(@Nonnull String username, @Nonnull String source, boolean fromLegacy) {
+            this.username = username;
+            this.source = source;
+            this.fromLegacy = fromLegacy;
+            this.hash = 31 * (31 * username.hashCode() + source.hashCode()) + (fromLegacy ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && fromLegacy == other.fromLegacy
+                    && username.equals(other.username) && source.equals(other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+/**
+ * What the {@link AsyncDispatcher} does with an event when the lane of its user is full.
+ *
+ * Whatever the policy, the failure events are never dropped:
+ * when they cannot be queued they are delivered by the firing thread.
+ */
+public enum Backpressure {
+    /**
+     * Deliver the event from the firing thread, the login then waits for the asynchronous listeners
+     */
+    SYNCHRONOUS,
+    /**
+     * Wait for some room in the lane, up to a time budget, then drop the event
+     */
+    BLOCK,
+    /**
+     * Drop the event that could not be queued
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest queued event to make room for the new one, done by the consumer of the lane
+     * so that the events of a user keep their order. The new one is dropped if the consumer does not make room quickly.
+     */
+    DROP_OLDEST,
+    /**
+     * Once the lane is half full, only queue up to a given number of events per second, drop the others
+     */
+    SAMPLE,
+    /**
+     * Write the events to a temporary file until the lane is empty, then deliver them in order
+     */
+    SPILL
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Isolate the dispatch from a misbehaving listener class.
+ *
+ * A call is a failure when the listener throws an exception or exceeds the time budget.
+ * After enough consecutive failures the breaker opens, the listener is then skipped during the cooldown.
+ * The first event after the cooldown is a trial: a success closes the breaker, a failure opens it again.
+ *
+ * The time budget cannot interrupt a synchronous call, an overrun is detected once the listener returns.
+ * The breaker of an {@link Essential} listener counts the failures but never opens.
+ */
+@Restricted(NoExternalUse.class)
+public final class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    private static final long TIME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            SystemProperties.getLong(CircuitBreaker.class.getName() + ".timeBudget", 2_000L));
+    private static final int FAILURE_THRESHOLD =
+            SystemProperties.getInteger(CircuitBreaker.class.getName() + ".failureThreshold", 5);
+    private static final long COOLDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            SystemProperties.getLong(CircuitBreaker.class.getName() + ".cooldown", 60_000L));
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String listenerClassName;
+    private final boolean essential;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    /** {@link System#nanoTime()} at which the cooldown ends, 0 when closed */
+    private volatile long openUntil;
+    private final AtomicBoolean trialInProgress = new AtomicBoolean();
+
+    private final AtomicLong tripCount = new AtomicLong();
+    private final LongAdder skippedCount = new LongAdder();
+
+    private CircuitBreaker(@Nonnull String listenerClassName, boolean essential) {
+        this.listenerClassName = listenerClassName;
+        this.essential = essential;
+    }
+
+    static @Nonnull CircuitBreaker forListener(@Nonnull Class<?> listenerClass, boolean essential) {
+        return BREAKERS.computeIfAbsent(listenerClass.getName(), name -> new CircuitBreaker(name, essential));
+    }
+
+    public static @CheckForNull CircuitBreaker get(@Nonnull String listenerClassName) {
+        return BREAKERS.get(listenerClassName);
+    }
+
+    /**
+     * @return the breakers sorted by listener class name
+     */
+    public static @Nonnull List<CircuitBreaker> getAll() {
+        List<CircuitBreaker> all = new ArrayList<>(BREAKERS.values());
+        all.sort(Comparator.comparing(CircuitBreaker::getListenerClassName));
+        return all;
+    }
+
+    /**
+     * @return true if the listener can be called, false if it must be skipped
+     */
+    public boolean allowCall() {
+        long until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (System.nanoTime() - until >= 0 && trialInProgress.compareAndSet(false, true)) {
+            return true;
+        }
+        skippedCount.increment();
+        return false;
+    }
+
+    /**
+     * @param nanos  duration of the call
+     * @param failed true if the call threw an exception
+     */
+    public void recordCall(long nanos, boolean failed) {
+        if (failed || nanos > TIME_BUDGET_NANOS) {
+            recordFailure(failed ? "exception" : "time budget exceeded, took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms");
+            return;
+        }
+
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (openUntil != 0) {
+            openUntil = 0;
+            trialInProgress.set(false);
+            LOGGER.log(Level.INFO, "Listener {0} is working again, the circuit breaker is closed", listenerClassName);
+        }
+    }
+
+    private void recordFailure(@Nonnull String reason) {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (essential) {
+            if (failures == FAILURE_THRESHOLD) {
+                LOGGER.log(Level.WARNING, "Listener {0} failed {1} times in a row (last: {2}), it keeps receiving the events as it is essential",
+                        new Object[]{listenerClassName, failures, reason});
+            }
+            return;
+        }
+        boolean trial = openUntil != 0;
+        if (trial || failures == FAILURE_THRESHOLD) {
+            long until = System.nanoTime() + COOLDOWN_NANOS;
+            openUntil = until == 0 ? 1 : until;
+            trialInProgress.set(false);
+            tripCount.incrementAndGet();
+            LOGGER.log(Level.WARNING, "Listener {0} failed {1} times in a row (last: {2}), it will be skipped for {3}s",
+                    new Object[]{listenerClassName, failures, reason, TimeUnit.NANOSECONDS.toSeconds(COOLDOWN_NANOS)});
+        }
+    }
+
+    public @Nonnull String getListenerClassName() {
+        return listenerClassName;
+    }
+
+    /**
+     * @return true if the breaker never opens, see {@link Essential}
+     */
+    public boolean isEssential() {
+        return essential;
+    }
+
+    public @Nonnull State getState() {
+        long until = openUntil;
+        if (until == 0) {
+            return State.CLOSED;
+        }
+        return System.nanoTime() - until >= 0 ? State.HALF_OPEN : State.OPEN;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return the number of times the breaker opened
+     */
+    public long getTripCount() {
+        return tripCount.get();
+    }
+
+    /**
+     * @return the number of calls skipped because the breaker was open
+     */
+    public long getSkippedCount() {
+        return skippedCount.sum();
+    }
+
+    public static @Nonnull JSONObject toJSON() {
+        JSONArray breakers = new JSONArray();
+        for (CircuitBreaker breaker : getAll()) {
+            breakers.element(new JSONObject()
+                    .element("class", breaker.getListenerClassName())
+                    .element("state", breaker.getState().name())
+                    .element("essential", breaker.isEssential())
+                    .element("consecutiveFailures", breaker.getConsecutiveFailures())
+                    .element("trips", breaker.getTripCount())
+                    .element("skipped", breaker.getSkippedCount())
+            );
+        }
+        return new JSONObject()
+                .element("timeBudgetMillis", TimeUnit.NANOSECONDS.toMillis(TIME_BUDGET_NANOS))
+                .element("failureThreshold", FAILURE_THRESHOLD)
+                .element("cooldownMillis", TimeUnit.NANOSECONDS.toMillis(COOLDOWN_NANOS))
+                .element("breakers", breakers);
+    }
+}
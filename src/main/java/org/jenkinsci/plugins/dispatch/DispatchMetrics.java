@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.events.EventType;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the {@link ListenerMetrics} of all the listener classes that received events since the startup.
+ * The metrics are kept when the listeners are reloaded, as they are identified by their class name.
+ */
+@Restricted(NoExternalUse.class)
+public final class DispatchMetrics {
+    /** Recording costs a few counter increments per listener call */
+    public static final boolean ENABLED = SystemProperties.getBoolean(DispatchMetrics.class.getName() + ".enabled", true);
+
+    private static final ConcurrentMap<String, ListenerMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private DispatchMetrics() {
+    }
+
+    static @Nonnull ListenerMetrics forListener(@Nonnull Class<?> listenerClass) {
+        return METRICS.computeIfAbsent(listenerClass.getName(), ListenerMetrics::new);
+    }
+
+    public static @CheckForNull ListenerMetrics get(@Nonnull String listenerClassName) {
+        return METRICS.get(listenerClassName);
+    }
+
+    /**
+     * @return the metrics sorted by listener class name
+     */
+    public static @Nonnull List<ListenerMetrics> getAll() {
+        List<ListenerMetrics> all = new ArrayList<>(METRICS.values());
+        all.sort(Comparator.comparing(ListenerMetrics::getListenerClassName));
+        return all;
+    }
+
+    public static @Nonnull JSONObject toJSON() {
+        JSONArray listeners = new JSONArray();
+        for (ListenerMetrics metrics : getAll()) {
+            JSONObject events = new JSONObject();
+            for (EventType type : EventType.values()) {
+                LatencyHistogram latency = metrics.getLatency(type);
+                long count = latency.getCount();
+                if (count == 0) {
+                    continue;
+                }
+                JSONArray buckets = new JSONArray();
+                for (long bucketCount : latency.getBucketCounts()) {
+                    buckets.element(bucketCount);
+                }
+                events.element(type.name(), new JSONObject()
+                        .element("invocations", metrics.getInvocationCount(type))
+                        .element("failures", metrics.getFailureCount(type))
+                        .element("meanNanos", latency.getTotalNanos() / count)
+                        .element("p50Nanos", latency.getPercentileUpperBound(50))
+                        .element("p99Nanos", latency.getPercentileUpperBound(99))
+                        .element("buckets", buckets)
+                );
+            }
+            listeners.element(new JSONObject()
+                    .element("class", metrics.getListenerClassName())
+                    .element("events", events)
+            );
+        }
+        return new JSONObject()
+                .element("enabled", ENABLED)
+                .element("listeners", listeners);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot of the listeners to call for each {@link EventType}, in the order of the extension list.
+ * Only the enabled listeners overriding the corresponding callback are retained, the others would just return true.
+ * They are split between the sequential, the {@link Independent} and the {@link Asynchronous} ones.
+ * The {@link Subscription}s are applied statically for the event types, and per event with {@link #route(SecurityEvent)}
+ * for the sources, the usernames and the origins.
+ *
+ * The snapshot is computed on the first event and invalidated when the extension list changes.
+ */
+@Restricted(NoExternalUse.class)
+public final class DispatchTable {
+    private static final Logger LOGGER = Logger.getLogger(DispatchTable.class.getName());
+
+    private static final ListenerHandle[] NONE = new ListenerHandle[0];
+
+    private static final AtomicInteger VERSION = new AtomicInteger();
+    private static volatile DispatchTable current;
+    private static ExtensionList<SecurityListener2> observedList;
+
+    private final ListenerHandle[][] synchronous;
+    private final ListenerHandle[][] independentBlocking;
+    private final ListenerHandle[][] independentNonBlocking;
+    private final ListenerHandle[][] asynchronous;
+    private final boolean[] legacyConsumers;
+    private final SubscriptionIndex subscriptions;
+    private final Map<SecurityListener2, ListenerHandle> handlesByListener;
+
+    private DispatchTable(@Nonnull List<SecurityListener2> listeners) {
+        EventType[] types = EventType.values();
+        this.synchronous = new ListenerHandle[types.length][];
+        this.independentBlocking = new ListenerHandle[types.length][];
+        this.independentNonBlocking = new ListenerHandle[types.length][];
+        this.asynchronous = new ListenerHandle[types.length][];
+        this.legacyConsumers = new boolean[types.length];
+
+        List<ListenerHandle> handles = new ArrayList<>(listeners.size());
+        for (SecurityListener2 listener : listeners) {
+            if (listener.isEnabled()) {
+                handles.add(new ListenerHandle(listener, handles.size()));
+            }
+        }
+        this.subscriptions = SubscriptionIndex.compile(handles);
+        this.handlesByListener = new IdentityHashMap<>();
+        for (ListenerHandle handle : handles) {
+            handlesByListener.put(handle.getListener(), handle);
+        }
+
+        for (EventType type : types) {
+            List<ListenerHandle> sync = new ArrayList<>();
+            List<ListenerHandle> blocking = new ArrayList<>();
+            List<ListenerHandle> nonBlocking = new ArrayList<>();
+            List<ListenerHandle> async = new ArrayList<>();
+            for (ListenerHandle handle : handles) {
+                SecurityListener2 listener = handle.getListener();
+                if (overrides(listener.getClass(), type) && subscribes(handle.getSubscription(), type)) {
+                    if (AsyncDispatcher.isAsynchronous(listener)) {
+                        async.add(handle);
+                    } else if (ParallelDispatcher.isIndependent(listener)) {
+                        (ParallelDispatcher.isBlocking(listener) ? blocking : nonBlocking).add(handle);
+                    } else {
+                        sync.add(handle);
+                    }
+                    if (subscribes(handle.getSubscription(), Subscription.Origin.LEGACY)) {
+                        legacyConsumers[type.ordinal()] = true;
+                    }
+                }
+            }
+            synchronous[type.ordinal()] = sync.isEmpty() ? NONE : sync.toArray(NONE);
+            independentBlocking[type.ordinal()] = blocking.isEmpty() ? NONE : blocking.toArray(NONE);
+            independentNonBlocking[type.ordinal()] = nonBlocking.isEmpty() ? NONE : nonBlocking.toArray(NONE);
+            asynchronous[type.ordinal()] = async.isEmpty() ? NONE : async.toArray(NONE);
+        }
+    }
+
+    /**
+     * @return the listeners to call from the firing thread, must not be modified
+     */
+    public @Nonnull ListenerHandle[] getSynchronous(@Nonnull EventType type) {
+        return synchronous[type.ordinal()];
+    }
+
+    /**
+     * @return the independent listeners the firing thread waits for, must not be modified
+     */
+    public @Nonnull ListenerHandle[] getIndependentBlocking(@Nonnull EventType type) {
+        return independentBlocking[type.ordinal()];
+    }
+
+    /**
+     * @return the independent listeners the firing thread does not wait for, must not be modified
+     */
+    public @Nonnull ListenerHandle[] getIndependentNonBlocking(@Nonnull EventType type) {
+        return independentNonBlocking[type.ordinal()];
+    }
+
+    /**
+     * @return the listeners to call from the dispatch threads, must not be modified
+     */
+    public @Nonnull ListenerHandle[] getAsynchronous(@Nonnull EventType type) {
+        return asynchronous[type.ordinal()];
+    }
+
+    /**
+     * @return true if at least one listener would receive an event of that type
+     */
+    public boolean hasConsumers(@Nonnull EventType type) {
+        int ordinal = type.ordinal();
+        return synchronous[ordinal].length > 0 || asynchronous[ordinal].length > 0
+                || independentBlocking[ordinal].length > 0 || independentNonBlocking[ordinal].length > 0;
+    }
+
+    /**
+     * @return true if at least one listener would do something with an event of that type coming from a legacy listener
+     */
+    public boolean hasLegacyConsumers(@Nonnull EventType type) {
+        return legacyConsumers[type.ordinal()];
+    }
+
+    /**
+     * @return the mask of the listeners whose subscription matches the event, to be checked with {@link #accepts}
+     * and given back with {@link #release} once the event is delivered, null if all of them do
+     */
+    public @CheckForNull long[] route(@Nonnull SecurityEvent event) {
+        return subscriptions == null ? null : subscriptions.route(event);
+    }
+
+    public static void release(@CheckForNull long[] route) {
+        if (route != null) {
+            SubscriptionIndex.release(route);
+        }
+    }
+
+    public static boolean accepts(@CheckForNull long[] route, @Nonnull ListenerHandle handle) {
+        return route == null || SubscriptionIndex.isSet(route, handle.getIndex());
+    }
+
+    /**
+     * Same filtering as a live event, for an event delivered to a single listener, e.g. when replaying the journal
+     *
+     * @param route of the event, from {@link #route}
+     * @return false if the subscription of the listener excludes the event, true for a listener not in the table
+     */
+    public boolean accepts(@CheckForNull long[] route, @Nonnull SecurityListener2 listener, @Nonnull EventType type) {
+        ListenerHandle handle = handlesByListener.get(listener);
+        return handle == null || (subscribes(handle.getSubscription(), type) && accepts(route, handle));
+    }
+
+    public static @Nonnull DispatchTable get() {
+        DispatchTable table = current;
+        if (table != null) {
+            return table;
+        }
+        return rebuild();
+    }
+
+    private static synchronized @Nonnull DispatchTable rebuild() {
+        DispatchTable table = current;
+        if (table != null) {
+            return table;
+        }
+
+        int version = VERSION.get();
+        ExtensionList<SecurityListener2> list = ExtensionList.lookup(SecurityListener2.class);
+        if (list != observedList) {
+            list.addListener(new ExtensionListListener() {
+                @Override
+                public void onChange() {
+                    invalidate();
+                }
+            });
+            observedList = list;
+        }
+
+        table = new DispatchTable(new ArrayList<>(list));
+        if (VERSION.get() == version) {
+            // otherwise the list changed during the computation, the next event will recompute it
+            current = table;
+        }
+        return table;
+    }
+
+    /**
+     * Also called at each startup, in case of a restart in the same JVM (like in tests)
+     */
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void invalidate() {
+        VERSION.incrementAndGet();
+        current = null;
+    }
+
+    private static boolean subscribes(@CheckForNull Subscription subscription, @Nonnull EventType type) {
+        if (subscription == null || subscription.types().length == 0) {
+            return true;
+        }
+        for (EventType subscribed : subscription.types()) {
+            if (subscribed == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean subscribes(@CheckForNull Subscription subscription, @Nonnull Subscription.Origin origin) {
+        if (subscription == null) {
+            return true;
+        }
+        for (Subscription.Origin subscribed : subscription.origins()) {
+            if (subscribed == origin) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overrides(@Nonnull Class<?> listenerClass, @Nonnull EventType type) {
+        String methodName = callbackName(type);
+        for (Class<?> c = listenerClass; c != null && c != SecurityListener2.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(methodName, type.getEventClass());
+                return true;
+            } catch (NoSuchMethodException e) {
+                // look in the parent
+            } catch (SecurityException | LinkageError e) {
+                LOGGER.log(Level.FINE, "Cannot inspect " + c.getName() + ", it is considered as listening to " + type, e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static @Nonnull String callbackName(@Nonnull EventType type) {
+        switch (type) {
+            case AUTHENTICATED:
+                return "authenticated";
+            case FAILED_TO_AUTHENTICATE:
+                return "failedToAuthenticate";
+            case LOGGED_IN:
+                return "loggedIn";
+            case FAILED_TO_LOG_IN:
+                return "failedToLogIn";
+            case LOGGED_OUT:
+                return "loggedOut";
+            default:
+                throw new AssertionError("Unknown event type " + type);
+        }
+    }
+}
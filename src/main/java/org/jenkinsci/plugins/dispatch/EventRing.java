@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer / multi-consumer queue of security events.
+ * The slots are allocated once, publishing an event does not allocate.
+ *
+ * Each slot has a sequence number telling if it is free for the producer at a given position
+ * or ready for the consumer at that position, the positions are claimed by compare-and-set.
+ */
+@Restricted(NoExternalUse.class)
+public final class EventRing {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final EventType[] types;
+    private final SecurityEvent[] events;
+    private final long[] times;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param requestedCapacity rounded up to the next power of two
+     */
+    public EventRing(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.types = new EventType[capacity];
+        this.events = new SecurityEvent[capacity];
+        this.times = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return an approximation of the number of events waiting, exact when no producer or consumer is active
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * @return false if the ring is full, the event was not added
+     */
+    public boolean offer(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            long difference = sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    types[index] = type;
+                    events[index] = event;
+                    times[index] = timeMillis;
+                    // publish the slot content to the consumer
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the next event and pass it to the sink, in the calling thread.
+     *
+     * @return false if the ring was empty
+     */
+    public boolean poll(@Nonnull EventSink sink) {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            long difference = sequence - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    EventType type = types[index];
+                    SecurityEvent event = events[index];
+                    long timeMillis = times[index];
+                    types[index] = null;
+                    events[index] = null;
+                    // give the slot back to the producers for the next round
+                    sequences.lazySet(index, position + mask + 1);
+                    sink.accept(type, event, timeMillis);
+                    return true;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+}
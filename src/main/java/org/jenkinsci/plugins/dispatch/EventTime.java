@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Time at which the event being delivered was fired, for the listeners recording it.
+ *
+ * The {@link Asynchronous} listeners receive the events later than they happened, possibly much later
+ * when they were queued or spilled. The {@link AsyncDispatcher} sets the time around each delivery,
+ * in a mutable holder per thread so that it does not allocate.
+ */
+@Restricted(NoExternalUse.class)
+public final class EventTime {
+    private static final ThreadLocal<EventTime> CURRENT = ThreadLocal.withInitial(EventTime::new);
+
+    /** 0 outside of an asynchronous delivery */
+    private long timeMillis;
+
+    private EventTime() {
+    }
+
+    /**
+     * @return the time the event being delivered on the current thread was fired,
+     * the current time when it is delivered synchronously
+     */
+    public static long currentMillis() {
+        long timeMillis = CURRENT.get().timeMillis;
+        return timeMillis != 0 ? timeMillis : System.currentTimeMillis();
+    }
+
+    /**
+     * @return the holder of the current thread
+     */
+    static EventTime get() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the previous time, to be restored once delivered
+     */
+    long enter(long timeMillis) {
+        long previous = this.timeMillis;
+        this.timeMillis = timeMillis;
+        return previous;
+    }
+
+    void exit(long previous) {
+        this.timeMillis = previous;
+    }
+}
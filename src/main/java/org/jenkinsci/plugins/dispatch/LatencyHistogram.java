@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed power of two buckets, the bucket {@code i} counting the durations
+ * between {@code 2^i} (inclusive) and {@code 2^(i+1)} (exclusive) nanoseconds, the last one everything above.
+ *
+ * Recording is a couple of striped counter increments, without lock nor allocation.
+ */
+@Restricted(NoExternalUse.class)
+public final class LatencyHistogram {
+    /** The last bucket starts at 2^35 ns, around 34 seconds */
+    public static final int BUCKET_COUNT = 36;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        buckets[bucketOf(nanos)].increment();
+        totalNanos.add(Math.max(0, nanos));
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /**
+     * @return the lower bound in nanoseconds of the given bucket
+     */
+    public static long bucketLowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << bucket;
+    }
+
+    /**
+     * @return the number of recorded durations per bucket, a snapshot that is not atomic
+     */
+    public @Nonnull long[] getBucketCounts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in nanoseconds of the bucket containing the given percentile, 0 if nothing was recorded
+     */
+    public long getPercentileUpperBound(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            cumulated += counts[i];
+            if (cumulated >= threshold) {
+                return bucketLowerBound(i + 1);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.jenkinsci.plugins.SecurityListener2;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A listener in the {@link DispatchTable}, with the dispatch state attached to it.
+ */
+@Restricted(NoExternalUse.class)
+public final class ListenerHandle {
+    private final SecurityListener2 listener;
+    private final int index;
+    private final Subscription subscription;
+    private final ListenerMetrics metrics;
+    private final CircuitBreaker circuitBreaker;
+    private final boolean essential;
+
+    ListenerHandle(@Nonnull SecurityListener2 listener, int index) {
+        this.listener = listener;
+        this.index = index;
+        this.subscription = listener.getClass().getAnnotation(Subscription.class);
+        this.metrics = DispatchMetrics.forListener(listener.getClass());
+        this.essential = listener.getClass().isAnnotationPresent(Essential.class);
+        this.circuitBreaker = CircuitBreaker.forListener(listener.getClass(), essential);
+    }
+
+    public @Nonnull SecurityListener2 getListener() {
+        return listener;
+    }
+
+    /**
+     * @return the position of the listener in its {@link DispatchTable}
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public @CheckForNull Subscription getSubscription() {
+        return subscription;
+    }
+
+    public @Nonnull ListenerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public @Nonnull CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @see Essential
+     */
+    public boolean isEssential() {
+        return essential;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Invocation counters and latencies of a listener class, per {@link EventType}.
+ */
+@Restricted(NoExternalUse.class)
+public final class ListenerMetrics {
+    private final String listenerClassName;
+    private final LongAdder[] invocations = new LongAdder[EventType.values().length];
+    private final LongAdder[] failures = new LongAdder[EventType.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[EventType.values().length];
+
+    ListenerMetrics(@Nonnull String listenerClassName) {
+        this.listenerClassName = listenerClassName;
+        for (int i = 0; i < invocations.length; i++) {
+            invocations[i] = new LongAdder();
+            failures[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param failed true if the listener threw an exception
+     */
+    public void record(@Nonnull EventType type, long nanos, boolean failed) {
+        int index = type.ordinal();
+        invocations[index].increment();
+        if (failed) {
+            failures[index].increment();
+        }
+        latencies[index].record(nanos);
+    }
+
+    public @Nonnull String getListenerClassName() {
+        return listenerClassName;
+    }
+
+    public long getInvocationCount(@Nonnull EventType type) {
+        return invocations[type.ordinal()].sum();
+    }
+
+    public long getFailureCount(@Nonnull EventType type) {
+        return failures[type.ordinal()].sum();
+    }
+
+    public @Nonnull LatencyHistogram getLatency(@Nonnull EventType type) {
+        return latencies[type.ordinal()];
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deliver an event to the {@link Independent} listeners concurrently, the firing thread only waiting for the blocking ones.
+ *
+ * Uses virtual threads when the JVM has them, otherwise a shared pool of daemon threads.
+ * When the pool is saturated the firing thread delivers the event to the blocking listeners itself, since it waits
+ * for them anyway, while the non blocking ones do not receive it, except the {@link Essential} ones.
+ */
+@Restricted(NoExternalUse.class)
+public final class ParallelDispatcher {
+    private static final Logger LOGGER = Logger.getLogger(ParallelDispatcher.class.getName());
+
+    private static final String PREFIX = ParallelDispatcher.class.getName();
+    private static final int POOL_SIZE = Math.max(1, SystemProperties.getInteger(PREFIX + ".poolSize", 32));
+    private static final boolean VIRTUAL_THREADS = SystemProperties.getBoolean(PREFIX + ".virtualThreads", true);
+    private static final long AWAIT_MILLIS = SystemProperties.getLong(PREFIX + ".awaitMillis", 5_000L);
+
+    private static final Pending DONE = new Pending(0);
+
+    private static final LongAdder DROPPED = new LongAdder();
+
+    private ParallelDispatcher() {
+    }
+
+    /**
+     * Delivers an event to a listener, must not throw
+     */
+    @FunctionalInterface
+    public interface Delivery {
+        boolean deliver(@Nonnull ListenerHandle handle, @Nonnull EventType type, @Nonnull SecurityEvent event);
+    }
+
+    /**
+     * The blocking deliveries in progress for an event
+     */
+    public static final class Pending {
+        private final CountDownLatch remaining;
+        private volatile boolean result = true;
+
+        private Pending(int count) {
+            this.remaining = new CountDownLatch(count);
+        }
+
+        private void done(boolean listenerResult) {
+            if (!listenerResult) {
+                result = false;
+            }
+            remaining.countDown();
+        }
+
+        /**
+         * Wait for the blocking listeners, at most {@code awaitMillis} or until the firing thread is interrupted.
+         * The ones still running then do not prevent the other listeners to receive the event.
+         *
+         * @return false if one of them returned false
+         */
+        public boolean await() {
+            try {
+                if (!remaining.await(AWAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    LOGGER.log(Level.WARNING, "{0} independent listeners still running after {1} ms, not waiting for them",
+                            new Object[]{remaining.getCount(), AWAIT_MILLIS});
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Lazily created on the first independent listener
+     */
+    private static final class ExecutorHolder {
+        private static final ExecutorService EXECUTOR = createExecutor();
+    }
+
+    private static @Nonnull ExecutorService createExecutor() {
+        if (VIRTUAL_THREADS) {
+            try {
+                // Java 21+, looked up to still run on older versions
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                LOGGER.log(Level.FINE, "Delivering the events to the independent listeners from virtual threads");
+                return executor;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Virtual threads are not available, using a thread pool", e);
+            }
+        }
+        return new ThreadPoolExecutor(0, POOL_SIZE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SecurityListener2 parallel dispatch"));
+    }
+
+    public static boolean isIndependent(@Nonnull SecurityListener2 listener) {
+        return listener.getClass().isAnnotationPresent(Independent.class);
+    }
+
+    public static boolean isBlocking(@Nonnull SecurityListener2 listener) {
+        Independent independent = listener.getClass().getAnnotation(Independent.class);
+        return independent == null || independent.blocking();
+    }
+
+    /**
+     * Start the deliveries, to be awaited once the firing thread is done with the sequential listeners
+     *
+     * @param route of the event, only the listeners it accepts receive the event, see {@link DispatchTable#route}
+     */
+    public static @Nonnull Pending start(@Nonnull ListenerHandle[] blocking, @Nonnull ListenerHandle[] nonBlocking,
+                                         @CheckForNull long[] route,
+                                         @Nonnull EventType type, @Nonnull SecurityEvent event, @Nonnull Delivery delivery) {
+        ExecutorService executor = ExecutorHolder.EXECUTOR;
+        int accepted = 0;
+        for (ListenerHandle handle : blocking) {
+            if (DispatchTable.accepts(route, handle)) {
+                accepted++;
+            }
+        }
+        Pending pending = accepted == 0 ? DONE : new Pending(accepted);
+        for (ListenerHandle handle : blocking) {
+            if (!DispatchTable.accepts(route, handle)) {
+                continue;
+            }
+            Runnable task = () -> {
+                boolean result = true;
+                try {
+                    result = delivery.deliver(handle, type, event);
+                } finally {
+                    pending.done(result);
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // waited for anyway
+                task.run();
+            }
+        }
+        for (ListenerHandle handle : nonBlocking) {
+            if (!DispatchTable.accepts(route, handle)) {
+                continue;
+            }
+            try {
+                executor.execute(() -> delivery.deliver(handle, type, event));
+            } catch (RejectedExecutionException e) {
+                if (handle.isEssential()) {
+                    delivery.deliver(handle, type, event);
+                } else {
+                    DROPPED.increment();
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return the number of events not delivered to a non blocking listener because the pool was saturated
+     */
+    public static long getDroppedCount() {
+        return DROPPED.sum();
+    }
+}
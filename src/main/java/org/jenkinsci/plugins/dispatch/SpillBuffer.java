@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.codec.EventReader;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.jenkinsci.plugins.events.codec.EventWriter;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The overflow of a lane written to a temporary file, in the codec format, to be delivered by its consumer
+ * once the lane is empty. The events delivered are the decoded copies of the original ones.
+ *
+ * The file being written is handed over to the consumer as a whole, the next events go to a new file:
+ * the events are delivered in the order they were spilled.
+ * The files are only readable by their owner, those left by a crash are delivered at the next start, see {@link #recover}.
+ */
+final class SpillBuffer {
+    private static final Logger LOGGER = Logger.getLogger(SpillBuffer.class.getName());
+
+    private static final String FILE_PREFIX = "security-events-";
+    private static final String FILE_SUFFIX = ".spill";
+
+    private final File directory;
+    private final int maxEvents;
+
+    // guarded by this
+    private File file;
+    private EventWriter writer;
+    private int written;
+    private boolean failureLogged;
+
+    /**
+     * True from the first spilled event until the consumer delivered all of them,
+     * the new events are spilled meanwhile to keep the order
+     */
+    private volatile boolean active;
+
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder reinjected = new LongAdder();
+
+    /**
+     * @param directory null for the default temporary directory, not recovered
+     * @param maxEvents per file, the one being written and the one being delivered
+     */
+    SpillBuffer(@CheckForNull File directory, int maxEvents) {
+        this.directory = directory;
+        this.maxEvents = maxEvents;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return false if the file is full or cannot be written, the event was not spilled
+     */
+    synchronized boolean append(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        if (written >= maxEvents) {
+            return false;
+        }
+        try {
+            if (writer == null) {
+                open();
+            }
+            writer.write(type, event, timeMillis);
+        } catch (IOException e) {
+            LOGGER.log(failureLogged ? Level.FINE : Level.WARNING, "Failed to spill the security events to " + file, e);
+            failureLogged = true;
+            // the events already written are still delivered, no more are spilled until then
+            written = maxEvents;
+            return false;
+        }
+        written++;
+        active = true;
+        spilled.increment();
+        return true;
+    }
+
+    /**
+     * Called by the consumer once its ring is empty
+     *
+     * @return false if there was nothing to deliver
+     */
+    boolean drain(@Nonnull EventSink sink) {
+        File spilledFile;
+        synchronized (this) {
+            if (writer == null) {
+                active = false;
+                written = 0;
+                return false;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to write the spilled security events to " + file, e);
+            }
+            spilledFile = file;
+            writer = null;
+            file = null;
+            written = 0;
+        }
+
+        reinjected.add(deliver(spilledFile, sink));
+        return true;
+    }
+
+    /**
+     * Deliver the events of a file then delete it, a file truncated by a crash is delivered up to its last complete event
+     *
+     * @return the number of events delivered
+     */
+    private static long deliver(@Nonnull File spilledFile, @Nonnull EventSink sink) {
+        long count = 0;
+        try (EventReader reader = new EventReader(new BufferedInputStream(new FileInputStream(spilledFile)))) {
+            EventRecord record;
+            while ((record = reader.read()) != null) {
+                count++;
+                sink.accept(record.getType(), record.getEvent(), record.getTimeMillis());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the spilled security events from " + spilledFile, e);
+        } finally {
+            if (!spilledFile.delete()) {
+                LOGGER.log(Level.WARNING, "Failed to delete {0}", spilledFile);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the files spilled by a previous run and not delivered, oldest first,
+     * to be listed before any lane spills in the directory
+     */
+    static @Nonnull List<File> listLeftovers(@Nonnull File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Deliver the events of the files left by a previous run, e.g. after a crash, then delete them
+     *
+     * @return the number of events recovered
+     */
+    static long recover(@Nonnull List<File> leftovers, @Nonnull EventSink sink) {
+        long count = 0;
+        for (File leftover : leftovers) {
+            count += deliver(leftover, sink);
+        }
+        return count;
+    }
+
+    private void open() throws IOException {
+        Path created;
+        if (directory == null) {
+            created = Files.createTempFile(FILE_PREFIX, FILE_SUFFIX, ownerOnly());
+        } else {
+            created = Files.createTempFile(Files.createDirectories(directory.toPath()), FILE_PREFIX, FILE_SUFFIX, ownerOnly());
+        }
+        try {
+            writer = new EventWriter(new BufferedOutputStream(Files.newOutputStream(created)));
+        } catch (IOException e) {
+            Files.deleteIfExists(created);
+            throw e;
+        }
+        file = created.toFile();
+    }
+
+    /**
+     * The events contain user names and sources, like the rest of the security events
+     */
+    private static @Nonnull FileAttribute<?>[] ownerOnly() {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+        }
+        return new FileAttribute<?>[0];
+    }
+
+    long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    long getReinjectedCount() {
+        return reinjected.sum();
+    }
+}
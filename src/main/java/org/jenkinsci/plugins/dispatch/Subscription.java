@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.jenkinsci.plugins.events.EventType;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Put on a {@link org.jenkinsci.plugins.SecurityListener2} implementation to only receive some of the events,
+ * instead of filtering them in its callbacks. The criteria are compiled by the {@link DispatchTable}:
+ * the other events are not delivered to the listener at all.
+ *
+ * An event is delivered if it matches each of the criteria.
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Subscription {
+    /**
+     * @return the types of events to receive, all the ones whose callback is overridden if empty
+     */
+    EventType[] types() default {};
+
+    /**
+     * @return the prefixes of the sources to receive, any source if empty
+     */
+    String[] sourcePrefixes() default {};
+
+    /**
+     * @return the usernames to receive, a trailing {@code *} matching any suffix, any username if empty
+     */
+    String[] usernames() default {};
+
+    /**
+     * @return where the events to receive come from
+     */
+    Origin[] origins() default {Origin.NEW, Origin.LEGACY};
+
+    enum Origin {
+        /**
+         * Fired through {@link org.jenkinsci.plugins.SecurityListener2}
+         */
+        NEW,
+        /**
+         * Fired by the legacy {@link jenkins.security.SecurityListener} and passed to the new listeners by the bridge,
+         * see {@link org.jenkinsci.plugins.events.SecurityEvent#isFromLegacy()}
+         */
+        LEGACY
+    }
+}
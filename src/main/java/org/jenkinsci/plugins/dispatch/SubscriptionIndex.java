@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.dispatch;
+
+import org.jenkinsci.plugins.events.SecurityEvent;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The source, username and origin criteria of the {@link Subscription}s of the listeners of a {@link DispatchTable},
+ * compiled into bitmasks indexed by {@link ListenerHandle#getIndex()}.
+ *
+ * The sources and the usernames are matched by walking a prefix trie, each node holding the mask of the listeners
+ * whose prefix ends there. Routing an event costs a walk per trie whatever the number of listeners.
+ * A trie without any criterion is not walked, when both are like that the route is one of the origin masks.
+ * The listeners without a subscription have their bit set everywhere.
+ *
+ * The routes are computed in masks reused by each thread, to be given back with {@link #release}.
+ */
+final class SubscriptionIndex {
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final int words;
+    private final long[] newOrigin;
+    private final long[] legacyOrigin;
+    private final PrefixTrie sources;
+    private final PrefixTrie usernames;
+
+    private SubscriptionIndex(int words, @Nonnull long[] newOrigin, @Nonnull long[] legacyOrigin,
+                              @Nonnull PrefixTrie sources, @Nonnull PrefixTrie usernames) {
+        this.words = words;
+        this.newOrigin = newOrigin;
+        this.legacyOrigin = legacyOrigin;
+        this.sources = sources;
+        this.usernames = usernames;
+    }
+
+    /**
+     * @return null if no listener has a subscription, every event goes to all of them
+     */
+    static @CheckForNull SubscriptionIndex compile(@Nonnull List<ListenerHandle> handles) {
+        boolean any = false;
+        for (ListenerHandle handle : handles) {
+            any |= handle.getSubscription() != null;
+        }
+        if (!any) {
+            return null;
+        }
+
+        int words = (handles.size() + 63) >>> 6;
+        long[] newOrigin = new long[words];
+        long[] legacyOrigin = new long[words];
+        TrieBuilder sources = new TrieBuilder(words);
+        TrieBuilder usernames = new TrieBuilder(words);
+        for (ListenerHandle handle : handles) {
+            int index = handle.getIndex();
+            Subscription subscription = handle.getSubscription();
+            if (subscription == null) {
+                set(newOrigin, index);
+                set(legacyOrigin, index);
+                sources.add("", false, index);
+                usernames.add("", false, index);
+                continue;
+            }
+            for (Subscription.Origin origin : subscription.origins()) {
+                set(origin == Subscription.Origin.NEW ? newOrigin : legacyOrigin, index);
+            }
+            if (subscription.sourcePrefixes().length == 0) {
+                sources.add("", false, index);
+            }
+            for (String prefix : subscription.sourcePrefixes()) {
+                sources.add(prefix, false, index);
+            }
+            if (subscription.usernames().length == 0) {
+                usernames.add("", false, index);
+            }
+            for (String username : subscription.usernames()) {
+                if (username.endsWith("*")) {
+                    usernames.add(username.substring(0, username.length() - 1), false, index);
+                } else {
+                    usernames.add(username, true, index);
+                }
+            }
+        }
+        return new SubscriptionIndex(words, newOrigin, legacyOrigin, sources.build(), usernames.build());
+    }
+
+    /**
+     * @return the mask of the listeners to deliver the event to, must not be modified,
+     * possibly longer than the number of listeners
+     */
+    @Nonnull long[] route(@Nonnull SecurityEvent event) {
+        long[] origin = event.isFromLegacy() ? legacyOrigin : newOrigin;
+        boolean bySource = !sources.isTrivial();
+        boolean byUsername = !usernames.isTrivial();
+        if (!bySource && !byUsername) {
+            // shared, never given back
+            return origin;
+        }
+        Scratch scratch = SCRATCH.get();
+        long[] route = scratch.push(words);
+        System.arraycopy(origin, 0, route, 0, words);
+        long[] matches = scratch.matches(words);
+        if (bySource) {
+            Arrays.fill(matches, 0, words, 0);
+            sources.match(event.getSource(), matches, words);
+            and(route, matches, words);
+        }
+        if (byUsername) {
+            Arrays.fill(matches, 0, words, 0);
+            usernames.match(event.getUsername(), matches, words);
+            and(route, matches, words);
+        }
+        return route;
+    }
+
+    /**
+     * Give back a route once the event is delivered, the next one routed by the thread can reuse it
+     */
+    static void release(@Nonnull long[] route) {
+        Scratch scratch = SCRATCH.get();
+        if (scratch.depth > 0 && scratch.routes[scratch.depth - 1] == route) {
+            scratch.depth--;
+        }
+    }
+
+    static boolean isSet(@Nonnull long[] mask, int index) {
+        return (mask[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void set(@Nonnull long[] mask, int index) {
+        mask[index >>> 6] |= 1L << index;
+    }
+
+    private static void and(@Nonnull long[] mask, @Nonnull long[] other, int words) {
+        for (int i = 0; i < words; i++) {
+            mask[i] &= other[i];
+        }
+    }
+
+    private static void or(@Nonnull long[] mask, @CheckForNull long[] other, int words) {
+        if (other != null) {
+            for (int i = 0; i < words; i++) {
+                mask[i] |= other[i];
+            }
+        }
+    }
+
+    /**
+     * The masks used by a thread. A listener can fire an event while receiving another one, hence a stack of routes.
+     */
+    private static final class Scratch {
+        private long[][] routes = new long[4][];
+        private int depth;
+        private long[] matches = new long[0];
+
+        @Nonnull long[] push(int words) {
+            if (depth == routes.length) {
+                routes = Arrays.copyOf(routes, depth * 2);
+            }
+            long[] route = routes[depth];
+            if (route == null || route.length < words) {
+                // only when the number of listeners grows
+                route = routes[depth] = new long[words];
+            }
+            depth++;
+            return route;
+        }
+
+        @Nonnull long[] matches(int words) {
+            if (matches.length < words) {
+                matches = new long[words];
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Immutable trie, the children of a node are sorted by character for a binary search
+     */
+    private static final class PrefixTrie {
+        private final char[] keys;
+        private final PrefixTrie[] children;
+        /** The listeners whose prefix ends at this node, null if none */
+        private final long[] prefix;
+        /** The listeners whose exact value ends at this node, null if none */
+        private final long[] exact;
+
+        PrefixTrie(@Nonnull char[] keys, @Nonnull PrefixTrie[] children, @CheckForNull long[] prefix, @CheckForNull long[] exact) {
+            this.keys = keys;
+            this.children = children;
+            this.prefix = prefix;
+            this.exact = exact;
+        }
+
+        /**
+         * @return true if every listener matches at the root, the walk would not tell anything
+         */
+        boolean isTrivial() {
+            return keys.length == 0 && exact == null;
+        }
+
+        void match(@Nonnull String value, @Nonnull long[] matches, int words) {
+            PrefixTrie node = this;
+            for (int i = 0; ; i++) {
+                or(matches, node.prefix, words);
+                if (i == value.length()) {
+                    or(matches, node.exact, words);
+                    return;
+                }
+                int child = Arrays.binarySearch(node.keys, value.charAt(i));
+                if (child < 0) {
+                    return;
+                }
+                node = node.children[child];
+            }
+        }
+    }
+
+    private static final class TrieBuilder {
+        private final int words;
+        private final TreeMap<Character, TrieBuilder> children = new TreeMap<>();
+        private long[] prefix;
+        private long[] exact;
+
+        TrieBuilder(int words) {
+            this.words = words;
+        }
+
+        void add(@Nonnull String value, boolean exactMatch, int index) {
+            TrieBuilder node = this;
+            for (int i = 0; i < value.length(); i++) {
+                node = node.children.computeIfAbsent(value.charAt(i), c -> new TrieBuilder(words));
+            }
+            if (exactMatch) {
+                if (node.exact == null) {
+                    node.exact = new long[words];
+                }
+                set(node.exact, index);
+            } else {
+                if (node.prefix == null) {
+                    node.prefix = new long[words];
+                }
+                set(node.prefix, index);
+            }
+        }
+
+        @Nonnull PrefixTrie build() {
+            char[] keys = new char[children.size()];
+            PrefixTrie[] built = new PrefixTrie[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, TrieBuilder> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                built[i] = child.getValue().build();
+                i++;
+            }
+            return new PrefixTrie(keys, built, prefix, exact);
+        }
+    }
+}
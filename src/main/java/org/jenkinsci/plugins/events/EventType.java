@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The kinds of events dispatched by {@link org.jenkinsci.plugins.SecurityListener2},
+ * one per callback method.
+ */
+public enum EventType {
+    AUTHENTICATED(AuthenticationEvent.class),
+    FAILED_TO_AUTHENTICATE(AuthenticationFailureEvent.class),
+    LOGGED_IN(LoginEvent.class),
+    FAILED_TO_LOG_IN(LoginFailureEvent.class),
+    LOGGED_OUT(LogoutEvent.class);
+
+    private final Class<? extends SecurityEvent> eventClass;
+
+    EventType(@Nonnull Class<? extends SecurityEvent> eventClass) {
+        this.eventClass = eventClass;
+    }
+
+    /**
+     * @return the event interface received by the listeners for that type
+     */
+    public @Nonnull Class<? extends SecurityEvent> getEventClass() {
+        return eventClass;
+    }
+}
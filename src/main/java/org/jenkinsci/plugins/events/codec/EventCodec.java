@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.codec;
+
+/**
+ * Binary format shared by {@link EventEncoder} and {@link EventDecoder}, version {@link #FORMAT_VERSION}.
+ *
+ * A record starts with a tag byte: the {@link org.jenkinsci.plugins.events.EventType} ordinal in the low 3 bits
+ * and the {@code FLAG_*} in the others. Then come, in that order:
+ * <ul>
+ *     <li>the time as the zigzag varint delta with the previous record of the stream</li>
+ *     <li>the username and the source</li>
+ *     <li>the repeat count as a varint, if {@link #FLAG_REPEATED}</li>
+ *     <li>for a login, the number of authorities as a varint, then the authorities</li>
+ *     <li>the authorities and a byte of account flags, if {@link #FLAG_USER_DETAILS}</li>
+ *     <li>the reason, if {@link #FLAG_REASON}</li>
+ *     <li>the exception summary, if {@link #FLAG_EXCEPTION}: class name, message, total number of frames,
+ *     number of frames kept, each frame (class, method, file, zigzag line), then a presence byte for the cause
+ *     followed by the cause summary</li>
+ * </ul>
+ * A string is a varint: {@link #STRING_NULL}, {@link #STRING_LITERAL} or {@link #STRING_LITERAL_NO_ENTRY}
+ * followed by its UTF-8 length as a varint and its bytes, otherwise {@link #STRING_REFERENCE_BASE} plus
+ * the index of a previous literal in the dictionary of the stream. The encoder decides which literals
+ * enter the dictionary, the decoder just follows.
+ *
+ * Passwords are never written.
+ */
+final class EventCodec {
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Written at the start of a stream by {@link EventWriter}, followed by the format version as a varint
+     */
+    static final int STREAM_MAGIC = 0x534C4556;
+
+    static final int TYPE_MASK = 0x07;
+    static final int FLAG_FROM_LEGACY = 0x08;
+    static final int FLAG_USER_DETAILS = 0x10;
+    static final int FLAG_REPEATED = 0x20;
+    static final int FLAG_REASON = 0x40;
+    static final int FLAG_EXCEPTION = 0x80;
+
+    static final int ACCOUNT_ENABLED = 0x01;
+    static final int ACCOUNT_NON_EXPIRED = 0x02;
+    static final int ACCOUNT_NON_LOCKED = 0x04;
+    static final int CREDENTIALS_NON_EXPIRED = 0x08;
+
+    static final int STRING_NULL = 0;
+    static final int STRING_LITERAL = 1;
+    static final int STRING_LITERAL_NO_ENTRY = 2;
+    static final int STRING_REFERENCE_BASE = 3;
+
+    /**
+     * Longer strings are unlikely to repeat, they are not added to the dictionary
+     */
+    static final int MAX_DICTIONARY_STRING_LENGTH = 256;
+
+    static final int DEFAULT_DICTIONARY_SIZE = 4096;
+
+    /**
+     * Guard against corrupted input
+     */
+    static final int MAX_COLLECTION_SIZE = 1 << 20;
+    static final int MAX_CAUSE_DEPTH = 8;
+
+    private EventCodec() {
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
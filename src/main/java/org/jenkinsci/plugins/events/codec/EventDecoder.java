@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.codec;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+import org.acegisecurity.userdetails.User;
+import org.acegisecurity.userdetails.UserDetails;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.impl.AuthenticationEventImpl;
+import org.jenkinsci.plugins.events.impl.AuthenticationFailureEventImpl;
+import org.jenkinsci.plugins.events.impl.AuthenticationFailureExceptionEventImpl;
+import org.jenkinsci.plugins.events.impl.AuthenticationWithUserDetailsEventImpl;
+import org.jenkinsci.plugins.events.impl.CoalescedAuthenticationEventImpl;
+import org.jenkinsci.plugins.events.impl.CoalescedAuthenticationWithUserDetailsEventImpl;
+import org.jenkinsci.plugins.events.impl.LegacyAuthenticationEventImpl;
+import org.jenkinsci.plugins.events.impl.LegacyAuthenticationFailureEventImpl;
+import org.jenkinsci.plugins.events.impl.LegacyLoginEventImpl;
+import org.jenkinsci.plugins.events.impl.LegacyLoginFailureEventImpl;
+import org.jenkinsci.plugins.events.impl.LegacyLogoutEventImpl;
+import org.jenkinsci.plugins.events.impl.LoginEventImpl;
+import org.jenkinsci.plugins.events.impl.LoginFailureEventImpl;
+import org.jenkinsci.plugins.events.impl.LoginFailureExceptionEventImpl;
+import org.jenkinsci.plugins.events.impl.LogoutEventImpl;
+import org.jenkinsci.plugins.events.optional.ExceptionSummary;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.jenkinsci.plugins.events.codec.EventCodec.*;
+
+/**
+ * Decode the records of a stream written by an {@link EventEncoder}, in the same order.
+ *
+ * The events are rebuilt with the {@code *EventImpl} classes. The exceptions come back as their
+ * {@link ExceptionSummary} only and the {@link UserDetails} without password.
+ * The events that came from the legacy listeners are rebuilt with the classes of the bridge, keeping their origin.
+ * Only the repeated authentications are rebuilt as a {@link org.jenkinsci.plugins.events.optional.RepeatedEvent}.
+ *
+ * Not thread safe.
+ */
+public final class EventDecoder {
+    private final List<String> dictionary = new ArrayList<>();
+    private long previousTime;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param record positioned on the record, consumed entirely
+     * @throws IOException if the record is invalid, the decoder cannot be used anymore
+     */
+    public @Nonnull EventRecord decode(@Nonnull ByteBuffer record) throws IOException {
+        try {
+            return doDecode(record);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid security event record", e);
+        }
+    }
+
+    public @Nonnull EventRecord decode(@Nonnull byte[] record, int offset, int length) throws IOException {
+        return decode(ByteBuffer.wrap(record, offset, length));
+    }
+
+    /**
+     * To decode a record written right after an {@link EventEncoder#reset()}.
+     */
+    public void reset() {
+        dictionary.clear();
+        previousTime = 0;
+    }
+
+    private EventRecord doDecode(ByteBuffer in) throws IOException {
+        int tag = in.get() & 0xFF;
+        int ordinal = tag & TYPE_MASK;
+        EventType[] types = EventType.values();
+        if (ordinal >= types.length) {
+            throw new IOException("Unknown security event type " + ordinal);
+        }
+        EventType type = types[ordinal];
+        long time = previousTime + unzigzag(readVarLong(in));
+        previousTime = time;
+        String username = readNonNullString(in);
+        String source = readString(in);
+        int repeatCount = (tag & FLAG_REPEATED) != 0 ? readVarInt(in) : 1;
+        List<String> authorities = null;
+        if (type == EventType.LOGGED_IN) {
+            int count = readSize(in);
+            authorities = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                authorities.add(readNonNullString(in));
+            }
+        }
+        UserDetails userDetails = (tag & FLAG_USER_DETAILS) != 0 ? readUserDetails(in, username) : null;
+        String reason = (tag & FLAG_REASON) != 0 ? readString(in) : null;
+        ExceptionSummary summary = (tag & FLAG_EXCEPTION) != 0 ? readExceptionSummary(in, 0) : null;
+        boolean fromLegacy = (tag & FLAG_FROM_LEGACY) != 0;
+
+        SecurityEvent event;
+        switch (type) {
+            case AUTHENTICATED:
+                if (repeatCount != 1) {
+                    event = userDetails != null
+                            ? new CoalescedAuthenticationWithUserDetailsEventImpl(userDetails, source, repeatCount, fromLegacy)
+                            : new CoalescedAuthenticationEventImpl(username, source, repeatCount, fromLegacy);
+                } else if (fromLegacy) {
+                    // the legacy authentications always have user details, unless written by a broken encoder
+                    event = new LegacyAuthenticationEventImpl(userDetails != null ? userDetails
+                            : new User(username, "", true, true, true, true, new GrantedAuthority[0]), nonNull(source));
+                } else if (userDetails != null) {
+                    event = new AuthenticationWithUserDetailsEventImpl(userDetails, source);
+                } else {
+                    event = new AuthenticationEventImpl(username, source);
+                }
+                break;
+            case FAILED_TO_AUTHENTICATE:
+                if (summary != null) {
+                    event = new AuthenticationFailureExceptionEventImpl(username, source, reason, summary);
+                } else if (reason != null) {
+                    event = new AuthenticationFailureExceptionEventImpl(username, source, reason);
+                } else if (fromLegacy) {
+                    // the legacy events carry neither reason nor exception
+                    event = new LegacyAuthenticationFailureEventImpl(username, nonNull(source));
+                } else {
+                    event = new AuthenticationFailureEventImpl(username, source);
+                }
+                break;
+            case LOGGED_IN:
+                event = fromLegacy
+                        ? new LegacyLoginEventImpl(username, nonNull(source))
+                        : new LoginEventImpl(username, source, authorities);
+                break;
+            case FAILED_TO_LOG_IN:
+                if (summary != null) {
+                    event = new LoginFailureExceptionEventImpl(username, source, reason, summary);
+                } else if (reason != null) {
+                    event = new LoginFailureExceptionEventImpl(username, source, reason);
+                } else if (fromLegacy) {
+                    event = new LegacyLoginFailureEventImpl(username, nonNull(source));
+                } else {
+                    event = new LoginFailureEventImpl(username, source);
+                }
+                break;
+            case LOGGED_OUT:
+                event = fromLegacy
+                        ? new LegacyLogoutEventImpl(username, nonNull(source))
+                        : new LogoutEventImpl(username, source);
+                break;
+            default:
+                throw new AssertionError(type);
+        }
+        return new EventRecord(type, time, event);
+    }
+
+    /**
+     * The source of the legacy events is never null, only a corrupted record would lack it
+     */
+    private static @Nonnull String nonNull(@CheckForNull String source) {
+        return source == null ? "" : source;
+    }
+
+    private UserDetails readUserDetails(ByteBuffer in, String username) throws IOException {
+        int flags = in.get() & 0xFF;
+        int count = readSize(in);
+        GrantedAuthority[] authorities = new GrantedAuthority[count];
+        for (int i = 0; i < count; i++) {
+            authorities[i] = new GrantedAuthorityImpl(readNonNullString(in));
+        }
+        return new User(username, "",
+                (flags & ACCOUNT_ENABLED) != 0,
+                (flags & ACCOUNT_NON_EXPIRED) != 0,
+                (flags & CREDENTIALS_NON_EXPIRED) != 0,
+                (flags & ACCOUNT_NON_LOCKED) != 0,
+                authorities);
+    }
+
+    private ExceptionSummary readExceptionSummary(ByteBuffer in, int depth) throws IOException {
+        if (depth >= MAX_CAUSE_DEPTH) {
+            throw new IOException("Too many exception causes");
+        }
+        String className = readNonNullString(in);
+        String message = readString(in);
+        int totalFrames = readVarInt(in);
+        StackTraceElement[] frames = new StackTraceElement[readSize(in)];
+        for (int i = 0; i < frames.length; i++) {
+            String declaringClass = readNonNullString(in);
+            String methodName = readNonNullString(in);
+            String fileName = readString(in);
+            int lineNumber = unzigzag(readVarInt(in));
+            frames[i] = new StackTraceElement(declaringClass, methodName, fileName, lineNumber);
+        }
+        ExceptionSummary cause = in.get() != 0 ? readExceptionSummary(in, depth + 1) : null;
+        return new ExceptionSummary(className, message, frames, totalFrames, cause);
+    }
+
+    private @Nonnull String readNonNullString(ByteBuffer in) throws IOException {
+        String value = readString(in);
+        if (value == null) {
+            throw new IOException("Unexpected null string");
+        }
+        return value;
+    }
+
+    private @CheckForNull String readString(ByteBuffer in) throws IOException {
+        int header = readVarInt(in);
+        if (header == STRING_NULL) {
+            return null;
+        }
+        if (header >= STRING_REFERENCE_BASE) {
+            int index = header - STRING_REFERENCE_BASE;
+            if (index >= dictionary.size()) {
+                throw new IOException("Unknown dictionary entry " + index);
+            }
+            return dictionary.get(index);
+        }
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            in.get(scratch, 0, length);
+            value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        if (header == STRING_LITERAL) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+
+    private static int readSize(ByteBuffer in) throws IOException {
+        int size = readVarInt(in);
+        if (size < 0 || size > MAX_COLLECTION_SIZE) {
+            throw new IOException("Invalid size " + size);
+        }
+        return size;
+    }
+
+    static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.codec;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.LoginEvent;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.optional.EventWithException;
+import org.jenkinsci.plugins.events.optional.ExceptionSummary;
+import org.jenkinsci.plugins.events.optional.RepeatedEvent;
+import org.jenkinsci.plugins.events.optional.UserDetailsProvider;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.jenkinsci.plugins.events.codec.EventCodec.*;
+
+/**
+ * Encode the events of a stream one record at a time, see {@link EventCodec} for the format.
+ * The records must be decoded in the same order by a single {@link EventDecoder}
+ * as they share the dictionary and the time base.
+ *
+ * Not thread safe, the buffer is reused between records.
+ */
+public final class EventEncoder {
+    private final int maxDictionarySize;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    /**
+     * Entries added by the current record, to be able to {@link #rollback()}
+     */
+    private final List<String> added = new ArrayList<>();
+
+    private byte[] buffer = new byte[256];
+    private int length;
+    private long previousTime;
+    private long recordPreviousTime;
+
+    public EventEncoder() {
+        this(DEFAULT_DICTIONARY_SIZE);
+    }
+
+    /**
+     * @param maxDictionarySize number of distinct strings remembered, the next ones are written in full each time
+     */
+    public EventEncoder(int maxDictionarySize) {
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    /**
+     * @return the number of bytes of the record, available from {@link #getBuffer()} until the next call
+     */
+    public int encode(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        length = 0;
+        added.clear();
+        recordPreviousTime = previousTime;
+
+        UserDetails userDetails = event instanceof UserDetailsProvider ? ((UserDetailsProvider) event).getUserDetails() : null;
+        int repeatCount = event instanceof RepeatedEvent ? ((RepeatedEvent) event).getRepeatCount() : 1;
+        String reason = null;
+        ExceptionSummary summary = null;
+        if (event instanceof EventWithException) {
+            reason = ((EventWithException) event).getReason();
+            summary = ((EventWithException) event).getExceptionSummary();
+        }
+
+        int tag = type.ordinal();
+        if (event.isFromLegacy()) {
+            tag |= FLAG_FROM_LEGACY;
+        }
+        if (userDetails != null) {
+            tag |= FLAG_USER_DETAILS;
+        }
+        if (repeatCount != 1) {
+            tag |= FLAG_REPEATED;
+        }
+        if (reason != null) {
+            tag |= FLAG_REASON;
+        }
+        if (summary != null) {
+            tag |= FLAG_EXCEPTION;
+        }
+        writeByte(tag);
+        writeVarLong(zigzag(timeMillis - previousTime));
+        previousTime = timeMillis;
+        writeString(event.getUsername());
+        writeString(event.getSource());
+        if (repeatCount != 1) {
+            writeVarInt(repeatCount);
+        }
+        if (type == EventType.LOGGED_IN) {
+            Set<String> authorities = ((LoginEvent) event).getAuthorities();
+            writeVarInt(authorities.size());
+            for (String authority : authorities) {
+                writeString(authority);
+            }
+        }
+        if (userDetails != null) {
+            writeUserDetails(userDetails);
+        }
+        if (reason != null) {
+            writeString(reason, false);
+        }
+        if (summary != null) {
+            writeExceptionSummary(summary, 0);
+        }
+        return length;
+    }
+
+    /**
+     * Forget the last encoded record, as if it was never encoded, e.g. when it could not be written.
+     * The next records would otherwise refer to dictionary entries the decoder never received.
+     */
+    public void rollback() {
+        for (String value : added) {
+            dictionary.remove(value);
+        }
+        added.clear();
+        previousTime = recordPreviousTime;
+        length = 0;
+    }
+
+    /**
+     * Start over with an empty dictionary and time base, the next record can be decoded
+     * by a new or {@link EventDecoder#reset() reset} decoder.
+     */
+    public void reset() {
+        dictionary.clear();
+        added.clear();
+        previousTime = 0;
+        recordPreviousTime = 0;
+        length = 0;
+    }
+
+    public @Nonnull byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getDictionarySize() {
+        return dictionary.size();
+    }
+
+    private void writeUserDetails(@Nonnull UserDetails userDetails) {
+        int flags = 0;
+        if (userDetails.isEnabled()) {
+            flags |= ACCOUNT_ENABLED;
+        }
+        if (userDetails.isAccountNonExpired()) {
+            flags |= ACCOUNT_NON_EXPIRED;
+        }
+        if (userDetails.isAccountNonLocked()) {
+            flags |= ACCOUNT_NON_LOCKED;
+        }
+        if (userDetails.isCredentialsNonExpired()) {
+            flags |= CREDENTIALS_NON_EXPIRED;
+        }
+        writeByte(flags);
+        GrantedAuthority[] authorities = userDetails.getAuthorities();
+        if (authorities == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(authorities.length);
+        for (GrantedAuthority authority : authorities) {
+            writeString(authority.getAuthority());
+        }
+    }
+
+    private void writeExceptionSummary(@Nonnull ExceptionSummary summary, int depth) {
+        writeString(summary.getClassName());
+        writeString(summary.getMessage(), false);
+        StackTraceElement[] frames = summary.getFrames();
+        writeVarInt(summary.getTotalFrames());
+        writeVarInt(frames.length);
+        for (StackTraceElement frame : frames) {
+            writeString(frame.getClassName());
+            writeString(frame.getMethodName());
+            writeString(frame.getFileName());
+            writeVarInt(zigzag(frame.getLineNumber()));
+        }
+        ExceptionSummary cause = summary.getCause();
+        if (cause != null && depth + 1 < MAX_CAUSE_DEPTH) {
+            writeByte(1);
+            writeExceptionSummary(cause, depth + 1);
+        } else {
+            writeByte(0);
+        }
+    }
+
+    private void writeString(@CheckForNull String value) {
+        writeString(value, true);
+    }
+
+    /**
+     * @param repeated false for values unlikely to appear again, not worth a dictionary entry
+     */
+    private void writeString(@CheckForNull String value, boolean repeated) {
+        if (value == null) {
+            writeVarInt(STRING_NULL);
+            return;
+        }
+        Integer index = dictionary.get(value);
+        if (index != null) {
+            writeVarInt(STRING_REFERENCE_BASE + index);
+            return;
+        }
+        if (repeated && dictionary.size() < maxDictionarySize && value.length() <= MAX_DICTIONARY_STRING_LENGTH) {
+            dictionary.put(value, dictionary.size());
+            added.add(value);
+            writeVarInt(STRING_LITERAL);
+        } else {
+            writeVarInt(STRING_LITERAL_NO_ENTRY);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(length + extra, buffer.length * 2));
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+}
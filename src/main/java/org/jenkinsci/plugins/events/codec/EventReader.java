@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.codec;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Read a stream of events written by an {@link EventWriter}.
+ *
+ * Not thread safe.
+ */
+public final class EventReader implements Closeable {
+    /**
+     * Guard against corrupted input
+     */
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    private final DataInputStream in;
+    private final EventDecoder decoder = new EventDecoder();
+    private byte[] buffer = new byte[256];
+
+    /**
+     * @throws IOException if the stream was not written by an {@link EventWriter} or by a more recent version
+     */
+    public EventReader(@Nonnull InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        if (this.in.readInt() != EventCodec.STREAM_MAGIC) {
+            throw new IOException("Not a security event stream");
+        }
+        int version = readVarInt(true);
+        if (version > EventCodec.FORMAT_VERSION) {
+            throw new IOException("Unsupported security event stream version " + version);
+        }
+    }
+
+    /**
+     * @return null at the end of the stream
+     */
+    public @CheckForNull EventRecord read() throws IOException {
+        int length = readVarInt(false);
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IOException("Invalid record length " + length);
+        }
+        if (buffer.length < length) {
+            buffer = Arrays.copyOf(buffer, Math.max(length, buffer.length * 2));
+        }
+        in.readFully(buffer, 0, length);
+        return decoder.decode(buffer, 0, length);
+    }
+
+    /**
+     * @return -1 if the stream ends before the first byte and that is allowed
+     */
+    private int readVarInt(boolean required) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0 && !required) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.codec;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A decoded event with its type and time.
+ */
+@Immutable
+public final class EventRecord {
+    private final EventType type;
+    private final long timeMillis;
+    private final SecurityEvent event;
+
+    public EventRecord(@Nonnull EventType type, long timeMillis, @Nonnull SecurityEvent event) {
+        this.type = type;
+        this.timeMillis = timeMillis;
+        this.event = event;
+    }
+
+    public @Nonnull EventType getType() {
+        return type;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * @return an instance of the {@link EventType#getEventClass() class} of the type
+     */
+    public @Nonnull SecurityEvent getEvent() {
+        return event;
+    }
+
+    @Override
+    public String toString() {
+        return type + "@" + timeMillis + "[" + event.getUsername() + ", " + event.getSource() + "]";
+    }
+}
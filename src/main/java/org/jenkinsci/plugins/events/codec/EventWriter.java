@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.codec;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write a stream of events: a header with the format version, then each record prefixed by its length as a varint.
+ * To be read by an {@link EventReader}.
+ *
+ * Not thread safe.
+ */
+public final class EventWriter implements Closeable, Flushable {
+    private final DataOutputStream out;
+    private final EventEncoder encoder = new EventEncoder();
+
+    /**
+     * @param out better buffered, the records are written with several small writes
+     */
+    public EventWriter(@Nonnull OutputStream out) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.out.writeInt(EventCodec.STREAM_MAGIC);
+        writeVarInt(EventCodec.FORMAT_VERSION);
+    }
+
+    public void write(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) throws IOException {
+        int length = encoder.encode(type, event, timeMillis);
+        writeVarInt(length);
+        out.write(encoder.getBuffer(), 0, length);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.impl;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable set of authorities stored as a sorted array of interned strings, {@link #contains} being a binary search.
+ *
+ * Users typically have the same authorities from one login to the next, and many users share the same groups.
+ * The sets are then canonicalized through a small bounded cache: when an identical set was built recently,
+ * that instance is returned, and the lookup does not allocate when the authorities are given as a {@link Set}.
+ */
+@Immutable
+public final class AuthoritySet extends AbstractSet<String> {
+    public static final AuthoritySet EMPTY = new AuthoritySet(new String[0], 0);
+
+    private static final int CACHE_SIZE = 4096;
+    /** Direct mapped by hash code, a collision just replaces the previous entry */
+    private static final AuthoritySet[] CACHE = new AuthoritySet[CACHE_SIZE];
+
+    private final String[] authorities;
+    private final int hash;
+
+    private AuthoritySet(@Nonnull String[] sortedAuthorities, int hash) {
+        this.authorities = sortedAuthorities;
+        this.hash = hash;
+    }
+
+    /**
+     * @param authorities not containing null
+     */
+    public static @Nonnull AuthoritySet of(@Nonnull Collection<String> authorities) {
+        if (authorities instanceof AuthoritySet) {
+            return (AuthoritySet) authorities;
+        }
+        if (authorities.isEmpty()) {
+            return EMPTY;
+        }
+
+        if (authorities instanceof Set) {
+            // without duplicates, the same hash, size and elements mean the same set, checked without allocation
+            int hash = 0;
+            for (String authority : authorities) {
+                hash += authority.hashCode();
+            }
+            AuthoritySet cached = CACHE[hash & (CACHE_SIZE - 1)];
+            if (cached != null && cached.hash == hash && cached.size() == authorities.size() && cached.containsAll(authorities)) {
+                return cached;
+            }
+        }
+
+        // any other collection can repeat an authority, only the deduplicated and sorted arrays can be compared
+        AuthoritySet created = create(authorities.toArray(new String[0]));
+        int index = created.hash & (CACHE_SIZE - 1);
+        AuthoritySet cached = CACHE[index];
+        if (cached != null && cached.hash == created.hash && Arrays.equals(cached.authorities, created.authorities)) {
+            return cached;
+        }
+        CACHE[index] = created;
+        return created;
+    }
+
+    /**
+     * @param authorities not containing null
+     */
+    public static @Nonnull AuthoritySet of(@Nonnull String... authorities) {
+        return of(Arrays.asList(authorities));
+    }
+
+    private static @Nonnull AuthoritySet create(@Nonnull String[] authorities) {
+        Arrays.sort(authorities);
+        int size = 0;
+        int hash = 0;
+        for (int i = 0; i < authorities.length; i++) {
+            String authority = authorities[i];
+            if (size == 0 || !authority.equals(authorities[size - 1])) {
+                hash += authority.hashCode();
+                authorities[size++] = authority.intern();
+            }
+        }
+        return new AuthoritySet(size == authorities.length ? authorities : Arrays.copyOf(authorities, size), hash);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof String && Arrays.binarySearch(authorities, o) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return authorities.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof AuthoritySet) {
+            AuthoritySet other = (AuthoritySet) o;
+            return hash == other.hash && Arrays.equals(authorities, other.authorities);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public @Nonnull Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < authorities.length;
+            }
+
+            @Override
+            public String next() {
+                if (next >= authorities.length) {
+                    throw new NoSuchElementException();
+                }
+                return authorities[next++];
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.impl;
+
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.events.optional.ExceptionSummary;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Keeps the exception of a failure event and its {@link ExceptionSummary}, computed on first request.
+ * When {@link #RETAIN_EXCEPTION} is disabled, the summary is taken right away and the exception is not kept.
+ */
+final class ExceptionHolder {
+    static final boolean RETAIN_EXCEPTION =
+            SystemProperties.getBoolean(ExceptionSummary.class.getName() + ".retainException", true);
+
+    static final ExceptionHolder NONE = new ExceptionHolder(null, null);
+
+    private final Exception exception;
+    private volatile ExceptionSummary summary;
+
+    private ExceptionHolder(@CheckForNull Exception exception, @CheckForNull ExceptionSummary summary) {
+        this.exception = exception;
+        this.summary = summary;
+    }
+
+    static ExceptionHolder of(@CheckForNull Exception exception) {
+        if (exception == null) {
+            return NONE;
+        }
+        if (RETAIN_EXCEPTION) {
+            return new ExceptionHolder(exception, null);
+        }
+        return new ExceptionHolder(null, ExceptionSummary.of(exception));
+    }
+
+    static ExceptionHolder of(@CheckForNull ExceptionSummary summary) {
+        return summary == null ? NONE : new ExceptionHolder(null, summary);
+    }
+
+    @CheckForNull Exception getException() {
+        return exception;
+    }
+
+    @CheckForNull ExceptionSummary getSummary() {
+        ExceptionSummary result = summary;
+        if (result == null && exception != null) {
+            // racing threads compute equal summaries, keeping either is fine
+            result = ExceptionSummary.of(exception);
+            summary = result;
+        }
+        return result;
+    }
+}
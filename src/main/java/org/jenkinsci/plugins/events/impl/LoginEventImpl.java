@@ -32,29 +32,37 @@ import java.util.*;
 
 @Immutable
 public class LoginEventImpl extends AbstractSecurityEvent implements LoginEvent {
-    private final Set<String> authorities;
+    private final AuthoritySet authorities;
 
+    /**
+     * @param authorities copied, the event is not impacted by later modifications
+     */
     public LoginEventImpl(@Nonnull String username,
                           @CheckForNull String source,
                           @Nonnull Set<String> authorities) {
         super(username, source);
         assert authorities.stream().allMatch(Objects::nonNull);
 
-        this.authorities = Collections.unmodifiableSet(authorities);
+        this.authorities = AuthoritySet.of(authorities);
     }
 
     public LoginEventImpl(@Nonnull String username,
                           @CheckForNull String source,
                           @Nonnull Collection<String> authorities) {
-        this(username, source, new HashSet<>(authorities));
+        super(username, source);
+        this.authorities = AuthoritySet.of(authorities);
     }
 
     public LoginEventImpl(@Nonnull String username,
                           @CheckForNull String source,
                           String... authorities) {
-        this(username, source, Arrays.asList(authorities));
+        super(username, source);
+        this.authorities = AuthoritySet.of(authorities);
     }
 
+    /**
+     * @return an immutable set, shared with the other events having the same authorities
+     */
     @Override
     public @Nonnull Set<String> getAuthorities() {
         return authorities;
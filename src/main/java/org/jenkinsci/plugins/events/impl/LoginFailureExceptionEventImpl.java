@@ -24,6 +24,7 @@
 package org.jenkinsci.plugins.events.impl;
 
 import org.jenkinsci.plugins.events.optional.EventWithException;
+import org.jenkinsci.plugins.events.optional.ExceptionSummary;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -31,6 +32,8 @@ import javax.annotation.concurrent.Immutable;
 
 /**
  * At least either the reason or the exception is non null.
+ * The exception is not kept when the {@code retainException} system property of {@link ExceptionSummary}
+ * is set to false, only its summary is.
  * In case you do not want to provide such information please use the {@link LoginFailureEventImpl}
  */
 @Immutable
@@ -39,7 +42,7 @@ public class LoginFailureExceptionEventImpl
         implements EventWithException {
 
     private final String reason;
-    private final Exception exception;
+    private final ExceptionHolder exception;
 
     public LoginFailureExceptionEventImpl(@Nonnull String username,
                                           @CheckForNull String source,
@@ -47,7 +50,7 @@ public class LoginFailureExceptionEventImpl
                                           @Nonnull Exception exception) {
         super(username, source);
         this.reason = reason;
-        this.exception = exception;
+        this.exception = ExceptionHolder.of(exception);
     }
 
     /**
@@ -62,7 +65,7 @@ public class LoginFailureExceptionEventImpl
                                           @Nonnull Exception exception) {
         super(username, source);
         this.reason = exception.getMessage();
-        this.exception = exception;
+        this.exception = ExceptionHolder.of(exception);
     }
 
     public LoginFailureExceptionEventImpl(@Nonnull String username,
@@ -70,7 +73,20 @@ public class LoginFailureExceptionEventImpl
                                           @Nonnull String reason) {
         super(username, source);
         this.reason = reason;
-        this.exception = null;
+        this.exception = ExceptionHolder.NONE;
+    }
+
+    /**
+     * When only the summary of the exception is known, e.g. after deserialization,
+     * {@link #getException()} then returns null.
+     */
+    public LoginFailureExceptionEventImpl(@Nonnull String username,
+                                          @CheckForNull String source,
+                                          @CheckForNull String reason,
+                                          @Nonnull ExceptionSummary exceptionSummary) {
+        super(username, source);
+        this.reason = reason;
+        this.exception = ExceptionHolder.of(exceptionSummary);
     }
 
     @Override
@@ -80,6 +96,11 @@ public class LoginFailureExceptionEventImpl
 
     @Override
     public @CheckForNull Exception getException() {
-        return exception;
+        return exception.getException();
+    }
+
+    @Override
+    public @CheckForNull ExceptionSummary getExceptionSummary() {
+        return exception.getSummary();
     }
 }
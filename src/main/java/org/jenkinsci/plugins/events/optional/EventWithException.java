@@ -30,7 +30,21 @@ public interface EventWithException {
         return null;
     }
 
+    /**
+     * @return null if the exception was not kept, see {@link #getExceptionSummary()}
+     */
     default @CheckForNull Exception getException(){
         return null;
     }
+
+    /**
+     * Prefer this over {@link #getException()} when the information needs to be kept around,
+     * e.g. buffered for later processing, to avoid pinning the exception and everything it refers to.
+     *
+     * @return a summary of the exception, available even when the exception itself was not kept
+     */
+    default @CheckForNull ExceptionSummary getExceptionSummary() {
+        Exception exception = getException();
+        return exception == null ? null : ExceptionSummary.of(exception);
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.events.optional;
+
+import jenkins.util.SystemProperties;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+
+/**
+ * Detached view of an {@link Exception}: its class name, message, the top frames of its stack trace
+ * and a summary of its cause. Unlike the exception itself, it does not keep the full stack trace,
+ * the cause objects or whatever state the exception class refers to.
+ */
+@Immutable
+public final class ExceptionSummary {
+    /**
+     * Number of frames kept from the top of the stack trace.
+     */
+    public static final int MAX_FRAMES =
+            Math.max(0, SystemProperties.getInteger(ExceptionSummary.class.getName() + ".maxFrames", 8));
+
+    /**
+     * Causes deeper than this are not summarized, this also protects against cycles.
+     */
+    private static final int MAX_CAUSE_DEPTH = 8;
+
+    private final String className;
+    private final String message;
+    private final StackTraceElement[] frames;
+    private final int totalFrames;
+    private final ExceptionSummary cause;
+
+    private ExceptionSummary(@Nonnull Throwable throwable, int maxFrames, int depth) {
+        this.className = throwable.getClass().getName();
+        this.message = throwable.getMessage();
+        StackTraceElement[] trace = throwable.getStackTrace();
+        this.totalFrames = trace.length;
+        this.frames = trace.length <= maxFrames ? trace : Arrays.copyOf(trace, maxFrames);
+        Throwable c = throwable.getCause();
+        this.cause = c == null || c == throwable || depth >= MAX_CAUSE_DEPTH
+                ? null
+                : new ExceptionSummary(c, maxFrames, depth + 1);
+    }
+
+    /**
+     * Rebuild a summary from its parts, e.g. after deserialization.
+     */
+    public ExceptionSummary(@Nonnull String className, @CheckForNull String message, @Nonnull StackTraceElement[] frames,
+                            int totalFrames, @CheckForNull ExceptionSummary cause) {
+        this.className = className;
+        this.message = message;
+        this.frames = frames.clone();
+        this.totalFrames = Math.max(totalFrames, frames.length);
+        this.cause = cause;
+    }
+
+    public static @Nonnull ExceptionSummary of(@Nonnull Throwable throwable) {
+        return of(throwable, MAX_FRAMES);
+    }
+
+    public static @Nonnull ExceptionSummary of(@Nonnull Throwable throwable, int maxFrames) {
+        return new ExceptionSummary(throwable, Math.max(0, maxFrames), 0);
+    }
+
+    /**
+     * @return the fully qualified name of the exception class
+     */
+    public @Nonnull String getClassName() {
+        return className;
+    }
+
+    public @CheckForNull String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the top frames of the stack trace, at most {@link #MAX_FRAMES} by default
+     */
+    public @Nonnull StackTraceElement[] getFrames() {
+        return frames.clone();
+    }
+
+    /**
+     * @return the number of frames the original stack trace had, including the ones not kept
+     */
+    public int getTotalFrames() {
+        return totalFrames;
+    }
+
+    public @CheckForNull ExceptionSummary getCause() {
+        return cause;
+    }
+
+    /**
+     * Same format as {@link Throwable#printStackTrace()}, limited to the frames that were kept.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    private void appendTo(StringBuilder sb) {
+        sb.append(className);
+        if (message != null) {
+            sb.append(": ").append(message);
+        }
+        for (StackTraceElement frame : frames) {
+            sb.append("\n\tat ").append(frame);
+        }
+        if (totalFrames > frames.length) {
+            sb.append("\n\t... ").append(totalFrames - frames.length).append(" more");
+        }
+        if (cause != null) {
+            sb.append("\nCaused by: ");
+            cause.appendTo(sb);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.impl;
+
+/**
+ * Mark the thread while an event is passed from the new listeners to the legacy ones,
+ * so that the other bridge does not send it back.
+ *
+ * Nothing is added to the event itself, the source is passed unchanged in both directions.
+ * The guard is a mutable depth counter per thread, entering it does not allocate.
+ * It is reentrant: a legacy listener firing another event while bridged stays marked until the outermost call exits.
+ */
+final class BridgeGuard {
+    private static final ThreadLocal<BridgeGuard> CURRENT = ThreadLocal.withInitial(BridgeGuard::new);
+
+    private int depth;
+
+    private BridgeGuard() {
+    }
+
+    /**
+     * @return the guard of the current thread
+     */
+    static BridgeGuard get() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return true if the current thread is passing an event to the legacy listeners
+     */
+    static boolean isBridging() {
+        return CURRENT.get().depth > 0;
+    }
+
+    void enter() {
+        depth++;
+    }
+
+    void exit() {
+        depth--;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.impl;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.audit.AuditLog;
+import org.jenkinsci.plugins.audit.AuditLogListener;
+import org.jenkinsci.plugins.dispatch.AsyncDispatcher;
+import org.jenkinsci.plugins.dispatch.CircuitBreaker;
+import org.jenkinsci.plugins.dispatch.DispatchMetrics;
+import org.jenkinsci.plugins.dispatch.ParallelDispatcher;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.jenkinsci.plugins.journal.Journal;
+import org.jenkinsci.plugins.journal.JournalCursor;
+import org.jenkinsci.plugins.journal.JournalListener;
+import org.jenkinsci.plugins.journal.JournalQuery;
+import org.jenkinsci.plugins.journal.JournalReplay;
+import org.jenkinsci.plugins.journal.ReplayHandle;
+import org.jenkinsci.plugins.tracking.ActiveSessions;
+import org.jenkinsci.plugins.tracking.RecentEvents;
+import org.jenkinsci.plugins.tracking.SessionRegistry;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Expose the state of the security listeners as JSON, for the administrators only
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class SecurityListenerAction implements RootAction {
+    @Override
+    public String getIconFileName() {
+        // not visible in the UI
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Security listeners";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "security-listener";
+    }
+
+    /**
+     * Invocation counts, failures and latencies per listener and per event type, at {@code /security-listener/metrics}
+     */
+    public void doMetrics(StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        writeJSON(rsp, DispatchMetrics.toJSON());
+    }
+
+    /**
+     * Depth and skew of the lanes of the asynchronous dispatch, and the events the parallel dispatch could not deliver
+     * to the non blocking independent listeners, at {@code /security-listener/dispatch}
+     */
+    public void doDispatch(StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        AsyncDispatcher dispatcher = AsyncDispatcher.getInstance();
+        JSONObject json = dispatcher == null ? new JSONObject().element("started", false) : dispatcher.toJSON().element("started", true);
+        writeJSON(rsp, json.element("independentDropped", ParallelDispatcher.getDroppedCount()));
+    }
+
+    /**
+     * State of the circuit breakers per listener, at {@code /security-listener/breakers}
+     */
+    public void doBreakers(StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        writeJSON(rsp, CircuitBreaker.toJSON());
+    }
+
+    /**
+     * State of the event journal and of its last replays, at {@code /security-listener/journal},
+     * with the result of its verification when the {@code verify} parameter is set
+     */
+    public void doJournal(StaplerResponse rsp, @QueryParameter boolean verify) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        JournalListener listener = JournalListener.get();
+        Journal journal = listener == null ? null : listener.getJournal();
+        if (journal == null) {
+            writeJSON(rsp, new JSONObject().element("enabled", false));
+            return;
+        }
+        JSONObject json = journal.toJSON().element("enabled", true);
+        JSONArray replays = new JSONArray();
+        for (ReplayHandle replay : JournalReplay.getReplays()) {
+            replays.element(replay.toJSON());
+        }
+        json.element("replays", replays);
+        if (verify) {
+            json.element("problems", JSONArray.fromObject(journal.verify()));
+        }
+        writeJSON(rsp, json);
+    }
+
+    /**
+     * State of the audit log, at {@code /security-listener/audit}
+     */
+    public void doAudit(StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        AuditLogListener listener = AuditLogListener.get();
+        AuditLog auditLog = listener == null ? null : listener.getAuditLog();
+        if (auditLog == null) {
+            writeJSON(rsp, new JSONObject().element("enabled", false));
+            return;
+        }
+        writeJSON(rsp, auditLog.toJSON().element("enabled", true));
+    }
+
+    /**
+     * The last events kept in memory, of a given user if the {@code username} parameter is set,
+     * at {@code /security-listener/recent}
+     */
+    public void doRecent(StaplerResponse rsp, @QueryParameter String username, @QueryParameter int max) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        RecentEvents recentEvents = RecentEvents.get();
+        if (recentEvents == null || !recentEvents.isEnabled()) {
+            writeJSON(rsp, new JSONObject().element("enabled", false));
+            return;
+        }
+        int limit = max > 0 ? max : 100;
+        List<EventRecord> records = username == null || username.isEmpty()
+                ? recentEvents.getRecentEvents(limit)
+                : recentEvents.getRecentEvents(username, limit);
+        JSONArray events = new JSONArray();
+        for (EventRecord record : records) {
+            events.element(toJSON(record));
+        }
+        writeJSON(rsp, new JSONObject().element("enabled", true).element("events", events));
+    }
+
+    /**
+     * The events of the journal matching the {@code username}, {@code source}, {@code type},
+     * {@code from} and {@code to} (epoch milliseconds) parameters, oldest first,
+     * at most {@code max}, at {@code /security-listener/journalQuery}.
+     * An invalid parameter is answered with a 400 listing the accepted values.
+     */
+    public void doJournalQuery(StaplerResponse rsp,
+                               @QueryParameter String username, @QueryParameter String source, @QueryParameter String type,
+                               @QueryParameter String from, @QueryParameter String to,
+                               @QueryParameter String max) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        EventType eventType = null;
+        if (type != null && !type.isEmpty()) {
+            try {
+                eventType = EventType.valueOf(type);
+            } catch (IllegalArgumentException e) {
+                JSONArray accepted = new JSONArray();
+                for (EventType t : EventType.values()) {
+                    accepted.element(t.name());
+                }
+                badRequest(rsp, "type", type, accepted);
+                return;
+            }
+        }
+        Long fromMillis = parseLong(from, Long.MIN_VALUE);
+        if (fromMillis == null) {
+            badRequest(rsp, "from", from, "epoch milliseconds");
+            return;
+        }
+        Long toMillis = parseLong(to, Long.MAX_VALUE);
+        if (toMillis == null) {
+            badRequest(rsp, "to", to, "epoch milliseconds");
+            return;
+        }
+        Long limit = parseLong(max, 1000);
+        if (limit == null || limit <= 0 || limit > Integer.MAX_VALUE) {
+            badRequest(rsp, "max", max, "a positive number of events");
+            return;
+        }
+
+        JournalListener listener = JournalListener.get();
+        Journal journal = listener == null ? null : listener.getJournal();
+        if (journal == null) {
+            writeJSON(rsp, new JSONObject().element("enabled", false));
+            return;
+        }
+        JournalQuery query = new JournalQuery()
+                .username(emptyToNull(username))
+                .source(emptyToNull(source))
+                .between(fromMillis, toMillis);
+        if (eventType != null) {
+            query.types(eventType);
+        }
+        JSONArray events = new JSONArray();
+        boolean truncated;
+        try (JournalCursor cursor = journal.query(query)) {
+            int count = 0;
+            while (count < limit && cursor.hasNext()) {
+                events.element(toJSON(cursor.next()));
+                count++;
+            }
+            truncated = cursor.hasNext();
+        }
+        writeJSON(rsp, new JSONObject()
+                .element("enabled", true)
+                .element("truncated", truncated)
+                .element("events", events));
+    }
+
+    /**
+     * Number of open sessions, and the sessions of a given user if the {@code username} parameter is set,
+     * at {@code /security-listener/sessions}
+     */
+    public void doSessions(StaplerResponse rsp, @QueryParameter String username) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        ActiveSessions activeSessions = ActiveSessions.get();
+        SessionRegistry registry = activeSessions == null ? null : activeSessions.getRegistry();
+        if (registry == null) {
+            writeJSON(rsp, new JSONObject().element("enabled", false));
+            return;
+        }
+        JSONObject json = new JSONObject()
+                .element("enabled", true)
+                .element("sessions", registry.getSessionCount())
+                .element("users", registry.getUserCount())
+                .element("expired", registry.getExpiredCount())
+                .element("evicted", registry.getEvictedCount());
+        if (username != null && !username.isEmpty()) {
+            JSONArray sessions = new JSONArray();
+            for (SessionRegistry.Session session : registry.getSessions(username)) {
+                sessions.element(new JSONObject()
+                        .element("source", session.getSource())
+                        .element("login", session.getLoginMillis())
+                        .element("lastActivity", session.getLastActivityMillis()));
+            }
+            json.element("userSessions", sessions);
+        }
+        writeJSON(rsp, json);
+    }
+
+    private static @CheckForNull String emptyToNull(@CheckForNull String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * @return null if the value is not a number
+     */
+    private static @CheckForNull Long parseLong(@CheckForNull String value, long defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void badRequest(@Nonnull StaplerResponse rsp, @Nonnull String parameter, @Nonnull String value,
+                                   @Nonnull Object accepted) throws IOException {
+        rsp.setStatus(StaplerResponse.SC_BAD_REQUEST);
+        writeJSON(rsp, new JSONObject()
+                .element("error", "Invalid value for " + parameter + ": " + value)
+                .element("parameter", parameter)
+                .element("accepted", accepted));
+    }
+
+    private static @Nonnull JSONObject toJSON(@Nonnull EventRecord record) {
+        return new JSONObject()
+                .element("type", record.getType().name())
+                .element("time", record.getTimeMillis())
+                .element("username", record.getEvent().getUsername())
+                .element("source", record.getEvent().getSource());
+    }
+
+    private static void writeJSON(@Nonnull StaplerResponse rsp, @Nonnull JSONObject json) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(json.toString(2));
+    }
+}
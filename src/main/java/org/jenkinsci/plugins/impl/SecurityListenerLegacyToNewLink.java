@@ -27,7 +27,7 @@ import hudson.Extension;
 import jenkins.security.SecurityListener;
 import org.acegisecurity.userdetails.UserDetails;
 import org.jenkinsci.plugins.SecurityListener2;
-import org.jenkinsci.plugins.events.*;
+import org.jenkinsci.plugins.events.EventType;
 import org.jenkinsci.plugins.events.impl.*;
 
 import javax.annotation.Nonnull;
@@ -40,8 +40,7 @@ import javax.annotation.Nonnull;
 public class SecurityListenerLegacyToNewLink extends SecurityListener {
 
     /**
-     * Avoid transformation done in the SecurityListener to keep the "sl2:" prefix
-     * added by {@link SecurityListenerNewToLegacyLink}
+     * Avoid transformation done in the SecurityListener, the new listeners receive the original source
      *
      * @param source
      * @return source not changed
@@ -52,72 +51,47 @@ public class SecurityListenerLegacyToNewLink extends SecurityListener {
     }
 
     /*
-     * Implementation details: first lines of each methods ensure we do not trigger infinite loop
+     * Implementation details: first lines of each methods ensure we do not trigger infinite loop,
+     * then that we do not create an event if there are only listeners ignoring it
      */
 
     @Override
     protected void authenticated(@Nonnull UserDetails userDetails, @Nonnull String source) {
-        if (source.startsWith(SOURCE_NEW_SL)) return;
+        if (BridgeGuard.isBridging()) return;
+        if (!SecurityListener2.hasListenersForLegacy(EventType.AUTHENTICATED)) return;
 
-        AuthenticationEvent event = new AuthenticationWithUserDetailsEventImpl(userDetails, source) {
-            @Override
-            public boolean isFromLegacy() {
-                return true;
-            }
-        };
-
-        SecurityListener2.fireAuthenticated(event);
+        SecurityListener2.fireAuthenticated(new LegacyAuthenticationEventImpl(userDetails, source));
     }
 
     @Override
     protected void failedToAuthenticate(@Nonnull String username, @Nonnull String source) {
-        if (source.startsWith(SOURCE_NEW_SL)) return;
+        if (BridgeGuard.isBridging()) return;
+        if (!SecurityListener2.hasListenersForLegacy(EventType.FAILED_TO_AUTHENTICATE)) return;
 
-        AuthenticationFailureEvent event = new AuthenticationFailureEventImpl(username, source) {
-            @Override
-            public boolean isFromLegacy() {
-                return true;
-            }
-        };
-        SecurityListener2.fireFailedToAuthenticate(event);
+        SecurityListener2.fireFailedToAuthenticate(new LegacyAuthenticationFailureEventImpl(username, source));
     }
 
     @Override
     protected void loggedIn(@Nonnull String username, @Nonnull String source) {
-        if (source.startsWith(SOURCE_NEW_SL)) return;
+        if (BridgeGuard.isBridging()) return;
+        if (!SecurityListener2.hasListenersForLegacy(EventType.LOGGED_IN)) return;
 
-        LoginEvent event = new LoginEventImpl(username, source) {
-            @Override
-            public boolean isFromLegacy() {
-                return true;
-            }
-        };
-        SecurityListener2.fireLoggedIn(event);
+        SecurityListener2.fireLoggedIn(new LegacyLoginEventImpl(username, source));
     }
 
     @Override
     protected void failedToLogIn(@Nonnull String username, @Nonnull String source) {
-        if (source.startsWith(SOURCE_NEW_SL)) return;
+        if (BridgeGuard.isBridging()) return;
+        if (!SecurityListener2.hasListenersForLegacy(EventType.FAILED_TO_LOG_IN)) return;
 
-        LoginFailureEvent event = new LoginFailureEventImpl(username, source) {
-            @Override
-            public boolean isFromLegacy() {
-                return true;
-            }
-        };
-        SecurityListener2.fireFailedToLogIn(event);
+        SecurityListener2.fireFailedToLogIn(new LegacyLoginFailureEventImpl(username, source));
     }
 
     @Override
     protected void loggedOut(@Nonnull String username, @Nonnull String source) {
-        if (source.startsWith(SOURCE_NEW_SL)) return;
+        if (BridgeGuard.isBridging()) return;
+        if (!SecurityListener2.hasListenersForLegacy(EventType.LOGGED_OUT)) return;
 
-        LogoutEvent event = new LogoutEventImpl(username, source) {
-            @Override
-            public boolean isFromLegacy() {
-                return true;
-            }
-        };
-        SecurityListener2.fireLoggedOut(event);
+        SecurityListener2.fireLoggedOut(new LegacyLogoutEventImpl(username, source));
     }
 }
@@ -29,34 +29,51 @@ import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.userdetails.User;
 import org.acegisecurity.userdetails.UserDetails;
 import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.Essential;
+import org.jenkinsci.plugins.dispatch.Subscription;
 import org.jenkinsci.plugins.events.*;
 import org.jenkinsci.plugins.events.optional.UserDetailsProvider;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Make the bridge between the SecurityListener 2 and 1
- * by passing the new event to the legacy listeners
+ * by passing the new event to the legacy listeners.
+ * The events coming from the legacy listeners are not routed to it, that would make a loop.
  */
 @Extension
+@Essential
+@Subscription(origins = Subscription.Origin.NEW)
 public class SecurityListenerNewToLegacyLink extends SecurityListener2 {
 
     private static final Logger LOGGER = Logger.getLogger(SecurityListenerNewToLegacyLink.class.getName());
 
     /*
-     * Implementation details: first lines of each methods ensure we do not trigger infinite loop
+     * The legacy fire methods are @Restricted, they are resolved only once here
+     * and then invoked directly, without any lookup or argument array per event.
+     * A null handle means the method was not found, the warning was already logged.
+     */
+    private static final MethodHandle FIRE_AUTHENTICATED = findLegacyFire("fireAuthenticated", UserDetails.class);
+    private static final MethodHandle FIRE_FAILED_TO_AUTHENTICATE = findLegacyFire("fireFailedToAuthenticate", String.class);
+    private static final MethodHandle FIRE_LOGGED_IN = findLegacyFire("fireLoggedIn", String.class);
+    private static final MethodHandle FIRE_FAILED_TO_LOG_IN = findLegacyFire("fireFailedToLogIn", String.class);
+    private static final MethodHandle FIRE_LOGGED_OUT = findLegacyFire("fireLoggedOut", String.class);
+
+    /*
+     * Implementation details: the subscription ensures we do not trigger infinite loop,
+     * the other direction is protected by the BridgeGuard set during the calls to the legacy listeners
      */
 
     @Override
     protected boolean authenticated(@Nonnull AuthenticationEvent event) {
-        if(event.isFromLegacy()) return true;
-
         UserDetails userDetails;
         if (event instanceof UserDetailsProvider) {
             userDetails = ((UserDetailsProvider) event).getUserDetails();
@@ -64,73 +81,107 @@ public class SecurityListenerNewToLegacyLink extends SecurityListener2 {
             userDetails = new LegacyUserDetails(event);
         }
 
-        bypassRestrictedToCall("fireAuthenticated", userDetails, SecurityListener.SOURCE_NEW_PREFIX + event.getSource());
+        callLegacy(FIRE_AUTHENTICATED, "fireAuthenticated", userDetails, event.getSource());
 
         return true;
     }
 
     @Override
     protected boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
-        if(event.isFromLegacy()) return true;
-
-        bypassRestrictedToCall("fireFailedToAuthenticate", event.getUsername(), SecurityListener.SOURCE_NEW_PREFIX + event.getSource());
+        callLegacy(FIRE_FAILED_TO_AUTHENTICATE, "fireFailedToAuthenticate", event.getUsername(), event.getSource());
 
         return true;
     }
 
     @Override
     protected boolean loggedIn(@Nonnull LoginEvent event) {
-        if(event.isFromLegacy()) return true;
-
-        bypassRestrictedToCall("fireLoggedIn", event.getUsername(), SecurityListener.SOURCE_NEW_PREFIX + event.getSource());
+        callLegacy(FIRE_LOGGED_IN, "fireLoggedIn", event.getUsername(), event.getSource());
 
         return true;
     }
 
     @Override
     protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
-        if(event.isFromLegacy()) return true;
-
-        bypassRestrictedToCall("fireFailedToLogIn", event.getUsername(), SecurityListener.SOURCE_NEW_PREFIX + event.getSource());
+        callLegacy(FIRE_FAILED_TO_LOG_IN, "fireFailedToLogIn", event.getUsername(), event.getSource());
 
         return true;
     }
 
     @Override
     protected boolean loggedOut(@Nonnull LogoutEvent event) {
-        if(event.isFromLegacy()) return true;
-
-        bypassRestrictedToCall("fireLoggedOut", event.getUsername(), SecurityListener.SOURCE_NEW_PREFIX + event.getSource());
+        callLegacy(FIRE_LOGGED_OUT, "fireLoggedOut", event.getUsername(), event.getSource());
 
         return true;
     }
 
     /**
-     * Reflection helper to bypass @Restricted methods in SecurityListener
+     * Reflection helper to bypass @Restricted methods in SecurityListener, called once per method.
+     * In case the method with the source parameter is not present, we fall back to the one without it,
+     * the source is then dropped.
      *
-     * @param methodName the method to find in the legacy SecurityListener
-     * @param arguments  the arguments to pass to the method
-     * @return true if the method exists, false otherwise
+     * @param methodName        the static method to find in the legacy SecurityListener
+     * @param firstArgumentType the type of the first parameter, the second being the source
+     * @return a handle of type (firstArgumentType, String)void or null if the method was not found
      */
-    private void bypassRestrictedToCall(String methodName, Object... arguments) {
-        Class<?>[] argumentTypes = new Class[arguments.length];
-        for (int i = 0; i < arguments.length; i++) {
-            argumentTypes[i] = arguments[i].getClass();
+    private static @CheckForNull MethodHandle findLegacyFire(@Nonnull String methodName, @Nonnull Class<?> firstArgumentType) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Method m = SecurityListener.class.getDeclaredMethod(methodName, firstArgumentType, String.class);
+            m.setAccessible(true);
+            return lookup.unreflect(m);
+        } catch (NoSuchMethodException e) {
+            LOGGER.log(Level.FINE, "Method " + methodName + "(" + firstArgumentType.getSimpleName() + ", String) not found in SecurityListener", e);
+        } catch (IllegalAccessException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Method " + methodName + " cannot be accessed in SecurityListener", e);
+            return null;
         }
 
-        Method m;
         try {
-            m = SecurityListener.class.getDeclaredMethod(methodName, argumentTypes);
-        } catch (NoSuchMethodException e) {
-            LOGGER.log(Level.WARNING, "Method " + methodName +" not found in SecurityListener", e);
-            return;
+            Method m = SecurityListener.class.getDeclaredMethod(methodName, firstArgumentType);
+            m.setAccessible(true);
+            LOGGER.log(Level.WARNING, "Method " + methodName + " without source is used as fallback, the sources will not be propagated to legacy listeners");
+            return MethodHandles.dropArguments(lookup.unreflect(m), 1, String.class);
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Method " + methodName + " not found in SecurityListener, the related events will not be propagated to legacy listeners", e);
+            return null;
+        }
+    }
+
+    private static void callLegacy(@CheckForNull MethodHandle fire, @Nonnull String methodName,
+                                   @Nonnull UserDetails userDetails, @Nonnull String source) {
+        if (fire == null) return;
+        BridgeGuard guard = BridgeGuard.get();
+        guard.enter();
+        try {
+            fire.invokeExact(userDetails, source);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Problem during invocation of " + methodName + " in SecurityListener", e);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // the legacy methods do not declare any
+            throw new IllegalStateException("Unexpected checked exception from " + methodName + " in SecurityListener", t);
+        } finally {
+            guard.exit();
         }
+    }
 
-        // static invocation, no need an instance
+    private static void callLegacy(@CheckForNull MethodHandle fire, @Nonnull String methodName,
+                                   @Nonnull String username, @Nonnull String source) {
+        if (fire == null) return;
+        BridgeGuard guard = BridgeGuard.get();
+        guard.enter();
         try {
-            m.invoke(null, arguments);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            LOGGER.log(Level.WARNING, "Problem during invocation of " + methodName +" in SecurityListener", e);
+            fire.invokeExact(username, source);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Problem during invocation of " + methodName + " in SecurityListener", e);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // the legacy methods do not declare any
+            throw new IllegalStateException("Unexpected checked exception from " + methodName + " in SecurityListener", t);
+        } finally {
+            guard.exit();
         }
     }
 
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.impl;
+
+import hudson.init.Terminator;
+import org.jenkinsci.plugins.BatchSecurityListener;
+import org.jenkinsci.plugins.audit.AuditLogListener;
+import org.jenkinsci.plugins.dispatch.AsyncDispatcher;
+import org.jenkinsci.plugins.dispatch.AuthenticationCoalescer;
+import org.jenkinsci.plugins.journal.JournalListener;
+import org.jenkinsci.plugins.tracking.ActiveSessions;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single terminator for the dispatch stages, the order between separate terminators is not defined.
+ *
+ * Each stage can still produce events for the next ones: the coalesced authentications are flushed first,
+ * then the asynchronous dispatch is drained, then the batches are flushed, and the journal and the audit log
+ * are closed last, once they received everything. The session expiry is stopped with them.
+ */
+@Restricted(NoExternalUse.class)
+public final class ShutdownSequence {
+    private static final Logger LOGGER = Logger.getLogger(ShutdownSequence.class.getName());
+
+    private ShutdownSequence() {
+    }
+
+    @Terminator
+    public static void shutdown() {
+        AuthenticationCoalescer.shutdown();
+        boolean interrupted = false;
+        try {
+            AsyncDispatcher.shutdown();
+        } catch (InterruptedException e) {
+            // the recording listeners are still closed, with what they received so far
+            LOGGER.log(Level.WARNING, "Interrupted while draining the security events dispatch", e);
+            interrupted = true;
+        }
+        BatchSecurityListener.flushAll();
+        JournalListener.shutdown();
+        AuditLogListener.shutdown();
+        ActiveSessions.shutdown();
+        if (interrupted) {
+            // restored last, the audit log would not wait for its writer otherwise
+            Thread.currentThread().interrupt();
+        }
+    }
+}
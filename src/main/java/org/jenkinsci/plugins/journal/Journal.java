@@ -0,0 +1,442 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.codec.EventEncoder;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of security events, written to memory-mapped {@link JournalSegment segments}
+ * chained by their seals to make any alteration detectable by {@link #verify()}.
+ *
+ * The records are encoded by an {@link EventEncoder}, reset every few records so each block of records
+ * can be decoded on its own. The {@link SegmentIndex} of each segment locates the blocks by time and by username
+ * for the {@link #query(JournalQuery) queries}.
+ *
+ * A new segment is started when the current one is full, the oldest ones are deleted
+ * according to the retention. The records are forced to the disk following the {@link FsyncPolicy}.
+ *
+ * An I/O error does not propagate to the caller, the record is counted as dropped
+ * and a new segment is tried for the next one.
+ */
+@Restricted(NoExternalUse.class)
+public final class Journal {
+    private static final Logger LOGGER = Logger.getLogger(Journal.class.getName());
+
+    /**
+     * Version of the records payload, written in the header of the segments.
+     * 1 was a fixed width format, 2 is the {@link EventEncoder} format.
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    private static final String PREFIX = Journal.class.getName();
+    private static final int SEGMENT_SIZE =
+            Math.max(64 * 1024, SystemProperties.getInteger(PREFIX + ".segmentSize", 32 * 1024 * 1024));
+    private static final int MAX_SEGMENTS = Math.max(2, SystemProperties.getInteger(PREFIX + ".maxSegments", 32));
+    private static final long RETENTION_MILLIS =
+            TimeUnit.DAYS.toMillis(SystemProperties.getInteger(PREFIX + ".retentionDays", 90));
+    private static final FsyncPolicy FSYNC_POLICY = readFsyncPolicy();
+    private static final int GROUP_COMMIT_RECORDS = SystemProperties.getInteger(PREFIX + ".groupCommitRecords", 1024);
+    private static final long GROUP_COMMIT_INTERVAL_MILLIS = SystemProperties.getLong(PREFIX + ".groupCommitInterval", 200L);
+    /**
+     * Smaller blocks make the queries read less records, at the cost of a larger index and less compression
+     */
+    private static final int BLOCK_RECORDS = Math.max(1, SystemProperties.getInteger(PREFIX + ".blockRecords", 256));
+
+    /**
+     * While the segments cannot be created, the events are dropped without trying again before that delay
+     */
+    private static final long RETRY_DELAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final File directory;
+    private final Object lock = new Object();
+
+    private boolean recovered;
+    private boolean failing;
+    private long retryAtNanos;
+    private long nextSequence;
+    private byte[] lastSeal = new byte[JournalSegment.SEAL_SIZE];
+    private int sinceLastForce;
+    private EventEncoder encoder;
+    private SegmentIndex index;
+    private int recordsInBlock;
+    /**
+     * The periodic force of the {@link FsyncPolicy#GROUP} policy, while a segment is open
+     */
+    private ScheduledFuture<?> flushTask;
+
+    private volatile JournalSegment active;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+
+    public Journal(@Nonnull File directory) {
+        this.directory = directory;
+    }
+
+    private static FsyncPolicy readFsyncPolicy() {
+        String value = SystemProperties.getString(PREFIX + ".fsync", FsyncPolicy.GROUP.name());
+        try {
+            return FsyncPolicy.valueOf(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Unknown fsync policy {0}, using {1}", new Object[]{value, FsyncPolicy.GROUP});
+            return FsyncPolicy.GROUP;
+        }
+    }
+
+    public void append(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        synchronized (lock) {
+            JournalSegment segment = active;
+            if (segment == null) {
+                segment = startSegment();
+                if (segment == null) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+            if (recordsInBlock == BLOCK_RECORDS) {
+                encoder.reset();
+                recordsInBlock = 0;
+            }
+            int length = encoder.encode(type, event, timeMillis);
+            if (!segment.fits(length)) {
+                if (length > JournalSegment.maxPayloadLength(SEGMENT_SIZE)) {
+                    LOGGER.log(Level.FINE, "Security event of {0} bytes is too large for the journal", length);
+                    encoder.rollback();
+                    dropped.incrementAndGet();
+                    return;
+                }
+                sealActive();
+                rotations.incrementAndGet();
+                segment = startSegment();
+                if (segment == null) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                // the dictionary of the new segment starts empty
+                length = encoder.encode(type, event, timeMillis);
+            }
+            if (recordsInBlock == 0) {
+                index.startBlock(segment.getPosition());
+            }
+            segment.append(encoder.getBuffer(), length);
+            index.add(event.getUsername(), timeMillis);
+            recordsInBlock++;
+            appended.incrementAndGet();
+
+            if (FSYNC_POLICY == FsyncPolicy.ALWAYS) {
+                segment.force();
+            } else if (FSYNC_POLICY == FsyncPolicy.GROUP && ++sinceLastForce >= GROUP_COMMIT_RECORDS) {
+                segment.force();
+                sinceLastForce = 0;
+            }
+        }
+    }
+
+    /**
+     * Force the records appended so far to the disk, can be called concurrently to the appends.
+     */
+    public void flush() {
+        JournalSegment segment = active;
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Seal the current segment and stop the periodic force, a later {@link #append} starts a new one.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            if (active != null) {
+                sealActive();
+            }
+        }
+    }
+
+    private void sealActive() {
+        int sealPosition = active.getPosition();
+        lastSeal = active.seal();
+        index.setSeal(sealPosition, lastSeal);
+        try {
+            index.write(active.getFile());
+        } catch (IOException e) {
+            // rebuilt by the next query reading that segment
+            LOGGER.log(Level.WARNING, "Failed to write the index of the security event journal segment " + active.getFile(), e);
+        }
+        active = null;
+        encoder = null;
+        index = null;
+        sinceLastForce = 0;
+    }
+
+    private @CheckForNull JournalSegment startSegment() {
+        if (failing && System.nanoTime() - retryAtNanos < 0) {
+            return null;
+        }
+        try {
+            if (!recovered) {
+                recover();
+                recovered = true;
+            }
+            applyRetention();
+            JournalSegment segment = JournalSegment.create(directory, nextSequence, SEGMENT_SIZE, FORMAT_VERSION, lastSeal, BLOCK_RECORDS);
+            nextSequence++;
+            active = segment;
+            encoder = new EventEncoder();
+            index = new SegmentIndex(BLOCK_RECORDS);
+            recordsInBlock = 0;
+            if (FSYNC_POLICY == FsyncPolicy.GROUP && flushTask == null) {
+                flushTask = Timer.get().scheduleWithFixedDelay(this::flush,
+                        GROUP_COMMIT_INTERVAL_MILLIS, GROUP_COMMIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (failing) {
+                LOGGER.log(Level.INFO, "Security event journal writing again to {0}", segment.getFile());
+                failing = false;
+            }
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            if (!failing) {
+                LOGGER.log(Level.WARNING, "Failed to start a security event journal segment in " + directory, e);
+                failing = true;
+            }
+            retryAtNanos = System.nanoTime() + RETRY_DELAY_NANOS;
+            return null;
+        }
+    }
+
+    /**
+     * Continue the chain from the last segment, sealing it if the previous run did not.
+     */
+    private void recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        List<File> files = listSegments();
+        if (files.isEmpty()) {
+            return;
+        }
+        File last = files.get(files.size() - 1);
+        nextSequence = JournalSegment.sequenceOf(last) + 1;
+        JournalSegment segment = JournalSegment.open(last, true, null);
+        byte[] seal = segment.getSeal();
+        if (seal == null) {
+            LOGGER.log(Level.INFO, "Sealing the security event journal segment {0} after {1} records{2}", new Object[]{
+                    last, segment.getRecordCount(), segment.isCorrupted() ? ", the rest was not completely written" : ""
+            });
+            seal = segment.seal();
+        }
+        lastSeal = seal;
+    }
+
+    private void applyRetention() {
+        List<File> files = listSegments();
+        long oldest = System.currentTimeMillis() - RETENTION_MILLIS;
+        // one slot is kept for the segment about to be created
+        int excess = files.size() - (MAX_SEGMENTS - 1);
+        for (File file : files) {
+            if (excess <= 0 && (RETENTION_MILLIS <= 0 || file.lastModified() >= oldest)) {
+                break;
+            }
+            File indexFile = SegmentIndex.fileFor(file);
+            if (indexFile.exists() && !indexFile.delete()) {
+                LOGGER.log(Level.FINE, "Failed to delete the security event journal index {0}", indexFile);
+            }
+            if (file.delete()) {
+                LOGGER.log(Level.FINE, "Deleted the security event journal segment {0}", file);
+            } else {
+                LOGGER.log(Level.WARNING, "Failed to delete the security event journal segment {0}", file);
+            }
+            excess--;
+        }
+    }
+
+    /**
+     * @return the segment files ordered by sequence
+     */
+    @Nonnull List<File> listSegments() {
+        File[] files = directory.listFiles(f -> JournalSegment.sequenceOf(f) >= 0);
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> result = new ArrayList<>(Arrays.asList(files));
+        result.sort((a, b) -> Long.compare(JournalSegment.sequenceOf(a), JournalSegment.sequenceOf(b)));
+        return result;
+    }
+
+    /**
+     * Stream the matching events, oldest first, without loading the segments on the heap.
+     */
+    public @Nonnull JournalCursor query(@Nonnull JournalQuery query) {
+        return new JournalCursor(this, query, listSegmentsToRead());
+    }
+
+    /**
+     * @return the segment files ordered by sequence, after the recovery of the last one if it was not done yet
+     */
+    @Nonnull List<File> listSegmentsToRead() {
+        synchronized (lock) {
+            if (!recovered) {
+                try {
+                    recover();
+                    recovered = true;
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to recover the security event journal in " + directory, e);
+                }
+            }
+        }
+        return listSegments();
+    }
+
+    /**
+     * @return the positions of the blocks of the segment to read for the query
+     */
+    @Nonnull int[] findBlocks(@Nonnull File file, @Nonnull JournalSegment.Reader reader, @Nonnull JournalQuery query) throws IOException {
+        synchronized (lock) {
+            JournalSegment segment = active;
+            if (segment != null && segment.getFile().equals(file)) {
+                return index.findBlocks(query.getUsername(), query.getFromMillis(), query.getToMillis());
+            }
+        }
+        SegmentIndex segmentIndex = SegmentIndex.read(file, reader);
+        if (segmentIndex == null) {
+            segmentIndex = SegmentIndex.build(reader);
+            if (segmentIndex.isSealed()) {
+                try {
+                    segmentIndex.write(file);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to write the rebuilt index of the security event journal segment " + file, e);
+                }
+            }
+        }
+        return segmentIndex.findBlocks(query.getUsername(), query.getFromMillis(), query.getToMillis());
+    }
+
+    /**
+     * Check the records and the seal of every sealed segment and the chain between them.
+     * The segment being written is only checked against the seal of the previous one.
+     * The oldest remaining segment cannot be checked against the ones removed by the retention.
+     *
+     * @return the problems found, empty if the journal is intact
+     */
+    public @Nonnull List<String> verify() {
+        List<String> problems = new ArrayList<>();
+        JournalSegment current = active;
+        byte[] expectedPrevious = null;
+        long expectedSequence = -1;
+        for (File file : listSegments()) {
+            long sequence = JournalSegment.sequenceOf(file);
+            if (expectedSequence >= 0 && sequence != expectedSequence) {
+                problems.add("Missing segments before " + file.getName());
+                expectedPrevious = null;
+            }
+            expectedSequence = sequence + 1;
+            JournalSegment segment;
+            try {
+                segment = JournalSegment.open(file, false, null);
+            } catch (IOException e) {
+                problems.add("Cannot read " + file.getName() + ": " + e.getMessage());
+                expectedPrevious = null;
+                continue;
+            }
+            if (expectedPrevious != null && !Arrays.equals(expectedPrevious, segment.getPreviousSeal())) {
+                problems.add("Chain broken between " + file.getName() + " and the previous segment");
+            }
+            if (current != null && current.getSequence() == sequence) {
+                break;
+            }
+            byte[] seal = segment.getSeal();
+            if (segment.isCorrupted()) {
+                problems.add("Invalid record in " + file.getName() + " after " + segment.getRecordCount() + " records");
+            }
+            if (seal == null) {
+                problems.add("Segment " + file.getName() + " is not sealed");
+            } else if (!Arrays.equals(seal, segment.computeSeal())) {
+                problems.add("Seal mismatch in " + file.getName());
+            } else if (!segment.isKeyed()) {
+                problems.add("Segment " + file.getName() + " is sealed without a key, its records can be altered without detection");
+            }
+            expectedPrevious = seal;
+        }
+        return problems;
+    }
+
+    public @Nonnull File getDirectory() {
+        return directory;
+    }
+
+    public long getAppendedCount() {
+        return appended.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public @Nonnull JSONObject toJSON() {
+        JSONObject json = new JSONObject()
+                .element("directory", directory.getAbsolutePath())
+                .element("formatVersion", FORMAT_VERSION)
+                .element("segmentSize", SEGMENT_SIZE)
+                .element("maxSegments", MAX_SEGMENTS)
+                .element("retentionDays", TimeUnit.MILLISECONDS.toDays(RETENTION_MILLIS))
+                .element("fsync", FSYNC_POLICY.name())
+                .element("appended", appended.get())
+                .element("dropped", dropped.get())
+                .element("rotations", rotations.get())
+                .element("segments", listSegments().size());
+        JournalSegment segment = active;
+        if (segment != null) {
+            json.element("activeSegment", segment.getFile().getName())
+                    .element("activeRecords", segment.getRecordCount())
+                    .element("activeBytes", segment.getPosition());
+        }
+        return json;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import org.jenkinsci.plugins.events.codec.EventDecoder;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stream the events of the journal matching a {@link JournalQuery}, oldest segment first.
+ *
+ * The segments are read through read only mappings and decoded one record at a time,
+ * only the blocks selected by the {@link SegmentIndex} are read.
+ * A segment that cannot be read, e.g. removed by the retention meanwhile, is skipped.
+ * The events appended to the segment being written after the creation of the cursor may or may not be returned.
+ * Closed once done with, so that the mapping of the segment being read is released.
+ */
+@Restricted(NoExternalUse.class)
+public final class JournalCursor implements Iterator<EventRecord>, Closeable {
+    private static final Logger LOGGER = Logger.getLogger(JournalCursor.class.getName());
+
+    private final Journal journal;
+    private final JournalQuery query;
+    private final Iterator<File> segments;
+    private final EventDecoder decoder = new EventDecoder();
+
+    private File segmentFile;
+    private JournalSegment.Reader reader;
+    private int[] blocks;
+    private int nextBlock;
+    private int blockRecords;
+    private int remainingInBlock;
+
+    private EventRecord next;
+
+    JournalCursor(@Nonnull Journal journal, @Nonnull JournalQuery query, @Nonnull List<File> segments) {
+        this.journal = journal;
+        this.query = query;
+        this.segments = segments.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public EventRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        EventRecord result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Release the segment being read, no more events are returned
+     */
+    @Override
+    public void close() {
+        while (segments.hasNext()) {
+            segments.next();
+        }
+        reader = null;
+        blocks = null;
+        next = null;
+    }
+
+    private EventRecord advance() {
+        while (true) {
+            if (reader != null && remainingInBlock > 0) {
+                ByteBuffer payload = reader.next();
+                if (payload == null) {
+                    remainingInBlock = 0;
+                    continue;
+                }
+                remainingInBlock--;
+                EventRecord record;
+                try {
+                    record = decoder.decode(payload);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Skipping the rest of the security event journal segment " + segmentFile, e);
+                    reader = null;
+                    continue;
+                }
+                if (query.matches(record)) {
+                    return record;
+                }
+            } else if (reader != null && nextBlock < blocks.length) {
+                reader.seek(blocks[nextBlock++]);
+                decoder.reset();
+                remainingInBlock = blockRecords;
+            } else if (segments.hasNext()) {
+                openSegment(segments.next());
+            } else {
+                reader = null;
+                return null;
+            }
+        }
+    }
+
+    private void openSegment(@Nonnull File file) {
+        segmentFile = file;
+        reader = null;
+        try {
+            JournalSegment.Reader r = new JournalSegment.Reader(file);
+            if (r.getFormatVersion() != Journal.FORMAT_VERSION || r.getBlockRecords() <= 0) {
+                LOGGER.log(Level.FINE, "Skipping the security event journal segment {0} of format {1}",
+                        new Object[]{file, r.getFormatVersion()});
+                return;
+            }
+            blocks = journal.findBlocks(file, r, query);
+            blockRecords = r.getBlockRecords();
+            nextBlock = 0;
+            remainingInBlock = 0;
+            reader = r;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Skipping the security event journal segment " + file, e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.Asynchronous;
+import org.jenkinsci.plugins.dispatch.Essential;
+import org.jenkinsci.plugins.dispatch.EventTime;
+import org.jenkinsci.plugins.events.AuthenticationEvent;
+import org.jenkinsci.plugins.events.AuthenticationFailureEvent;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.LoginEvent;
+import org.jenkinsci.plugins.events.LoginFailureEvent;
+import org.jenkinsci.plugins.events.LogoutEvent;
+import org.jenkinsci.plugins.events.SecurityEvent;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+
+/**
+ * Record every security event in the {@link Journal}, from the dispatch threads.
+ *
+ * Disabled by default, enabled with the system property {@code org.jenkinsci.plugins.journal.JournalListener.enabled}.
+ * The journal is written in {@code $JENKINS_HOME/security-events/journal} unless the system property
+ * {@code org.jenkinsci.plugins.journal.JournalListener.directory} says otherwise.
+ */
+@Extension
+@Essential
+@Asynchronous
+public class JournalListener extends SecurityListener2 {
+    private static final String PREFIX = JournalListener.class.getName();
+    private static final boolean ENABLED = SystemProperties.getBoolean(PREFIX + ".enabled", false);
+
+    private volatile Journal journal;
+
+    public static @CheckForNull JournalListener get() {
+        return ExtensionList.lookup(SecurityListener2.class).get(JournalListener.class);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * @return null if the journal is disabled
+     */
+    public @CheckForNull Journal getJournal() {
+        if (!ENABLED) {
+            return null;
+        }
+        Journal result = journal;
+        if (result == null) {
+            synchronized (this) {
+                result = journal;
+                if (result == null) {
+                    journal = result = new Journal(getDirectory());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static @Nonnull File getDirectory() {
+        String directory = SystemProperties.getString(PREFIX + ".directory");
+        if (directory != null) {
+            return new File(directory);
+        }
+        return new File(new File(Jenkins.getActiveInstance().getRootDir(), "security-events"), "journal");
+    }
+
+    @Override
+    protected boolean authenticated(@Nonnull AuthenticationEvent event) {
+        append(EventType.AUTHENTICATED, event);
+        return true;
+    }
+
+    @Override
+    protected boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
+        append(EventType.FAILED_TO_AUTHENTICATE, event);
+        return true;
+    }
+
+    @Override
+    protected boolean loggedIn(@Nonnull LoginEvent event) {
+        append(EventType.LOGGED_IN, event);
+        return true;
+    }
+
+    @Override
+    protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
+        append(EventType.FAILED_TO_LOG_IN, event);
+        return true;
+    }
+
+    @Override
+    protected boolean loggedOut(@Nonnull LogoutEvent event) {
+        append(EventType.LOGGED_OUT, event);
+        return true;
+    }
+
+    private void append(@Nonnull EventType type, @Nonnull SecurityEvent event) {
+        Journal j = getJournal();
+        if (j != null) {
+            // the time the event was fired, it may have waited in the dispatch queue
+            j.append(type, event, EventTime.currentMillis());
+        }
+    }
+
+    /**
+     * Seal the current segment, the events delivered later are written to a new one.
+     * Called by {@link org.jenkinsci.plugins.impl.ShutdownSequence} once the asynchronous dispatch is drained.
+     */
+    public static void shutdown() {
+        JournalListener listener = get();
+        if (listener != null && listener.journal != null) {
+            listener.journal.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.EnumSet;
+
+/**
+ * Criteria of a {@link Journal#query(JournalQuery)}, all of them must match. By default everything matches.
+ */
+@Restricted(NoExternalUse.class)
+public final class JournalQuery {
+    private String username;
+    private String source;
+    private long fromMillis = Long.MIN_VALUE;
+    private long toMillis = Long.MAX_VALUE;
+    private EnumSet<EventType> types = EnumSet.allOf(EventType.class);
+
+    /**
+     * Answered from the per username index, only the blocks containing its events are read
+     */
+    public @Nonnull JournalQuery username(@CheckForNull String username) {
+        this.username = username;
+        return this;
+    }
+
+    public @Nonnull JournalQuery source(@CheckForNull String source) {
+        this.source = source;
+        return this;
+    }
+
+    /**
+     * Answered from the time index, only the blocks overlapping the range are read
+     *
+     * @param fromMillis inclusive
+     * @param toMillis exclusive
+     */
+    public @Nonnull JournalQuery between(long fromMillis, long toMillis) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        return this;
+    }
+
+    public @Nonnull JournalQuery types(@Nonnull EventType first, @Nonnull EventType... rest) {
+        this.types = EnumSet.of(first, rest);
+        return this;
+    }
+
+    public @CheckForNull String getUsername() {
+        return username;
+    }
+
+    public @CheckForNull String getSource() {
+        return source;
+    }
+
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    boolean matches(@Nonnull EventRecord record) {
+        return types.contains(record.getType())
+                && record.getTimeMillis() >= fromMillis && record.getTimeMillis() < toMillis
+                && (username == null || username.equals(record.getEvent().getUsername()))
+                && (source == null || source.equals(record.getEvent().getSource()));
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.DispatchTable;
+import org.jenkinsci.plugins.events.codec.EventDecoder;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stream the events of the {@link Journal} to the {@link Replayable} listeners, in the background,
+ * so that they rebuild their state after a restart.
+ *
+ * The blocks of the segments are decoded in batches by a pool of threads, in parallel across and within the segments.
+ * The decoded batches are then delivered in the order of the journal by partition workers,
+ * each one replaying the events of the usernames it owns, so that the events of a user keep their order.
+ * The listeners that are not partitionable are replayed by a single worker, in the order of the journal.
+ * The number of batches decoded ahead of the slowest worker is bounded.
+ *
+ * A single pass over the journal serves all the listeners, each one only receiving the events within its horizon.
+ */
+@Restricted(NoExternalUse.class)
+public final class JournalReplay {
+    private static final Logger LOGGER = Logger.getLogger(JournalReplay.class.getName());
+
+    private static final String PREFIX = JournalReplay.class.getName();
+    static final long DEFAULT_HORIZON_MILLIS = TimeUnit.HOURS.toMillis(SystemProperties.getLong(PREFIX + ".horizonHours", 168L));
+    private static final boolean AT_STARTUP = SystemProperties.getBoolean(PREFIX + ".atStartup", true);
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    private static final int DECODERS = Math.max(1, SystemProperties.getInteger(PREFIX + ".decoders", Math.min(CPUS, 4)));
+    private static final int PARTITIONS = Math.max(1, SystemProperties.getInteger(PREFIX + ".partitions", Math.min(CPUS, 4)));
+    private static final int BATCH_BLOCKS = Math.max(1, SystemProperties.getInteger(PREFIX + ".batchBlocks", 16));
+    private static final int MAX_BATCHES_AHEAD = 4 * DECODERS;
+    private static final int MAX_REMEMBERED = 16;
+
+    private static final Future<List<EventRecord>> END = CompletableFuture.completedFuture(Collections.emptyList());
+
+    private static final List<ReplayHandle> REPLAYS = new CopyOnWriteArrayList<>();
+
+    private final Journal journal;
+    private final Replayable[] listeners;
+    private final long[] listenerFromMillis;
+    private final ReplayHandle handle;
+    private volatile boolean failureLogged;
+
+    private JournalReplay(@Nonnull Journal journal, @Nonnull List<? extends Replayable> listeners, long toMillis) {
+        this.journal = journal;
+        this.listeners = listeners.toArray(new Replayable[0]);
+        this.listenerFromMillis = new long[this.listeners.length];
+        long fromMillis = toMillis;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < this.listeners.length; i++) {
+            if (!(this.listeners[i] instanceof SecurityListener2)) {
+                throw new IllegalArgumentException("Not a SecurityListener2: " + this.listeners[i].getClass().getName());
+            }
+            listenerFromMillis[i] = toMillis - Math.max(0, this.listeners[i].getReplayHorizonMillis());
+            fromMillis = Math.min(fromMillis, listenerFromMillis[i]);
+            names.add(this.listeners[i].getClass().getName());
+        }
+        this.handle = new ReplayHandle(names, fromMillis, toMillis);
+    }
+
+    /**
+     * Replay the journal to the enabled {@link Replayable} listeners, once the extensions and the jobs are loaded.
+     * Returns immediately, the startup is not delayed by the replay.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replayAtStartup() {
+        if (!AT_STARTUP) {
+            return;
+        }
+        JournalListener journalListener = JournalListener.get();
+        Journal journal = journalListener == null ? null : journalListener.getJournal();
+        if (journal == null) {
+            return;
+        }
+        List<Replayable> listeners = new ArrayList<>();
+        for (SecurityListener2 listener : ExtensionList.lookup(SecurityListener2.class)) {
+            if (listener instanceof Replayable && listener.isEnabled() && ((Replayable) listener).getReplayHorizonMillis() > 0) {
+                listeners.add((Replayable) listener);
+            }
+        }
+        if (!listeners.isEmpty()) {
+            start(journal, listeners);
+        }
+    }
+
+    /**
+     * Replay, from a background thread, the events recorded until now, each listener from its own horizon.
+     *
+     * @param listeners the {@link SecurityListener2} to replay to, their subscriptions apply
+     * @throws IllegalArgumentException if one of the listeners is not a {@link SecurityListener2}
+     */
+    public static @Nonnull ReplayHandle start(@Nonnull Journal journal, @Nonnull List<? extends Replayable> listeners) {
+        JournalReplay replay = new JournalReplay(journal, listeners, System.currentTimeMillis());
+        REPLAYS.add(replay.handle);
+        while (REPLAYS.size() > MAX_REMEMBERED) {
+            REPLAYS.remove(0);
+        }
+        Thread thread = new Thread(replay::run, "JournalReplay");
+        thread.setDaemon(true);
+        thread.start();
+        return replay.handle;
+    }
+
+    /**
+     * @return the last replays, oldest first
+     */
+    public static @Nonnull List<ReplayHandle> getReplays() {
+        return Collections.unmodifiableList(new ArrayList<>(REPLAYS));
+    }
+
+    private void run() {
+        for (Replayable listener : listeners) {
+            try {
+                listener.replayStarted(handle);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Listener " + listener.getClass().getName() + " failed to start its replay", e);
+            }
+        }
+
+        List<Worker> workers = createWorkers();
+        ThreadFactory threadFactory = new NamingThreadFactory(new DaemonThreadFactory(), "JournalReplay");
+        ExecutorService decoders = Executors.newFixedThreadPool(DECODERS, threadFactory);
+        for (Worker worker : workers) {
+            threadFactory.newThread(worker).start();
+        }
+        try {
+            readSegments(decoders, workers);
+        } catch (InterruptedException e) {
+            handle.cancel();
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            handle.cancel();
+            LOGGER.log(Level.WARNING, "Failed to replay the security event journal", e);
+        } finally {
+            for (Worker worker : workers) {
+                worker.finish();
+            }
+            decoders.shutdownNow();
+            handle.complete();
+            LOGGER.log(Level.INFO, "Replayed {0} security events from the journal in {1} ms",
+                    new Object[]{handle.getReplayedCount(), handle.getDurationMillis()});
+            for (Replayable listener : listeners) {
+                try {
+                    listener.replayCompleted(handle);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Listener " + listener.getClass().getName() + " failed to complete its replay", e);
+                }
+            }
+        }
+    }
+
+    private @Nonnull List<Worker> createWorkers() {
+        List<Integer> partitionable = new ArrayList<>();
+        List<Integer> sequential = new ArrayList<>();
+        for (int i = 0; i < listeners.length; i++) {
+            (listeners[i].isReplayPartitionable() ? partitionable : sequential).add(i);
+        }
+        List<Worker> workers = new ArrayList<>();
+        if (!partitionable.isEmpty()) {
+            for (int i = 0; i < PARTITIONS; i++) {
+                workers.add(new Worker(partitionable, i, PARTITIONS));
+            }
+        }
+        if (!sequential.isEmpty()) {
+            workers.add(new Worker(sequential, 0, 1));
+        }
+        return workers;
+    }
+
+    private void readSegments(@Nonnull ExecutorService decoders, @Nonnull List<Worker> workers) throws InterruptedException {
+        JournalQuery query = new JournalQuery().between(handle.getFromMillis(), handle.getToMillis());
+        for (File file : journal.listSegmentsToRead()) {
+            if (handle.isCancelled()) {
+                return;
+            }
+            JournalSegment.Reader reader;
+            int[] blocks;
+            try {
+                reader = new JournalSegment.Reader(file);
+                if (reader.getFormatVersion() != Journal.FORMAT_VERSION || reader.getBlockRecords() <= 0) {
+                    LOGGER.log(Level.FINE, "Skipping the security event journal segment {0} of format {1}",
+                            new Object[]{file, reader.getFormatVersion()});
+                    continue;
+                }
+                blocks = journal.findBlocks(file, reader, query);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Skipping the security event journal segment " + file, e);
+                continue;
+            }
+            for (int i = 0; i < blocks.length && !handle.isCancelled(); i += BATCH_BLOCKS) {
+                int[] batch = Arrays.copyOfRange(blocks, i, Math.min(blocks.length, i + BATCH_BLOCKS));
+                Future<List<EventRecord>> decoded = decoders.submit(() -> decode(file, reader, batch));
+                for (Worker worker : workers) {
+                    worker.queue.put(decoded);
+                }
+            }
+        }
+    }
+
+    private @Nonnull List<EventRecord> decode(@Nonnull File file, @Nonnull JournalSegment.Reader segmentReader, @Nonnull int[] blocks) {
+        JournalSegment.Reader reader = new JournalSegment.Reader(segmentReader);
+        EventDecoder decoder = new EventDecoder();
+        int blockRecords = reader.getBlockRecords();
+        long fromMillis = handle.getFromMillis();
+        long toMillis = handle.getToMillis();
+        List<EventRecord> records = new ArrayList<>(blocks.length * blockRecords);
+        try {
+            for (int block : blocks) {
+                reader.seek(block);
+                decoder.reset();
+                for (int i = 0; i < blockRecords; i++) {
+                    ByteBuffer payload = reader.next();
+                    if (payload == null) {
+                        break;
+                    }
+                    EventRecord record = decoder.decode(payload);
+                    if (record.getTimeMillis() >= fromMillis && record.getTimeMillis() < toMillis) {
+                        records.add(record);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Skipping unreadable events of the security event journal segment " + file, e);
+        }
+        return records;
+    }
+
+    private static int partitionOf(@Nonnull String username, int partitions) {
+        int h = username.hashCode();
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Deliver the decoded batches, in order, to some listeners, for the usernames of its partition
+     */
+    private final class Worker implements Runnable {
+        private final BlockingQueue<Future<List<EventRecord>>> queue = new ArrayBlockingQueue<>(MAX_BATCHES_AHEAD);
+        private final Replayable[] targets;
+        private final long[] targetFromMillis;
+        private final int partition;
+        private final int partitions;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Worker(@Nonnull List<Integer> listenerIndexes, int partition, int partitions) {
+            this.targets = new Replayable[listenerIndexes.size()];
+            this.targetFromMillis = new long[listenerIndexes.size()];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = listeners[listenerIndexes.get(i)];
+                targetFromMillis[i] = listenerFromMillis[listenerIndexes.get(i)];
+            }
+            this.partition = partition;
+            this.partitions = partitions;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    try {
+                        Future<List<EventRecord>> batch = queue.take();
+                        if (batch == END) {
+                            return;
+                        }
+                        if (!handle.isCancelled()) {
+                            deliver(batch.get());
+                        }
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.WARNING, "Failed to decode the security event journal", e.getCause());
+                    } catch (RuntimeException e) {
+                        // skip the batch but keep draining the queue, the reading thread could be blocked on it
+                        handle.recordFailure();
+                        LOGGER.log(Level.WARNING, "Failed to replay a batch of the security event journal", e);
+                    } catch (InterruptedException e) {
+                        // keep draining the queue until the end, the reading thread could be blocked on it
+                        handle.cancel();
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void deliver(@Nonnull List<EventRecord> records) {
+            int delivered = 0;
+            DispatchTable table = DispatchTable.get();
+            for (EventRecord record : records) {
+                if (partitions > 1 && partitionOf(record.getEvent().getUsername(), partitions) != partition) {
+                    continue;
+                }
+                // the subscriptions apply to the replayed events like to the live ones
+                long[] route = table.route(record.getEvent());
+                try {
+                    for (int i = 0; i < targets.length; i++) {
+                        if (record.getTimeMillis() < targetFromMillis[i]
+                                || !table.accepts(route, (SecurityListener2) targets[i], record.getType())) {
+                            continue;
+                        }
+                        try {
+                            targets[i].replay(record);
+                            delivered++;
+                        } catch (RuntimeException e) {
+                            handle.recordFailure();
+                            Level level = failureLogged ? Level.FINE : Level.WARNING;
+                            failureLogged = true;
+                            LOGGER.log(level, "Listener " + targets[i].getClass().getName() + " failed to replay " + record.getType(), e);
+                        }
+                    }
+                } finally {
+                    DispatchTable.release(route);
+                }
+            }
+            handle.recordReplayed(delivered);
+        }
+
+        /**
+         * Wait for the batches already queued to be delivered
+         */
+        void finish() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import jenkins.security.HMACConfidentialKey;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import javax.crypto.Mac;
+
+/**
+ * One memory-mapped file of the {@link Journal}, preallocated to its full size.
+ *
+ * The layout is independent from the format of the records payload:
+ * <pre>
+ * header  : magic (4) | format version (4) | sequence (8) | creation time (8) | seal of the previous segment (32)
+ *           | records per block (4) | flags (4)
+ * record  : payload length (4) | CRC32 of the payload (4) | payload
+ * seal    : same as a record, its payload is SEAL_KIND (1) | time (8) | record count (8) | seal (32)
+ * </pre>
+ * A zero length marks the end of the written records.
+ * The records are grouped in blocks of a fixed number of records, each block can be decoded on its own,
+ * see {@link SegmentIndex}.
+ * The seal is the HMAC-SHA256 of the previous seal followed by all the records, length and CRC included,
+ * so altering, removing or reordering records or segments breaks the chain. Its key is stored with the other
+ * secrets of $JENKINS_HOME, someone able to write the journal but not to read the secrets cannot recompute it.
+ * The segments written before the key was used have a plain SHA-256 seal and no {@link #FLAG_KEYED} flag,
+ * they are still checked but can be rewritten undetected.
+ *
+ * Not thread safe, except {@link #force()} that can be called concurrently to the appends.
+ */
+final class JournalSegment {
+    static final int MAGIC = 0x534C4A31;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int SEAL_SIZE = 32;
+    static final byte SEAL_KIND = 0x7F;
+    static final String EXTENSION = ".seg";
+    /**
+     * Set in the header flags when the seal is keyed
+     */
+    static final int FLAG_KEYED = 1;
+
+    private static final HMACConfidentialKey SEAL_KEY = new HMACConfidentialKey(JournalSegment.class, "seal");
+
+    private static final int SEAL_PAYLOAD_SIZE = 1 + 8 + 8 + SEAL_SIZE;
+    /**
+     * Always kept free so the segment can be sealed
+     */
+    private static final int SEAL_RECORD_SIZE = RECORD_HEADER_SIZE + SEAL_PAYLOAD_SIZE;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int formatVersion;
+    private final long sequence;
+    private final long createdMillis;
+    private final byte[] previousSeal;
+    private final int blockRecords;
+    private final boolean keyed;
+
+    /** Computing the seal, only one of them is set depending on {@link #keyed} */
+    private final Mac mac;
+    private final MessageDigest digest;
+    private final CRC32 crc = new CRC32();
+    private final byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+    private int position;
+    private long recordCount;
+    private byte[] seal;
+    private boolean corrupted;
+
+    private volatile int writtenPosition;
+    private volatile int forcedPosition;
+
+    private JournalSegment(@Nonnull File file, @Nonnull MappedByteBuffer buffer, int formatVersion, long sequence,
+                           long createdMillis, @Nonnull byte[] previousSeal, int blockRecords, boolean keyed) {
+        this.file = file;
+        this.buffer = buffer;
+        this.formatVersion = formatVersion;
+        this.sequence = sequence;
+        this.createdMillis = createdMillis;
+        this.previousSeal = previousSeal;
+        this.blockRecords = blockRecords;
+        this.keyed = keyed;
+        this.mac = keyed ? SEAL_KEY.createMac() : null;
+        this.digest = keyed ? null : newDigest();
+        update(previousSeal, 0, previousSeal.length);
+        this.position = HEADER_SIZE;
+    }
+
+    static @Nonnull File fileFor(@Nonnull File directory, long sequence) {
+        return new File(directory, String.format("%016x", sequence) + EXTENSION);
+    }
+
+    /**
+     * @return the sequence encoded in the file name, -1 if that is not a segment file
+     */
+    static long sequenceOf(@Nonnull File file) {
+        String name = file.getName();
+        if (name.length() != 16 + EXTENSION.length() || !name.endsWith(EXTENSION)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, 16), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static @Nonnull JournalSegment create(@Nonnull File directory, long sequence, int size, int formatVersion,
+                                          @Nonnull byte[] previousSeal, int blockRecords) throws IOException {
+        File file = fileFor(directory, sequence);
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            // the mapping stays valid once the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        long now = System.currentTimeMillis();
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, formatVersion);
+        buffer.putLong(8, sequence);
+        buffer.putLong(16, now);
+        for (int i = 0; i < SEAL_SIZE; i++) {
+            buffer.put(24 + i, previousSeal[i]);
+        }
+        buffer.putInt(56, blockRecords);
+        buffer.putInt(60, FLAG_KEYED);
+        buffer.force();
+        return new JournalSegment(file, buffer, formatVersion, sequence, now, previousSeal, blockRecords, true);
+    }
+
+    /**
+     * Open an existing segment and scan its records, the position is then after the last valid record.
+     *
+     * @param visitor receives the payload of each valid record, if not null
+     */
+    static @Nonnull JournalSegment open(@Nonnull File file, boolean writable, @CheckForNull RecordVisitor visitor) throws IOException {
+        MappedByteBuffer buffer = map(file, writable);
+        byte[] previousSeal = new byte[SEAL_SIZE];
+        for (int i = 0; i < SEAL_SIZE; i++) {
+            previousSeal[i] = buffer.get(24 + i);
+        }
+        JournalSegment segment = new JournalSegment(file, buffer, buffer.getInt(4), buffer.getLong(8), buffer.getLong(16),
+                previousSeal, buffer.getInt(56), (buffer.getInt(60) & FLAG_KEYED) != 0);
+        segment.scan(visitor);
+        return segment;
+    }
+
+    private static @Nonnull MappedByteBuffer map(@Nonnull File file, boolean writable) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+            long length = raf.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid journal segment size " + length + " for " + file);
+            }
+            buffer = raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a journal segment: " + file);
+        }
+        return buffer;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every JVM", e);
+        }
+    }
+
+    private void update(@Nonnull byte[] bytes, int offset, int length) {
+        if (mac != null) {
+            mac.update(bytes, offset, length);
+        } else {
+            digest.update(bytes, offset, length);
+        }
+    }
+
+    interface RecordVisitor {
+        /**
+         * @param payload positioned on the payload of the record, only valid during the call
+         */
+        void visit(@Nonnull ByteBuffer payload);
+    }
+
+    /**
+     * Read the records from the start, feeding the seal, until the end marker, the seal or an invalid record.
+     */
+    private void scan(@CheckForNull RecordVisitor visitor) {
+        // only called once, from open, the seal is not reset
+        int limit = buffer.capacity();
+        int pos = HEADER_SIZE;
+        byte[] payload = new byte[256];
+        ByteBuffer view = buffer.duplicate();
+        while (pos + RECORD_HEADER_SIZE <= limit) {
+            int length = buffer.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > limit - pos - RECORD_HEADER_SIZE) {
+                corrupted = true;
+                break;
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            view.position(pos + RECORD_HEADER_SIZE);
+            view.get(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                corrupted = true;
+                break;
+            }
+            if (payload[0] == SEAL_KIND && length == SEAL_PAYLOAD_SIZE) {
+                seal = Arrays.copyOfRange(payload, 1 + 8 + 8, SEAL_PAYLOAD_SIZE);
+                pos += RECORD_HEADER_SIZE + length;
+                break;
+            }
+            for (int i = 0; i < RECORD_HEADER_SIZE; i++) {
+                recordHeader[i] = buffer.get(pos + i);
+            }
+            update(recordHeader, 0, RECORD_HEADER_SIZE);
+            update(payload, 0, length);
+            recordCount++;
+            if (visitor != null) {
+                visitor.visit(ByteBuffer.wrap(payload, 0, length).slice());
+            }
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        position = pos;
+        writtenPosition = pos;
+        forcedPosition = pos;
+    }
+
+    boolean fits(int payloadLength) {
+        return position + RECORD_HEADER_SIZE + payloadLength + SEAL_RECORD_SIZE <= buffer.capacity();
+    }
+
+    /**
+     * @return the largest payload an empty segment of that size accepts
+     */
+    static int maxPayloadLength(int segmentSize) {
+        return segmentSize - HEADER_SIZE - RECORD_HEADER_SIZE - SEAL_RECORD_SIZE;
+    }
+
+    /**
+     * The caller must have checked that the record {@link #fits(int)}.
+     */
+    void append(@Nonnull byte[] payload, int length) {
+        if (seal != null) {
+            throw new IllegalStateException("Segment already sealed: " + file);
+        }
+        write(payload, length);
+        update(recordHeader, 0, RECORD_HEADER_SIZE);
+        update(payload, 0, length);
+        recordCount++;
+    }
+
+    private void write(@Nonnull byte[] payload, int length) {
+        crc.reset();
+        crc.update(payload, 0, length);
+        int checksum = (int) crc.getValue();
+        ByteBuffer.wrap(recordHeader).putInt(length).putInt(checksum);
+
+        int pos = position;
+        buffer.position(pos + RECORD_HEADER_SIZE);
+        buffer.put(payload, 0, length);
+        buffer.putInt(pos + 4, checksum);
+        // written last so a reader never sees a length with a partial payload
+        buffer.putInt(pos, length);
+        position = pos + RECORD_HEADER_SIZE + length;
+        writtenPosition = position;
+    }
+
+    /**
+     * Write the seal record and force the segment to the disk, no more records can be appended.
+     *
+     * @return the seal, to be recorded in the header of the next segment
+     */
+    @Nonnull byte[] seal() {
+        if (seal == null) {
+            seal = mac != null ? mac.doFinal() : digest.digest();
+            ByteBuffer payload = ByteBuffer.allocate(SEAL_PAYLOAD_SIZE);
+            payload.put(SEAL_KIND).putLong(System.currentTimeMillis()).putLong(recordCount).put(seal);
+            write(payload.array(), SEAL_PAYLOAD_SIZE);
+            force();
+        }
+        return seal.clone();
+    }
+
+    /**
+     * Force the records written since the last call to the disk, no-op if there are none.
+     */
+    void force() {
+        int written = writtenPosition;
+        if (written > forcedPosition) {
+            buffer.force();
+            forcedPosition = written;
+        }
+    }
+
+    /**
+     * @return the seal recomputed from the records, to be compared with {@link #getSeal()}
+     */
+    @Nonnull byte[] computeSeal() {
+        try {
+            return mac != null ? ((Mac) mac.clone()).doFinal() : ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nonnull File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if the seal is an HMAC, false for the segments written before
+     */
+    boolean isKeyed() {
+        return keyed;
+    }
+
+    int getFormatVersion() {
+        return formatVersion;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * @return 0 for the segments written before the blocks were introduced
+     */
+    int getBlockRecords() {
+        return blockRecords;
+    }
+
+    @Nonnull byte[] getPreviousSeal() {
+        return previousSeal.clone();
+    }
+
+    /**
+     * @return null if the segment is not sealed yet
+     */
+    @CheckForNull byte[] getSeal() {
+        return seal == null ? null : seal.clone();
+    }
+
+    boolean isCorrupted() {
+        return corrupted;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Read the records of a segment one at a time, from a read only mapping,
+     * without checking the seal. Can be used on the segment being written, up to the last complete record.
+     */
+    static final class Reader {
+        private final ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private int position = HEADER_SIZE;
+        private int sealPosition = -1;
+        private byte[] seal;
+
+        Reader(@Nonnull File file) throws IOException {
+            this.buffer = map(file, false);
+        }
+
+        /**
+         * A reader sharing the mapping of another one, to read a segment from several threads
+         */
+        Reader(@Nonnull Reader other) {
+            this.buffer = other.buffer.duplicate();
+        }
+
+        int getFormatVersion() {
+            return buffer.getInt(4);
+        }
+
+        long getSequence() {
+            return buffer.getLong(8);
+        }
+
+        int getBlockRecords() {
+            return buffer.getInt(56);
+        }
+
+        int getPosition() {
+            return position;
+        }
+
+        void seek(int position) {
+            this.position = position;
+        }
+
+        /**
+         * @return the payload of the next record, null at the end of the records, at the seal or at an invalid record
+         */
+        @CheckForNull ByteBuffer next() {
+            int pos = position;
+            if (pos < HEADER_SIZE || pos + RECORD_HEADER_SIZE > buffer.capacity()) {
+                return null;
+            }
+            int length = buffer.getInt(pos);
+            if (length <= 0 || length > buffer.capacity() - pos - RECORD_HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(pos + RECORD_HEADER_SIZE + length).position(pos + RECORD_HEADER_SIZE);
+            payload = payload.slice();
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                return null;
+            }
+            if (length == SEAL_PAYLOAD_SIZE && payload.get(0) == SEAL_KIND) {
+                sealPosition = pos;
+                seal = new byte[SEAL_SIZE];
+                payload.position(1 + 8 + 8);
+                payload.get(seal);
+                return null;
+            }
+            position = pos + RECORD_HEADER_SIZE + length;
+            return payload;
+        }
+
+        /**
+         * @return the position of the seal record once {@link #next()} reached it, -1 before
+         */
+        int getSealPosition() {
+            return sealPosition;
+        }
+
+        @CheckForNull byte[] getSeal() {
+            return seal == null ? null : seal.clone();
+        }
+
+        /**
+         * @return the seal written at that position, null if there is no seal record there
+         */
+        @CheckForNull byte[] readSealAt(int position) {
+            seek(position);
+            ByteBuffer payload = next();
+            return payload == null && sealPosition == position ? getSeal() : null;
+        }
+    }
+}
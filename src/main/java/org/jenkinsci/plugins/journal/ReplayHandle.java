@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The progress of a {@link JournalReplay}, shared by the listeners it replays to.
+ */
+@Restricted(NoExternalUse.class)
+public final class ReplayHandle {
+    private final List<String> listeners;
+    private final long fromMillis;
+    private final long toMillis;
+    private final long startNanos = System.nanoTime();
+    private final CountDownLatch caughtUp = new CountDownLatch(1);
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long durationNanos = -1;
+    private volatile boolean cancelled;
+
+    ReplayHandle(@Nonnull List<String> listeners, long fromMillis, long toMillis) {
+        this.listeners = Collections.unmodifiableList(listeners);
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+    }
+
+    /**
+     * @return the class names of the listeners
+     */
+    public @Nonnull List<String> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * @return the oldest time replayed, inclusive
+     */
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    /**
+     * @return the start of the replay, the events from then on are the live ones
+     */
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    /**
+     * @return true once every event was replayed, or the replay was cancelled
+     */
+    public boolean isCaughtUp() {
+        return caughtUp.getCount() == 0;
+    }
+
+    /**
+     * @return false if the replay is still running after the timeout
+     */
+    public boolean awaitCaughtUp(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        return caughtUp.await(timeout, unit);
+    }
+
+    /**
+     * Stop the replay, the events already handed to the listeners are still delivered.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the number of deliveries, an event replayed to two listeners counts twice
+     */
+    public long getReplayedCount() {
+        return replayed.sum();
+    }
+
+    /**
+     * @return the number of deliveries that threw an exception
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the duration of the replay so far
+     */
+    public long getDurationMillis() {
+        long duration = durationNanos;
+        return TimeUnit.NANOSECONDS.toMillis(duration >= 0 ? duration : System.nanoTime() - startNanos);
+    }
+
+    void recordReplayed(int count) {
+        replayed.add(count);
+    }
+
+    void recordFailure() {
+        failures.increment();
+    }
+
+    void complete() {
+        durationNanos = System.nanoTime() - startNanos;
+        caughtUp.countDown();
+    }
+
+    public @Nonnull JSONObject toJSON() {
+        return new JSONObject()
+                .element("listeners", JSONArray.fromObject(listeners))
+                .element("fromMillis", fromMillis)
+                .element("toMillis", toMillis)
+                .element("caughtUp", isCaughtUp())
+                .element("cancelled", cancelled)
+                .element("replayed", getReplayedCount())
+                .element("failures", getFailureCount())
+                .element("durationMillis", getDurationMillis());
+    }
+}
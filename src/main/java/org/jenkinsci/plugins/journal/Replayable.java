@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Implemented by a {@link SecurityListener2} whose state is built from the events,
+ * to receive the events of the {@link Journal} at startup, see {@link JournalReplay}.
+ *
+ * The replay runs in the background: the live events are delivered meanwhile, concurrently,
+ * and the replayed ones are the ones recorded before its start.
+ */
+public interface Replayable {
+    /**
+     * @return how far in the past the replay starts, 0 to not replay anything
+     */
+    default long getReplayHorizonMillis() {
+        return JournalReplay.DEFAULT_HORIZON_MILLIS;
+    }
+
+    /**
+     * @return true if the events of distinct usernames can be replayed concurrently,
+     * the events of a given username are always replayed from a single thread in their order
+     */
+    default boolean isReplayPartitionable() {
+        return true;
+    }
+
+    /**
+     * Receive a past event, by default delivered like a live one.
+     * Overridden by the listeners that need the time of the event.
+     */
+    default void replay(@Nonnull EventRecord record) {
+        SecurityListener2.replay((SecurityListener2) this, record.getType(), record.getEvent());
+    }
+
+    /**
+     * Called before the first replayed event.
+     */
+    default void replayStarted(@Nonnull ReplayHandle handle) {
+    }
+
+    /**
+     * Called after the last replayed event, or when the replay is cancelled or failed, see {@link ReplayHandle}.
+     */
+    default void replayCompleted(@Nonnull ReplayHandle handle) {
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import org.jenkinsci.plugins.events.codec.EventDecoder;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of a {@link JournalSegment}: the position and the time range of each block of records,
+ * and for each username the blocks containing its events.
+ *
+ * Built while the records are appended and written next to the segment once it is sealed.
+ * Can be rebuilt from the segment when missing or when it does not match the seal of the segment.
+ *
+ * Not thread safe, the index of the segment being written is only accessed under the lock of the {@link Journal}.
+ */
+final class SegmentIndex {
+    static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x534C4958;
+    private static final int VERSION = 1;
+
+    private final int blockRecords;
+    private int blockCount;
+    private int[] blockPositions = new int[16];
+    private long[] blockMinTimes = new long[16];
+    private long[] blockMaxTimes = new long[16];
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    private int sealPosition = -1;
+    private byte[] seal;
+
+    SegmentIndex(int blockRecords) {
+        this.blockRecords = blockRecords;
+    }
+
+    static @Nonnull File fileFor(@Nonnull File segmentFile) {
+        String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(), name.substring(0, name.length() - JournalSegment.EXTENSION.length()) + EXTENSION);
+    }
+
+    /**
+     * Must be called before adding the first record of each block
+     */
+    void startBlock(int position) {
+        if (blockCount == blockPositions.length) {
+            int size = blockCount * 2;
+            blockPositions = Arrays.copyOf(blockPositions, size);
+            blockMinTimes = Arrays.copyOf(blockMinTimes, size);
+            blockMaxTimes = Arrays.copyOf(blockMaxTimes, size);
+        }
+        blockPositions[blockCount] = position;
+        blockMinTimes[blockCount] = Long.MAX_VALUE;
+        blockMaxTimes[blockCount] = Long.MIN_VALUE;
+        blockCount++;
+    }
+
+    void add(@Nonnull String username, long timeMillis) {
+        int block = blockCount - 1;
+        blockMinTimes[block] = Math.min(blockMinTimes[block], timeMillis);
+        blockMaxTimes[block] = Math.max(blockMaxTimes[block], timeMillis);
+        postings.computeIfAbsent(username, k -> new Postings()).add(block);
+    }
+
+    void setSeal(int sealPosition, @Nonnull byte[] seal) {
+        this.sealPosition = sealPosition;
+        this.seal = seal.clone();
+    }
+
+    boolean isSealed() {
+        return seal != null;
+    }
+
+    int getBlockRecords() {
+        return blockRecords;
+    }
+
+    /**
+     * @param username null for all the usernames
+     * @return the positions of the blocks that may contain events of that username in [fromMillis, toMillis), in order
+     */
+    @Nonnull int[] findBlocks(@CheckForNull String username, long fromMillis, long toMillis) {
+        int[] candidates;
+        int count;
+        if (username == null) {
+            candidates = null;
+            count = blockCount;
+        } else {
+            Postings p = postings.get(username);
+            if (p == null) {
+                return new int[0];
+            }
+            candidates = p.blocks;
+            count = p.size;
+        }
+        int[] result = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            int block = candidates == null ? i : candidates[i];
+            if (blockMaxTimes[block] >= fromMillis && blockMinTimes[block] < toMillis) {
+                result[found++] = blockPositions[block];
+            }
+        }
+        return found == count ? result : Arrays.copyOf(result, found);
+    }
+
+    /**
+     * Write the index of a sealed segment next to it, replacing any previous one.
+     */
+    void write(@Nonnull File segmentFile) throws IOException {
+        if (seal == null) {
+            throw new IllegalStateException("Only the index of a sealed segment is written");
+        }
+        File file = fileFor(segmentFile);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sealPosition);
+            out.write(seal);
+            out.writeInt(blockRecords);
+            out.writeInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                out.writeInt(blockPositions[i]);
+                out.writeLong(blockMinTimes[i]);
+                out.writeLong(blockMaxTimes[i]);
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                Postings p = entry.getValue();
+                out.writeInt(p.size);
+                for (int i = 0; i < p.size; i++) {
+                    out.writeInt(p.blocks[i]);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return null if there is no index for the segment or it does not match its seal
+     */
+    static @CheckForNull SegmentIndex read(@Nonnull File segmentFile, @Nonnull JournalSegment.Reader reader) throws IOException {
+        File file = fileFor(segmentFile);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int sealPosition = in.readInt();
+            byte[] seal = new byte[JournalSegment.SEAL_SIZE];
+            in.readFully(seal);
+            if (!Arrays.equals(seal, reader.readSealAt(sealPosition))) {
+                return null;
+            }
+            SegmentIndex index = new SegmentIndex(in.readInt());
+            int blockCount = in.readInt();
+            for (int i = 0; i < blockCount; i++) {
+                index.startBlock(in.readInt());
+                index.blockMinTimes[i] = in.readLong();
+                index.blockMaxTimes[i] = in.readLong();
+            }
+            int users = in.readInt();
+            for (int i = 0; i < users; i++) {
+                String username = in.readUTF();
+                Postings p = new Postings();
+                int size = in.readInt();
+                for (int j = 0; j < size; j++) {
+                    int block = in.readInt();
+                    if (block < 0 || block >= blockCount) {
+                        throw new IOException("Invalid block " + block + " in " + file);
+                    }
+                    p.add(block);
+                }
+                index.postings.put(username, p);
+            }
+            index.setSeal(sealPosition, seal);
+            return index;
+        }
+    }
+
+    /**
+     * Rebuild the index by decoding all the records of the segment.
+     */
+    static @Nonnull SegmentIndex build(@Nonnull JournalSegment.Reader reader) throws IOException {
+        int blockRecords = reader.getBlockRecords();
+        SegmentIndex index = new SegmentIndex(blockRecords);
+        EventDecoder decoder = new EventDecoder();
+        reader.seek(JournalSegment.HEADER_SIZE);
+        int inBlock = 0;
+        while (true) {
+            int position = reader.getPosition();
+            ByteBuffer payload = reader.next();
+            if (payload == null) {
+                break;
+            }
+            if (inBlock == 0 || inBlock == blockRecords) {
+                decoder.reset();
+                index.startBlock(position);
+                inBlock = 0;
+            }
+            inBlock++;
+            EventRecord record = decoder.decode(payload);
+            index.add(record.getEvent().getUsername(), record.getTimeMillis());
+        }
+        byte[] seal = reader.getSeal();
+        if (seal != null) {
+            index.setSeal(reader.getSealPosition(), seal);
+        }
+        return index;
+    }
+
+    /**
+     * Ordered block numbers, each at most once
+     */
+    private static final class Postings {
+        private int[] blocks = new int[2];
+        private int size;
+
+        void add(int block) {
+            if (size > 0 && blocks[size - 1] == block) {
+                return;
+            }
+            if (size == blocks.length) {
+                blocks = Arrays.copyOf(blocks, size * 2);
+            }
+            blocks[size++] = block;
+        }
+    }
+}
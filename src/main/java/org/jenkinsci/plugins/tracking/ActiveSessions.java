@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.tracking;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.Essential;
+import org.jenkinsci.plugins.events.AuthenticationEvent;
+import org.jenkinsci.plugins.events.LoginEvent;
+import org.jenkinsci.plugins.events.LogoutEvent;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.jenkinsci.plugins.journal.ReplayHandle;
+import org.jenkinsci.plugins.journal.Replayable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Track who is currently logged in, from the login and logout events, see {@link SessionRegistry}.
+ * The authentications of a user from the source of one of its sessions count as an activity.
+ * The sessions still open are restored from the journal at startup.
+ *
+ * Disabled by default, enabled with the system property {@code org.jenkinsci.plugins.tracking.ActiveSessions.enabled}.
+ */
+@Extension
+@Essential
+public class ActiveSessions extends SecurityListener2 implements Replayable {
+    private static final String PREFIX = ActiveSessions.class.getName();
+    private static final boolean ENABLED = SystemProperties.getBoolean(PREFIX + ".enabled", false);
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(SystemProperties.getInteger(PREFIX + ".idleTimeoutMinutes", 30));
+    private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(SystemProperties.getInteger(PREFIX + ".tickSeconds", 5));
+    private static final int MAX_SESSIONS_PER_USER = SystemProperties.getInteger(PREFIX + ".maxSessionsPerUser", 64);
+    private static final int MAX_SESSIONS = SystemProperties.getInteger(PREFIX + ".maxSessions", 100_000);
+
+    private final SessionRegistry registry;
+    private final ScheduledFuture<?> tick;
+
+    /**
+     * The sessions replayed from the journal per username then source, as login and last activity times,
+     * each username being replayed from a single thread. Restored in the registry once the replay is complete.
+     */
+    private volatile Map<String, Map<String, long[]>> replayed;
+    /**
+     * The username and source of the logouts received during the replay, applied to the replayed sessions
+     * before restoring them, otherwise they would come back. Guarded by this.
+     */
+    private List<String[]> liveLogouts;
+
+    public ActiveSessions() {
+        if (ENABLED) {
+            registry = new SessionRegistry(IDLE_TIMEOUT_MILLIS, TICK_MILLIS, MAX_SESSIONS_PER_USER, MAX_SESSIONS);
+            tick = Timer.get().scheduleAtFixedRate(registry::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            registry = null;
+            tick = null;
+        }
+    }
+
+    /**
+     * Stop expiring the sessions, called by {@link org.jenkinsci.plugins.impl.ShutdownSequence}
+     */
+    public static void shutdown() {
+        ActiveSessions activeSessions = get();
+        if (activeSessions != null && activeSessions.tick != null) {
+            activeSessions.tick.cancel(false);
+        }
+    }
+
+    public static @CheckForNull ActiveSessions get() {
+        return ExtensionList.lookup(SecurityListener2.class).get(ActiveSessions.class);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * @return null if disabled
+     */
+    public @CheckForNull SessionRegistry getRegistry() {
+        return registry;
+    }
+
+    @Override
+    protected boolean authenticated(@Nonnull AuthenticationEvent event) {
+        if (registry != null) {
+            registry.touch(event.getUsername(), event.getSource());
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean loggedIn(@Nonnull LoginEvent event) {
+        if (registry != null) {
+            registry.login(event.getUsername(), event.getSource());
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean loggedOut(@Nonnull LogoutEvent event) {
+        if (registry != null) {
+            // cleared only after the restore, a logout seeing null is applied to the restored session
+            if (replayed != null) {
+                synchronized (this) {
+                    if (liveLogouts != null) {
+                        liveLogouts.add(new String[]{event.getUsername(), event.getSource()});
+                    }
+                }
+            }
+            registry.logout(event.getUsername(), event.getSource());
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void replayStarted(@Nonnull ReplayHandle handle) {
+        liveLogouts = new ArrayList<>();
+        replayed = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void replay(@Nonnull EventRecord record) {
+        Map<String, Map<String, long[]>> sessions = replayed;
+        if (registry == null || sessions == null) {
+            return;
+        }
+        String username = record.getEvent().getUsername();
+        String source = record.getEvent().getSource();
+        long time = record.getTimeMillis();
+        Map<String, long[]> userSessions = sessions.get(username);
+        switch (record.getType()) {
+            case LOGGED_IN:
+                if (userSessions == null) {
+                    userSessions = new HashMap<>();
+                    sessions.put(username, userSessions);
+                }
+                long[] times = userSessions.get(source);
+                if (times == null) {
+                    // the user is rarely logged in from many sources, forget the ones that expired meanwhile
+                    userSessions.values().removeIf(t -> t[1] + IDLE_TIMEOUT_MILLIS <= time);
+                    userSessions.put(source, new long[]{time, time});
+                } else {
+                    times[1] = time;
+                }
+                break;
+            case AUTHENTICATED:
+                long[] activity = userSessions == null ? null : userSessions.get(source);
+                if (activity != null) {
+                    activity[1] = time;
+                }
+                break;
+            case LOGGED_OUT:
+                logout(userSessions, source);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Same fallback as {@link SessionRegistry#logout}
+     */
+    private static void logout(@CheckForNull Map<String, long[]> userSessions, String source) {
+        if (userSessions != null && userSessions.remove(source) == null && userSessions.size() == 1) {
+            userSessions.clear();
+        }
+    }
+
+    /**
+     * Holds the lock while restoring and clears the replay state only once restored, a concurrent logout is then
+     * either recorded and applied before or applied to the restored session
+     */
+    @Override
+    public synchronized void replayCompleted(@Nonnull ReplayHandle handle) {
+        Map<String, Map<String, long[]>> sessions = replayed;
+        try {
+            if (registry == null || sessions == null) {
+                return;
+            }
+            for (String[] logout : liveLogouts) {
+                logout(sessions.get(logout[0]), logout[1]);
+            }
+            for (Map.Entry<String, Map<String, long[]>> user : sessions.entrySet()) {
+                for (Map.Entry<String, long[]> session : user.getValue().entrySet()) {
+                    registry.restore(user.getKey(), session.getKey(), session.getValue()[0], session.getValue()[1]);
+                }
+            }
+        } finally {
+            liveLogouts = null;
+            replayed = null;
+        }
+    }
+}
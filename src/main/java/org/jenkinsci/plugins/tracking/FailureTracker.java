@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.tracking;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.Essential;
+import org.jenkinsci.plugins.dispatch.EventTime;
+import org.jenkinsci.plugins.events.AuthenticationFailureEvent;
+import org.jenkinsci.plugins.events.LoginFailureEvent;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.jenkinsci.plugins.journal.Replayable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count the authentication failures per username and per source over a sliding window,
+ * to detect brute force or credential stuffing attempts.
+ *
+ * The memory is bounded, see {@link SlidingWindowCounter}, whatever the number of distinct usernames.
+ * The failures within the horizon are replayed from the journal at startup.
+ * Disabled by default, enabled with the system property {@code org.jenkinsci.plugins.tracking.FailureTracker.enabled}.
+ */
+@Extension
+@Essential
+public class FailureTracker extends SecurityListener2 implements Replayable {
+    private static final String PREFIX = FailureTracker.class.getName();
+    private static final boolean ENABLED = SystemProperties.getBoolean(PREFIX + ".enabled", false);
+    private static final int CAPACITY = SystemProperties.getInteger(PREFIX + ".capacity", 16384);
+    private static final int BUCKET_SECONDS = SystemProperties.getInteger(PREFIX + ".bucketSeconds", 20);
+    private static final int BUCKET_COUNT = SystemProperties.getInteger(PREFIX + ".bucketCount", 30);
+    private static final long SAME_FAILURE_MILLIS = SystemProperties.getLong(PREFIX + ".sameFailureMillis", 1000L);
+
+    /**
+     * A failed login typically fires failedToAuthenticate then failedToLogIn from the same thread,
+     * that is counted as a single failure
+     */
+    private static final ThreadLocal<LastFailure> LAST_AUTHENTICATION_FAILURE = ThreadLocal.withInitial(LastFailure::new);
+
+    private final SlidingWindowCounter byUsername;
+    private final SlidingWindowCounter bySource;
+
+    public FailureTracker() {
+        if (ENABLED) {
+            byUsername = new SlidingWindowCounter(CAPACITY, BUCKET_SECONDS, BUCKET_COUNT);
+            bySource = new SlidingWindowCounter(CAPACITY, BUCKET_SECONDS, BUCKET_COUNT);
+        } else {
+            byUsername = null;
+            bySource = null;
+        }
+    }
+
+    public static @CheckForNull FailureTracker get() {
+        return ExtensionList.lookup(SecurityListener2.class).get(FailureTracker.class);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    @Override
+    protected boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
+        recordAuthenticationFailure(event, EventTime.currentMillis(), 0);
+        return true;
+    }
+
+    @Override
+    protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
+        recordLoginFailure(event, EventTime.currentMillis(), 0);
+        return true;
+    }
+
+    @Override
+    public long getReplayHorizonMillis() {
+        return TimeUnit.SECONDS.toMillis(getHorizonSeconds());
+    }
+
+    /**
+     * Count the failure in the bucket of its time
+     */
+    @Override
+    public void replay(@Nonnull EventRecord record) {
+        long ageNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - record.getTimeMillis());
+        switch (record.getType()) {
+            case FAILED_TO_AUTHENTICATE:
+                recordAuthenticationFailure(record.getEvent(), record.getTimeMillis(), ageNanos);
+                break;
+            case FAILED_TO_LOG_IN:
+                recordLoginFailure(record.getEvent(), record.getTimeMillis(), ageNanos);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void recordAuthenticationFailure(@Nonnull SecurityEvent event, long timeMillis, long ageNanos) {
+        record(event, ageNanos);
+        LAST_AUTHENTICATION_FAILURE.get().set(event, timeMillis);
+    }
+
+    private void recordLoginFailure(@Nonnull SecurityEvent event, long timeMillis, long ageNanos) {
+        if (!LAST_AUTHENTICATION_FAILURE.get().take(event, timeMillis)) {
+            record(event, ageNanos);
+        }
+    }
+
+    private void record(@Nonnull SecurityEvent event, long ageNanos) {
+        if (byUsername == null || bySource == null) {
+            return;
+        }
+        byUsername.increment(event.getUsername(), ageNanos);
+        bySource.increment(event.getSource(), ageNanos);
+    }
+
+    /**
+     * @param seconds capped to {@link #getHorizonSeconds()}
+     * @return the number of failures for that username in the last seconds, approximated to the bucket granularity
+     */
+    public int getFailuresForUsername(@Nonnull String username, int seconds) {
+        return byUsername == null ? 0 : byUsername.count(username, seconds);
+    }
+
+    /**
+     * @param seconds capped to {@link #getHorizonSeconds()}
+     * @return the number of failures from that source in the last seconds, approximated to the bucket granularity
+     */
+    public int getFailuresForSource(@Nonnull String source, int seconds) {
+        return bySource == null ? 0 : bySource.count(source, seconds);
+    }
+
+    /**
+     * @return the longest window that can be queried, 0 if the tracker is disabled
+     */
+    public int getHorizonSeconds() {
+        return byUsername == null ? 0 : byUsername.getHorizonSeconds();
+    }
+
+    /**
+     * The last authentication failure of a thread, a mutable holder so that it does not allocate.
+     * Consumed by the next login failure, which is the same failure only if it follows shortly.
+     */
+    private static final class LastFailure {
+        private String username;
+        private String source;
+        private long timeMillis;
+
+        void set(@Nonnull SecurityEvent event, long timeMillis) {
+            this.username = event.getUsername();
+            this.source = event.getSource();
+            this.timeMillis = timeMillis;
+        }
+
+        /**
+         * @return true if the login failure is the last authentication failure, cleared either way
+         */
+        boolean take(@Nonnull SecurityEvent event, long timeMillis) {
+            boolean same = username != null && Math.abs(timeMillis - this.timeMillis) <= SAME_FAILURE_MILLIS
+                    && username.equals(event.getUsername()) && source.equals(event.getSource());
+            username = null;
+            source = null;
+            return same;
+        }
+    }
+}
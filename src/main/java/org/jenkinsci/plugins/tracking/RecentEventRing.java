@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.tracking;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Keep the last events in a fixed ring of preallocated slots, overwriting the oldest ones,
+ * with an index from the username to its most recent event.
+ *
+ * Each slot also keeps the sequence of the previous event of the same user, the recent events of a user
+ * are found by following that chain from the index until a slot that was overwritten.
+ * The index is a fixed table of entries grouped by four, an entry is cleared when the slot it points to is overwritten
+ * and the entry pointing to the oldest event of its group is reused when the four are taken.
+ * The hash is seeded randomly so that the collisions cannot be computed in advance.
+ *
+ * The writers only synchronize through atomic operations, on the head of the ring and on the index entries.
+ * A slot is claimed by a compare and set of its version, that only waits when the ring wrapped around
+ * while another writer was still writing the same slot. The readers never block the writers,
+ * they validate the version of the slot around their reads instead.
+ * When two events of the same user are recorded concurrently, one of them may be missing from the chain of that user.
+ */
+@Restricted(NoExternalUse.class)
+public final class RecentEventRing {
+    private static final int GROUP_SIZE = 4;
+    private static final long NONE = -1;
+    private static final long WRITING = -2;
+
+    private static final AtomicLongFieldUpdater<Slot> VERSION = AtomicLongFieldUpdater.newUpdater(Slot.class, "version");
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLongArray index;
+    private final int groupMask;
+    private final int seed = new SecureRandom().nextInt();
+
+    private static final class Slot {
+        /**
+         * The sequence of the event in the slot, {@link #NONE} before the first one and {@link #WRITING} while written
+         */
+        volatile long version = NONE;
+        volatile EventType type;
+        volatile long timeMillis;
+        volatile SecurityEvent event;
+        volatile long previous;
+    }
+
+    /**
+     * @param requestedCapacity number of events kept, rounded up to a power of two
+     */
+    public RecentEventRing(int requestedCapacity) {
+        int capacity = Math.max(GROUP_SIZE, Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1);
+        this.mask = capacity - 1;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        // twice as many entries as slots, there cannot be more distinct users than events
+        int entries = capacity * 2;
+        this.groupMask = entries / GROUP_SIZE - 1;
+        this.index = new AtomicLongArray(entries);
+        for (int i = 0; i < entries; i++) {
+            index.set(i, NONE);
+        }
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public void record(@Nonnull EventType type, @Nonnull SecurityEvent event, long timeMillis) {
+        String username = event.getUsername();
+        int group = groupOf(username);
+        long previous = findLatest(username, group);
+
+        long sequence = head.getAndIncrement();
+        Slot slot = slots[(int) sequence & mask];
+        long overwritten;
+        while (true) {
+            overwritten = slot.version;
+            if (overwritten > sequence) {
+                // this writer was so slow that a more recent event already took the slot
+                return;
+            }
+            if (overwritten != WRITING && VERSION.compareAndSet(slot, overwritten, WRITING)) {
+                break;
+            }
+            Thread.yield();
+        }
+        if (overwritten != NONE) {
+            evict(slot.event.getUsername(), overwritten);
+        }
+        slot.type = type;
+        slot.timeMillis = timeMillis;
+        slot.event = event;
+        slot.previous = previous;
+        slot.version = sequence;
+
+        updateIndex(username, group, sequence);
+    }
+
+    /**
+     * @return the most recent events of that user, the latest first
+     */
+    public @Nonnull List<EventRecord> getRecentEvents(@Nonnull String username, int max) {
+        List<EventRecord> result = new ArrayList<>();
+        long sequence = findLatest(username, groupOf(username));
+        while (sequence != NONE && result.size() < max) {
+            Entry entry = read(sequence);
+            if (entry == null || !username.equals(entry.record.getEvent().getUsername())) {
+                break;
+            }
+            result.add(entry.record);
+            if (entry.previous >= sequence) {
+                break;
+            }
+            sequence = entry.previous;
+        }
+        return result;
+    }
+
+    /**
+     * @return the most recent events of all the users, the latest first
+     */
+    public @Nonnull List<EventRecord> getRecentEvents(int max) {
+        List<EventRecord> result = new ArrayList<>();
+        long last = head.get() - 1;
+        for (long sequence = last; sequence >= 0 && sequence > last - slots.length && result.size() < max; sequence--) {
+            Entry entry = read(sequence);
+            if (entry != null) {
+                result.add(entry.record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of events recorded since the creation, including the overwritten ones
+     */
+    public long getRecordedCount() {
+        return head.get();
+    }
+
+    private static final class Entry {
+        final EventRecord record;
+        final long previous;
+
+        Entry(EventRecord record, long previous) {
+            this.record = record;
+            this.previous = previous;
+        }
+    }
+
+    private @CheckForNull Entry read(long sequence) {
+        Slot slot = slots[(int) sequence & mask];
+        if (slot.version != sequence) {
+            return null;
+        }
+        EventType type = slot.type;
+        long timeMillis = slot.timeMillis;
+        SecurityEvent event = slot.event;
+        long previous = slot.previous;
+        if (slot.version != sequence) {
+            return null;
+        }
+        return new Entry(new EventRecord(type, timeMillis, event), previous);
+    }
+
+    private @CheckForNull String usernameAt(long sequence) {
+        Slot slot = slots[(int) sequence & mask];
+        if (slot.version != sequence) {
+            return null;
+        }
+        SecurityEvent event = slot.event;
+        return slot.version == sequence ? event.getUsername() : null;
+    }
+
+    private int groupOf(@Nonnull String username) {
+        int h = (username.hashCode() ^ seed) * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & groupMask) * GROUP_SIZE;
+    }
+
+    private long findLatest(@Nonnull String username, int group) {
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            long sequence = index.get(group + i);
+            if (sequence != NONE && username.equals(usernameAt(sequence))) {
+                return sequence;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * The slot of that sequence is overwritten, the user has no event left if it was its latest one
+     */
+    private void evict(@Nonnull String username, long sequence) {
+        int group = groupOf(username);
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            if (index.compareAndSet(group + i, sequence, NONE)) {
+                return;
+            }
+        }
+    }
+
+    private void updateIndex(@Nonnull String username, int group, long sequence) {
+        // a few attempts, the concurrent updates of the same group are rare
+        for (int attempt = 0; attempt < GROUP_SIZE; attempt++) {
+            int victim = -1;
+            long victimValue = NONE;
+            long victimAge = Long.MAX_VALUE;
+            for (int i = 0; i < GROUP_SIZE; i++) {
+                long current = index.get(group + i);
+                String owner = current == NONE ? null : usernameAt(current);
+                if (username.equals(owner)) {
+                    if (current >= sequence || index.compareAndSet(group + i, current, sequence)) {
+                        return;
+                    }
+                    victim = -1;
+                    break;
+                }
+                // free or pointing to an overwritten slot first, then the oldest event
+                long age = owner == null ? NONE : current;
+                if (age < victimAge) {
+                    victim = i;
+                    victimValue = current;
+                    victimAge = age;
+                }
+            }
+            if (victim >= 0 && index.compareAndSet(group + victim, victimValue, sequence)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.tracking;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.events.AuthenticationEvent;
+import org.jenkinsci.plugins.events.AuthenticationFailureEvent;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.LoginEvent;
+import org.jenkinsci.plugins.events.LoginFailureEvent;
+import org.jenkinsci.plugins.events.LogoutEvent;
+import org.jenkinsci.plugins.events.SecurityEvent;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.jenkinsci.plugins.journal.Replayable;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keep the last security events in memory, to answer "when did that user last log in, and did it fail?".
+ *
+ * The memory is bounded, see {@link RecentEventRing}, whatever the number of distinct usernames.
+ * Refilled from the journal at startup, the replayed events can be interleaved with the live ones until it caught up.
+ * Disabled by default, enabled with the system property {@code org.jenkinsci.plugins.tracking.RecentEvents.enabled}.
+ */
+@Extension
+public class RecentEvents extends SecurityListener2 implements Replayable {
+    private static final String PREFIX = RecentEvents.class.getName();
+    private static final boolean ENABLED = SystemProperties.getBoolean(PREFIX + ".enabled", false);
+    private static final int CAPACITY = SystemProperties.getInteger(PREFIX + ".capacity", 4096);
+
+    private final RecentEventRing ring;
+
+    public RecentEvents() {
+        ring = ENABLED ? new RecentEventRing(CAPACITY) : null;
+    }
+
+    public static @CheckForNull RecentEvents get() {
+        return ExtensionList.lookup(SecurityListener2.class).get(RecentEvents.class);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return ENABLED;
+    }
+
+    @Override
+    protected boolean authenticated(@Nonnull AuthenticationEvent event) {
+        record(EventType.AUTHENTICATED, event);
+        return true;
+    }
+
+    @Override
+    protected boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
+        record(EventType.FAILED_TO_AUTHENTICATE, event);
+        return true;
+    }
+
+    @Override
+    protected boolean loggedIn(@Nonnull LoginEvent event) {
+        record(EventType.LOGGED_IN, event);
+        return true;
+    }
+
+    @Override
+    protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
+        record(EventType.FAILED_TO_LOG_IN, event);
+        return true;
+    }
+
+    @Override
+    protected boolean loggedOut(@Nonnull LogoutEvent event) {
+        record(EventType.LOGGED_OUT, event);
+        return true;
+    }
+
+    @Override
+    public void replay(@Nonnull EventRecord record) {
+        if (ring != null) {
+            ring.record(record.getType(), record.getEvent(), record.getTimeMillis());
+        }
+    }
+
+    private void record(@Nonnull EventType type, @Nonnull SecurityEvent event) {
+        if (ring != null) {
+            ring.record(type, event, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the most recent events of that user still in memory, the latest first, empty if disabled
+     */
+    public @Nonnull List<EventRecord> getRecentEvents(@Nonnull String username, int max) {
+        return ring == null ? Collections.emptyList() : ring.getRecentEvents(username, max);
+    }
+
+    /**
+     * @return the most recent events of all the users, the latest first, empty if disabled
+     */
+    public @Nonnull List<EventRecord> getRecentEvents(int max) {
+        return ring == null ? Collections.emptyList() : ring.getRecentEvents(max);
+    }
+
+    /**
+     * @return the most recent event of that type for that user still in memory, null if none
+     */
+    public @CheckForNull EventRecord getLastEvent(@Nonnull String username, @Nonnull EventType type) {
+        for (EventRecord record : getRecentEvents(username, Integer.MAX_VALUE)) {
+            if (record.getType() == type) {
+                return record;
+            }
+        }
+        return null;
+    }
+}
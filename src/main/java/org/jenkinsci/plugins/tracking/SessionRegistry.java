@@ -0,0 +1,515 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.tracking;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions currently open, per username and source, with idle expiry.
+ *
+ * The sessions are found by username and source in a concurrent map. The sessions of a user are also linked
+ * in the order of their login, updated atomically per username, for the counts and the oldest session.
+ *
+ * The idle expiry uses a hashed timer wheel: each session is in the bucket of its deadline, and each {@link #tick()}
+ * only visits the buckets whose time has come. An activity only updates the time of the session,
+ * it is moved to its new bucket when its former one is visited. The buckets have their own locks.
+ *
+ * When the logout events are missed, the memory stays bounded by the expiry, by the number of sessions per user
+ * (the oldest one is closed) and by the total number of sessions (the one closest to its expiry is closed).
+ * All the updates are O(1) in the number of sessions.
+ */
+@Restricted(NoExternalUse.class)
+public final class SessionRegistry {
+    /**
+     * Why a session was closed
+     */
+    public enum Reason {
+        LOGGED_OUT, EXPIRED, EVICTED
+    }
+
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final int maxSessionsPerUser;
+    private final int maxSessions;
+    private final long origin = System.nanoTime();
+
+    private final ConcurrentMap<SessionKey, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, UserSessions> users = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final Bucket[] wheel;
+    private final int wheelMask;
+    /**
+     * Last tick whose bucket was visited, only written by {@link #tick()}
+     */
+    private volatile long processedTick;
+
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param idleTimeoutMillis  sessions without activity for that long are closed
+     * @param tickMillis         granularity of the expiry, {@link #tick()} is expected to be called at that rate
+     * @param maxSessionsPerUser beyond, the oldest session of the user is closed
+     * @param maxSessions        beyond, the session closest to its expiry is closed
+     */
+    public SessionRegistry(long idleTimeoutMillis, long tickMillis, int maxSessionsPerUser, int maxSessions) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleTimeoutMillis));
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.maxSessionsPerUser = Math.max(1, maxSessionsPerUser);
+        this.maxSessions = Math.max(1, maxSessions);
+        // enough buckets so a deadline is at most one revolution ahead
+        long ticks = timeoutNanos / tickNanos + 2;
+        int size = Integer.highestOneBit((int) Math.min(1 << 20, ticks) - 1) << 1;
+        this.wheel = new Bucket[Math.max(2, size)];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.wheelMask = wheel.length - 1;
+    }
+
+    /**
+     * A session, the times are updated as long as it is open
+     */
+    public static final class Session {
+        private final String username;
+        private final String source;
+        private final long loginMillis;
+        private final long loginNanos;
+        private volatile long lastActivityNanos;
+        private volatile boolean closed;
+
+        // guarded by the UserSessions of the username
+        private Session userPrevious;
+        private Session userNext;
+
+        // guarded by the bucket
+        private volatile Bucket bucket;
+        private Session wheelPrevious;
+        private Session wheelNext;
+
+        private Session(@Nonnull String username, @Nonnull String source, long loginMillis, long loginNanos, long lastActivityNanos) {
+            this.username = username;
+            this.source = source;
+            this.loginMillis = loginMillis;
+            this.loginNanos = loginNanos;
+            this.lastActivityNanos = lastActivityNanos;
+        }
+
+        public @Nonnull String getUsername() {
+            return username;
+        }
+
+        public @Nonnull String getSource() {
+            return source;
+        }
+
+        public long getLoginMillis() {
+            return loginMillis;
+        }
+
+        public long getLastActivityMillis() {
+            return loginMillis + TimeUnit.NANOSECONDS.toMillis(lastActivityNanos - loginNanos);
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+    }
+
+    private static final class SessionKey {
+        private final String username;
+        private final String source;
+        private final int hash;
+
+        SessionKey(@Nonnull String username, @Nonnull String source) {
+            this.username = username;
+            this.source = source;
+            this.hash = 31 * username.hashCode() + source.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) o;
+            return username.equals(other.username) && source.equals(other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The sessions of a user in the order of their login, mutated under its own lock
+     */
+    private static final class UserSessions {
+        private Session oldest;
+        private Session newest;
+        private int size;
+
+        synchronized void add(@Nonnull Session session) {
+            session.userPrevious = newest;
+            if (newest == null) {
+                oldest = session;
+            } else {
+                newest.userNext = session;
+            }
+            newest = session;
+            size++;
+        }
+
+        synchronized void remove(@Nonnull Session session) {
+            if (session.userPrevious == null && oldest != session) {
+                // not in the list
+                return;
+            }
+            if (session.userPrevious == null) {
+                oldest = session.userNext;
+            } else {
+                session.userPrevious.userNext = session.userNext;
+            }
+            if (session.userNext == null) {
+                newest = session.userPrevious;
+            } else {
+                session.userNext.userPrevious = session.userPrevious;
+            }
+            session.userPrevious = null;
+            session.userNext = null;
+            size--;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized @CheckForNull Session oldest() {
+            return oldest;
+        }
+
+        synchronized @Nonnull List<Session> toList() {
+            List<Session> result = new ArrayList<>(size);
+            for (Session s = oldest; s != null; s = s.userNext) {
+                result.add(s);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * One slot of the wheel, a doubly linked list of the sessions whose deadline falls in it
+     */
+    private static final class Bucket {
+        private Session head;
+
+        // all the methods are called with the lock of the bucket held
+        void link(@Nonnull Session session) {
+            session.wheelPrevious = null;
+            session.wheelNext = head;
+            if (head != null) {
+                head.wheelPrevious = session;
+            }
+            head = session;
+            session.bucket = this;
+        }
+
+        void unlink(@Nonnull Session session) {
+            if (session.wheelPrevious == null) {
+                head = session.wheelNext;
+            } else {
+                session.wheelPrevious.wheelNext = session.wheelNext;
+            }
+            if (session.wheelNext != null) {
+                session.wheelNext.wheelPrevious = session.wheelPrevious;
+            }
+            session.wheelPrevious = null;
+            session.wheelNext = null;
+            session.bucket = null;
+        }
+    }
+
+    /**
+     * Open a session, or record an activity if it is already open.
+     */
+    public void login(@Nonnull String username, @Nonnull String source) {
+        long now = System.nanoTime();
+        SessionKey key = new SessionKey(username, source);
+        Session existing = sessions.get(key);
+        if (existing == null) {
+            existing = open(key, new Session(username, source, System.currentTimeMillis(), now, now));
+        }
+        if (existing != null) {
+            existing.lastActivityNanos = now;
+        }
+    }
+
+    /**
+     * Open a session from the past, e.g. replayed from the journal, unless it is already open or idle for too long.
+     */
+    public void restore(@Nonnull String username, @Nonnull String source, long loginMillis, long lastActivityMillis) {
+        long nowMillis = System.currentTimeMillis();
+        long now = System.nanoTime();
+        long lastActivity = now - TimeUnit.MILLISECONDS.toNanos(Math.max(0, nowMillis - lastActivityMillis));
+        if (lastActivity + timeoutNanos - now <= 0) {
+            return;
+        }
+        SessionKey key = new SessionKey(username, source);
+        if (sessions.containsKey(key)) {
+            return;
+        }
+        long login = now - TimeUnit.MILLISECONDS.toNanos(Math.max(0, nowMillis - loginMillis));
+        open(key, new Session(username, source, loginMillis, login, lastActivity));
+    }
+
+    /**
+     * @return the session already open for the key, null if the new one was added
+     */
+    private @CheckForNull Session open(@Nonnull SessionKey key, @Nonnull Session session) {
+        Session existing = sessions.putIfAbsent(key, session);
+        if (existing != null) {
+            return existing;
+        }
+        // counted as soon as visible, a concurrent close decrements it
+        int total = count.incrementAndGet();
+        boolean[] added = new boolean[1];
+        Session[] oldest = new Session[1];
+        users.compute(session.username, (k, userSessions) -> {
+            // closed meanwhile by a logout, close removes it from the sessions before the users
+            if (sessions.get(key) != session) {
+                return userSessions;
+            }
+            if (userSessions == null) {
+                userSessions = new UserSessions();
+            }
+            userSessions.add(session);
+            added[0] = true;
+            if (userSessions.size() > maxSessionsPerUser) {
+                oldest[0] = userSessions.oldest();
+            }
+            return userSessions;
+        });
+        if (!added[0]) {
+            return null;
+        }
+        schedule(session, session.lastActivityNanos);
+        if (oldest[0] != null) {
+            close(oldest[0], Reason.EVICTED);
+        }
+        if (total > maxSessions) {
+            Session victim = closestToExpiry();
+            if (victim != null) {
+                close(victim, Reason.EVICTED);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record an activity on the session, if it is open.
+     */
+    public void touch(@Nonnull String username, @Nonnull String source) {
+        Session session = sessions.get(new SessionKey(username, source));
+        if (session != null) {
+            session.lastActivityNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Close the session of that username and source. The source of the logout is not always the one of the login,
+     * when there is no session for it and the user has a single session, that one is closed.
+     *
+     * @return false if no session was closed
+     */
+    public boolean logout(@Nonnull String username, @Nonnull String source) {
+        Session session = sessions.get(new SessionKey(username, source));
+        if (session == null) {
+            UserSessions userSessions = users.get(username);
+            if (userSessions == null || userSessions.size() != 1) {
+                return false;
+            }
+            session = userSessions.oldest();
+            if (session == null) {
+                return false;
+            }
+        }
+        return close(session, Reason.LOGGED_OUT);
+    }
+
+    private boolean close(@Nonnull Session session, @Nonnull Reason reason) {
+        if (!sessions.remove(new SessionKey(session.username, session.source), session)) {
+            // already closed by another thread
+            return false;
+        }
+        session.closed = true;
+        users.computeIfPresent(session.username, (k, userSessions) -> {
+            userSessions.remove(session);
+            return userSessions.size() == 0 ? null : userSessions;
+        });
+        cancel(session);
+        count.decrementAndGet();
+        if (reason == Reason.EXPIRED) {
+            expired.increment();
+        } else if (reason == Reason.EVICTED) {
+            evicted.increment();
+        }
+        return true;
+    }
+
+    private long tickOf(long nanos) {
+        return (nanos - origin) / tickNanos;
+    }
+
+    private void schedule(@Nonnull Session session, long now) {
+        long tick = Math.max(tickOf(now + timeoutNanos), processedTick + 1);
+        Bucket bucket = wheel[(int) (tick & wheelMask)];
+        synchronized (bucket) {
+            if (!session.closed) {
+                bucket.link(session);
+            }
+        }
+    }
+
+    private void cancel(@Nonnull Session session) {
+        while (true) {
+            Bucket bucket = session.bucket;
+            if (bucket == null) {
+                return;
+            }
+            synchronized (bucket) {
+                if (session.bucket == bucket) {
+                    bucket.unlink(session);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit the buckets whose time has come: close the sessions idle for too long
+     * and move the others to the bucket of their new deadline. Must not be called concurrently.
+     */
+    public void tick() {
+        long now = System.nanoTime();
+        long current = tickOf(now);
+        long from = Math.max(processedTick + 1, current - wheelMask);
+        List<Session> expiredSessions = new ArrayList<>();
+        for (long tick = from; tick <= current; tick++) {
+            Bucket bucket = wheel[(int) (tick & wheelMask)];
+            synchronized (bucket) {
+                Session session = bucket.head;
+                while (session != null) {
+                    Session next = session.wheelNext;
+                    long deadline = session.lastActivityNanos + timeoutNanos;
+                    if (deadline - now <= 0) {
+                        bucket.unlink(session);
+                        expiredSessions.add(session);
+                    } else {
+                        long target = Math.max(tickOf(deadline), current + 1);
+                        Bucket targetBucket = wheel[(int) (target & wheelMask)];
+                        if (targetBucket != bucket) {
+                            bucket.unlink(session);
+                            // only the ticking thread holds two bucket locks, there is no lock ordering issue
+                            synchronized (targetBucket) {
+                                targetBucket.link(session);
+                            }
+                        }
+                    }
+                    session = next;
+                }
+            }
+        }
+        processedTick = current;
+        for (Session session : expiredSessions) {
+            close(session, Reason.EXPIRED);
+        }
+    }
+
+    /**
+     * @return a session of the first non empty bucket after the current tick, approximately the closest to its expiry
+     */
+    private @CheckForNull Session closestToExpiry() {
+        long start = processedTick + 1;
+        for (int i = 0; i < wheel.length; i++) {
+            Bucket bucket = wheel[(int) ((start + i) & wheelMask)];
+            synchronized (bucket) {
+                if (bucket.head != null) {
+                    return bucket.head;
+                }
+            }
+        }
+        return null;
+    }
+
+    public int getSessionCount() {
+        return count.get();
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    public int getSessionCount(@Nonnull String username) {
+        UserSessions userSessions = users.get(username);
+        return userSessions == null ? 0 : userSessions.size();
+    }
+
+    /**
+     * @return the open session of that user with the earliest login, null if none
+     */
+    public @CheckForNull Session getOldestSession(@Nonnull String username) {
+        UserSessions userSessions = users.get(username);
+        return userSessions == null ? null : userSessions.oldest();
+    }
+
+    /**
+     * @return the open sessions of that user, in the order of their login
+     */
+    public @Nonnull List<Session> getSessions(@Nonnull String username) {
+        UserSessions userSessions = users.get(username);
+        return userSessions == null ? Collections.emptyList() : userSessions.toList();
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.tracking;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.annotation.Nonnull;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count occurrences per key over a sliding time window, with a fixed memory footprint whatever the number of keys.
+ *
+ * The keys are hashed into a fixed table of slots, grouped by four. Each slot keeps one counter per time bucket
+ * for the last {@code bucketCount} buckets. When the four slots of a group are taken, the one that was not updated
+ * for the longest time is reused: the keys seen only once are evicted by the new ones,
+ * while the keys under attack are constantly refreshed and stay.
+ *
+ * Each group is protected by one of a fixed set of locks, the recording and the queries are O(1) in the number of keys.
+ * The hash is seeded randomly so that the collisions cannot be computed in advance.
+ */
+@Restricted(NoExternalUse.class)
+public final class SlidingWindowCounter {
+    private static final int GROUP_SIZE = 4;
+    private static final int LOCK_COUNT = 256;
+    private static final long EMPTY = 0;
+
+    private final long origin = System.nanoTime();
+    private final long bucketNanos;
+    private final int bucketSeconds;
+    private final int bucketCount;
+    private final int groupMask;
+    private final long seed = new SecureRandom().nextLong();
+
+    private final long[] fingerprints;
+    private final long[] lastEpochs;
+    private final int[] counts;
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param requestedCapacity maximum number of keys tracked at the same time, rounded up to a power of two
+     * @param bucketSeconds     granularity of the window
+     * @param bucketCount       number of buckets kept, the horizon being {@code bucketSeconds * bucketCount}
+     */
+    public SlidingWindowCounter(int requestedCapacity, int bucketSeconds, int bucketCount) {
+        int capacity = Math.max(GROUP_SIZE, Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1);
+        this.bucketSeconds = Math.max(1, bucketSeconds);
+        this.bucketNanos = TimeUnit.SECONDS.toNanos(this.bucketSeconds);
+        this.bucketCount = Math.max(1, bucketCount);
+        this.groupMask = capacity / GROUP_SIZE - 1;
+
+        this.fingerprints = new long[capacity];
+        this.lastEpochs = new long[capacity];
+        this.counts = new int[capacity * this.bucketCount];
+        Arrays.fill(lastEpochs, Long.MIN_VALUE);
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public void increment(@Nonnull String key) {
+        increment(key, 0);
+    }
+
+    /**
+     * Count an occurrence from the past, e.g. replayed from the journal, ignored if it is beyond the horizon.
+     */
+    public void increment(@Nonnull String key, long ageNanos) {
+        long now = System.nanoTime();
+        long epoch = epochOf(now - Math.max(0, ageNanos));
+        if (epoch <= epochOf(now) - bucketCount) {
+            return;
+        }
+        long fingerprint = fingerprint(key);
+        int group = (int) (fingerprint >>> 32) & groupMask;
+        synchronized (locks[group & (LOCK_COUNT - 1)]) {
+            int slot = findSlot(group, fingerprint);
+            if (slot < 0) {
+                slot = claimSlot(group, fingerprint, epoch);
+            }
+
+            long last = lastEpochs[slot];
+            if (epoch > last) {
+                // the buckets between the last update and now are from a previous round
+                long stale = Math.min(epoch - last, bucketCount);
+                for (long e = epoch - stale + 1; e <= epoch; e++) {
+                    counts[bucketIndex(slot, e)] = 0;
+                }
+                lastEpochs[slot] = epoch;
+            } else if (epoch <= last - bucketCount) {
+                // too old to be counted, can only happen with a thread stalled for the whole horizon
+                return;
+            }
+            counts[bucketIndex(slot, epoch)]++;
+        }
+    }
+
+    /**
+     * @param seconds the window to consider, capped to the horizon, with the granularity of a bucket
+     * @return the number of occurrences of the key in the last seconds, 0 if it is unknown or was evicted
+     */
+    public int count(@Nonnull String key, int seconds) {
+        long fingerprint = fingerprint(key);
+        long epoch = currentEpoch();
+        long windowBuckets = Math.min(bucketCount, Math.max(1, (seconds + bucketSeconds - 1) / bucketSeconds));
+        int group = (int) (fingerprint >>> 32) & groupMask;
+        synchronized (locks[group & (LOCK_COUNT - 1)]) {
+            int slot = findSlot(group, fingerprint);
+            if (slot < 0) {
+                return 0;
+            }
+
+            long last = lastEpochs[slot];
+            long from = Math.max(epoch - windowBuckets + 1, last - bucketCount + 1);
+            long to = Math.min(epoch, last);
+            int total = 0;
+            for (long e = from; e <= to; e++) {
+                total += counts[bucketIndex(slot, e)];
+            }
+            return total;
+        }
+    }
+
+    public int getHorizonSeconds() {
+        return bucketSeconds * bucketCount;
+    }
+
+    public int getCapacity() {
+        return fingerprints.length;
+    }
+
+    /**
+     * @return the number of keys that were removed to make room for new ones
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private int findSlot(int group, long fingerprint) {
+        int first = group * GROUP_SIZE;
+        for (int i = first; i < first + GROUP_SIZE; i++) {
+            if (fingerprints[i] == fingerprint) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int claimSlot(int group, long fingerprint, long epoch) {
+        int first = group * GROUP_SIZE;
+        int stalest = first;
+        for (int i = first + 1; i < first + GROUP_SIZE; i++) {
+            if (lastEpochs[i] < lastEpochs[stalest]) {
+                stalest = i;
+            }
+        }
+        if (fingerprints[stalest] != EMPTY) {
+            evictions.increment();
+        }
+        fingerprints[stalest] = fingerprint;
+        // all the buckets will be cleared by the caller
+        lastEpochs[stalest] = epoch - bucketCount;
+        return stalest;
+    }
+
+    private int bucketIndex(int slot, long epoch) {
+        return slot * bucketCount + (int) (epoch % bucketCount);
+    }
+
+    private long currentEpoch() {
+        return epochOf(System.nanoTime());
+    }
+
+    private long epochOf(long nanos) {
+        return Math.floorDiv(nanos - origin, bucketNanos) + bucketCount;
+    }
+
+    private long fingerprint(@Nonnull String key) {
+        // seeded FNV-1a followed by the murmur3 finalizer
+        long h = seed;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1 : h;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins;
+
+import hudson.ExtensionList;
+import org.jenkinsci.plugins.dispatch.Asynchronous;
+import org.jenkinsci.plugins.dispatch.DispatchTable;
+import org.jenkinsci.plugins.dispatch.Essential;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.LoginEvent;
+import org.jenkinsci.plugins.events.impl.LoginEventImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class SecurityListener2Test {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void vetoSkipsTheNextListenersButNotTheEssentialOnes() {
+        Recorder vetoing = new Recorder(false);
+        Recorder skipped = new Recorder(true);
+        Recorder essential = new EssentialRecorder();
+        Recorder asyncSkipped = new AsyncRecorder();
+        Recorder asyncEssential = new AsyncEssentialRecorder();
+        register(vetoing, skipped, essential, asyncSkipped, asyncEssential);
+
+        int skippedCount = SecurityListener2.fireCountingSkipped(EventType.LOGGED_IN, new LoginEventImpl("alice", "test"));
+
+        assertEquals("the non essential listeners after the veto", 2, skippedCount);
+        assertEquals(1, vetoing.count.get());
+        assertEquals(0, skipped.count.get());
+        assertEquals(1, essential.count.get());
+        // delivered by the firing thread, the event is not queued once vetoed
+        assertEquals(1, asyncEssential.count.get());
+        assertEquals(0, asyncSkipped.count.get());
+    }
+
+    @Test
+    public void withoutVetoEveryListenerReceivesTheEventOnce() throws Exception {
+        Recorder first = new Recorder(true);
+        Recorder essential = new EssentialRecorder();
+        Recorder async = new AsyncRecorder();
+        Recorder asyncEssential = new AsyncEssentialRecorder();
+        register(first, essential, async, asyncEssential);
+
+        int skippedCount = SecurityListener2.fireCountingSkipped(EventType.LOGGED_IN, new LoginEventImpl("alice", "test"));
+
+        assertEquals(0, skippedCount);
+        assertEquals(1, first.count.get());
+        assertEquals(1, essential.count.get());
+        async.await(1);
+        asyncEssential.await(1);
+        assertEquals(1, async.count.get());
+        assertEquals(1, asyncEssential.count.get());
+    }
+
+    private static void register(SecurityListener2... listeners) {
+        ExtensionList<SecurityListener2> list = ExtensionList.lookup(SecurityListener2.class);
+        for (SecurityListener2 listener : listeners) {
+            // appended after the registered ones, in that order
+            list.add(listener);
+        }
+        DispatchTable.invalidate();
+    }
+
+    static class Recorder extends SecurityListener2 {
+        final AtomicInteger count = new AtomicInteger();
+        private final boolean accept;
+
+        Recorder(boolean accept) {
+            this.accept = accept;
+        }
+
+        @Override
+        protected boolean loggedIn(@Nonnull LoginEvent event) {
+            count.incrementAndGet();
+            return accept;
+        }
+
+        void await(int expected) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (count.get() < expected && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Essential
+    static class EssentialRecorder extends Recorder {
+        EssentialRecorder() {
+            super(true);
+        }
+    }
+
+    @Asynchronous
+    static class AsyncRecorder extends Recorder {
+        AsyncRecorder() {
+            super(true);
+        }
+    }
+
+    @Asynchronous
+    @Essential
+    static class AsyncEssentialRecorder extends Recorder {
+        AsyncEssentialRecorder() {
+            super(true);
+        }
+    }
+}
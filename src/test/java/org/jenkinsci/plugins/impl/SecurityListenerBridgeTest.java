@@ -0,0 +1,340 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.impl;
+
+import hudson.ExtensionList;
+import jenkins.security.SecurityListener;
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.User;
+import org.acegisecurity.userdetails.UserDetails;
+import org.jenkinsci.plugins.SecurityListener2;
+import org.jenkinsci.plugins.dispatch.Asynchronous;
+import org.jenkinsci.plugins.dispatch.DispatchTable;
+import org.jenkinsci.plugins.events.AuthenticationEvent;
+import org.jenkinsci.plugins.events.AuthenticationFailureEvent;
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.LoginEvent;
+import org.jenkinsci.plugins.events.LoginFailureEvent;
+import org.jenkinsci.plugins.events.LogoutEvent;
+import org.jenkinsci.plugins.events.impl.AuthenticationEventImpl;
+import org.jenkinsci.plugins.events.impl.AuthenticationFailureEventImpl;
+import org.jenkinsci.plugins.events.impl.LoginEventImpl;
+import org.jenkinsci.plugins.events.impl.LoginFailureEventImpl;
+import org.jenkinsci.plugins.events.impl.LogoutEventImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The two bridges together: an event fired on either side reaches every listener of both sides exactly once.
+ * The throughput of the same storm is measured by the LoginStormHarness of the jmh profile.
+ */
+public class SecurityListenerBridgeTest {
+    private static final String SOURCE_PREFIX = "bridge-test/";
+    private static final EventType[] TYPES = EventType.values();
+    private static final int THREADS = 4;
+    private static final int EVENTS = 20_000;
+    private static final int USERS = 50;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void legacyEventReachesTheNewListenersOnce() {
+        Deliveries deliveries = new Deliveries(1);
+        Deliveries legacyDeliveries = new Deliveries(1);
+        RecordingListener listener = new RecordingListener(deliveries);
+        ExtensionList.lookup(SecurityListener2.class).add(listener);
+        ExtensionList.lookup(SecurityListener.class).add(new RecordingLegacyListener(legacyDeliveries));
+        DispatchTable.invalidate();
+
+        SecurityListener.fireLoggedIn("alice", SOURCE_PREFIX + 0);
+
+        assertEquals(1, deliveries.count(0));
+        assertTrue("marked as coming from the legacy API", listener.lastFromLegacy);
+        // not passed back to the legacy side by the other bridge
+        assertEquals(1, legacyDeliveries.count(0));
+    }
+
+    @Test
+    public void newEventReachesTheLegacyListenersOnce() {
+        Deliveries deliveries = new Deliveries(1);
+        Deliveries legacyDeliveries = new Deliveries(1);
+        RecordingListener listener = new RecordingListener(deliveries);
+        ExtensionList.lookup(SecurityListener2.class).add(listener);
+        ExtensionList.lookup(SecurityListener.class).add(new RecordingLegacyListener(legacyDeliveries));
+        DispatchTable.invalidate();
+
+        SecurityListener2.fireLoggedIn(new LoginEventImpl("alice", SOURCE_PREFIX + 0, "authenticated"));
+
+        assertEquals(1, legacyDeliveries.count(0));
+        // not passed back to the new side by the other bridge
+        assertEquals(1, deliveries.count(0));
+        assertFalse(listener.lastFromLegacy);
+    }
+
+    @Test
+    public void stormReachesEachListenerExactlyOnce() throws Exception {
+        Deliveries deliveries = new Deliveries(EVENTS);
+        Deliveries asyncDeliveries = new Deliveries(EVENTS);
+        Deliveries legacyDeliveries = new Deliveries(EVENTS);
+        ExtensionList.lookup(SecurityListener2.class).add(new RecordingListener(deliveries));
+        ExtensionList.lookup(SecurityListener2.class).add(new AsyncRecordingListener(asyncDeliveries));
+        ExtensionList.lookup(SecurityListener.class).add(new RecordingLegacyListener(legacyDeliveries));
+        DispatchTable.invalidate();
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t;
+            threads[t] = new Thread(() -> {
+                for (int id = first; id < EVENTS; id += THREADS) {
+                    fire(id);
+                }
+            }, "bridge-storm-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("asynchronous listener not drained", asyncDeliveries.await(EVENTS, 60));
+        deliveries.assertExactlyOnce("SecurityListener2");
+        asyncDeliveries.assertExactlyOnce("asynchronous SecurityListener2");
+        legacyDeliveries.assertExactlyOnce("legacy SecurityListener");
+    }
+
+    /**
+     * Every type of event, alternately fired through the legacy and the new API
+     */
+    private static void fire(int id) {
+        String username = "user" + id % USERS;
+        String source = SOURCE_PREFIX + id;
+        EventType type = TYPES[id % TYPES.length];
+        if ((id / TYPES.length) % 2 == 0) {
+            switch (type) {
+                case AUTHENTICATED:
+                    UserDetails details = new User(username, "", true, true, true, true, new GrantedAuthority[0]);
+                    SecurityListener.fireAuthenticated(details, source);
+                    break;
+                case FAILED_TO_AUTHENTICATE:
+                    SecurityListener.fireFailedToAuthenticate(username, source);
+                    break;
+                case LOGGED_IN:
+                    SecurityListener.fireLoggedIn(username, source);
+                    break;
+                case FAILED_TO_LOG_IN:
+                    SecurityListener.fireFailedToLogIn(username, source);
+                    break;
+                case LOGGED_OUT:
+                    SecurityListener.fireLoggedOut(username, source);
+                    break;
+            }
+        } else {
+            switch (type) {
+                case AUTHENTICATED:
+                    SecurityListener2.fireAuthenticated(new AuthenticationEventImpl(username, source));
+                    break;
+                case FAILED_TO_AUTHENTICATE:
+                    SecurityListener2.fireFailedToAuthenticate(new AuthenticationFailureEventImpl(username, source));
+                    break;
+                case LOGGED_IN:
+                    SecurityListener2.fireLoggedIn(new LoginEventImpl(username, source, "authenticated"));
+                    break;
+                case FAILED_TO_LOG_IN:
+                    SecurityListener2.fireFailedToLogIn(new LoginFailureEventImpl(username, source));
+                    break;
+                case LOGGED_OUT:
+                    SecurityListener2.fireLoggedOut(new LogoutEventImpl(username, source));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the event id from the trailing digits of the source, the bridges may prefix it, -1 if not from the test
+     */
+    static int idOf(String source) {
+        if (source == null) {
+            return -1;
+        }
+        int start = source.lastIndexOf(SOURCE_PREFIX);
+        if (start < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(source.substring(start + SOURCE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Count of the deliveries per event id
+     */
+    static final class Deliveries {
+        private final AtomicIntegerArray counts;
+        private final LongAdder total = new LongAdder();
+        private final LongAdder unknown = new LongAdder();
+
+        Deliveries(int events) {
+            counts = new AtomicIntegerArray(events);
+        }
+
+        void record(String source) {
+            int id = idOf(source);
+            if (id < 0 || id >= counts.length()) {
+                unknown.increment();
+            } else {
+                counts.incrementAndGet(id);
+            }
+            total.increment();
+        }
+
+        int count(int id) {
+            return counts.get(id);
+        }
+
+        boolean await(long expected, long timeoutSeconds) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (total.sum() < expected) {
+                if (System.nanoTime() - deadline > 0) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+
+        void assertExactlyOnce(String name) {
+            int lost = 0;
+            int duplicated = 0;
+            StringBuilder examples = new StringBuilder();
+            for (int id = 0; id < counts.length(); id++) {
+                int count = counts.get(id);
+                if (count != 1) {
+                    if (count == 0) {
+                        lost++;
+                    } else {
+                        duplicated++;
+                    }
+                    if (lost + duplicated <= 10) {
+                        examples.append(' ').append(id).append('x').append(count);
+                    }
+                }
+            }
+            String message = name + ": " + lost + " lost, " + duplicated + " duplicated, e.g." + examples;
+            assertEquals(message, 0, lost + duplicated);
+            assertEquals(name + ": unknown sources", 0, unknown.sum());
+        }
+    }
+
+    static class RecordingListener extends SecurityListener2 {
+        final Deliveries deliveries;
+        volatile boolean lastFromLegacy;
+
+        RecordingListener(Deliveries deliveries) {
+            this.deliveries = deliveries;
+        }
+
+        @Override
+        protected boolean authenticated(@Nonnull AuthenticationEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean failedToAuthenticate(@Nonnull AuthenticationFailureEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean loggedIn(@Nonnull LoginEvent event) {
+            lastFromLegacy = event.isFromLegacy();
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean failedToLogIn(@Nonnull LoginFailureEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+
+        @Override
+        protected boolean loggedOut(@Nonnull LogoutEvent event) {
+            deliveries.record(event.getSource());
+            return true;
+        }
+    }
+
+    @Asynchronous
+    static class AsyncRecordingListener extends RecordingListener {
+        AsyncRecordingListener(Deliveries deliveries) {
+            super(deliveries);
+        }
+    }
+
+    static class RecordingLegacyListener extends SecurityListener {
+        final Deliveries deliveries;
+
+        RecordingLegacyListener(Deliveries deliveries) {
+            this.deliveries = deliveries;
+        }
+
+        @Override
+        protected void authenticated(@Nonnull UserDetails details, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void failedToAuthenticate(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void loggedIn(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void failedToLogIn(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+
+        @Override
+        protected void loggedOut(@Nonnull String username, @Nonnull String source) {
+            deliveries.record(source);
+        }
+    }
+}
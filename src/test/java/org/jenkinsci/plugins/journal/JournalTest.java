@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.journal;
+
+import org.jenkinsci.plugins.events.EventType;
+import org.jenkinsci.plugins.events.codec.EventRecord;
+import org.jenkinsci.plugins.events.impl.AuthenticationFailureEventImpl;
+import org.jenkinsci.plugins.events.impl.LoginEventImpl;
+import org.jenkinsci.plugins.events.impl.LogoutEventImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Needs Jenkins for the key of the seals
+ */
+public class JournalTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void eventsAreReadBackInOrder() throws Exception {
+        Journal journal = new Journal(folder.newFolder());
+        journal.append(EventType.LOGGED_IN, new LoginEventImpl("alice", "web", "users"), 1_000L);
+        journal.append(EventType.FAILED_TO_AUTHENTICATE, new AuthenticationFailureEventImpl("bob", "api"), 2_000L);
+        journal.append(EventType.LOGGED_OUT, new LogoutEventImpl("alice", "web"), 3_000L);
+
+        List<EventRecord> records = query(journal, new JournalQuery());
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), EventType.LOGGED_IN, "alice", "web", 1_000L);
+        assertRecord(records.get(1), EventType.FAILED_TO_AUTHENTICATE, "bob", "api", 2_000L);
+        assertRecord(records.get(2), EventType.LOGGED_OUT, "alice", "web", 3_000L);
+
+        List<EventRecord> alice = query(journal, new JournalQuery().username("alice").between(2_000L, Long.MAX_VALUE));
+        assertEquals(1, alice.size());
+        assertRecord(alice.get(0), EventType.LOGGED_OUT, "alice", "web", 3_000L);
+
+        // still readable once sealed
+        journal.close();
+        assertEquals(3, query(journal, new JournalQuery()).size());
+    }
+
+    @Test
+    public void verifyDetectsARewrittenRecord() throws Exception {
+        Journal journal = new Journal(folder.newFolder());
+        for (int i = 0; i < 10; i++) {
+            journal.append(EventType.LOGGED_IN, new LoginEventImpl("user" + i, "web"), 1_000L + i);
+        }
+        journal.close();
+        assertEquals(new ArrayList<String>(), journal.verify());
+
+        // alter the first record and fix its CRC, only the seal can tell
+        File segment = journal.listSegments().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(JournalSegment.HEADER_SIZE);
+            int length = file.readInt();
+            byte[] payload = new byte[length];
+            file.seek(JournalSegment.HEADER_SIZE + JournalSegment.RECORD_HEADER_SIZE);
+            file.readFully(payload);
+            payload[payload.length - 1] ^= 1;
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            file.seek(JournalSegment.HEADER_SIZE + 4);
+            file.writeInt((int) crc.getValue());
+            file.write(payload);
+        }
+
+        List<String> problems = journal.verify();
+        assertTrue("problems: " + problems, problems.size() == 1 && problems.get(0).startsWith("Seal mismatch"));
+    }
+
+    private static List<EventRecord> query(Journal journal, JournalQuery query) {
+        List<EventRecord> records = new ArrayList<>();
+        try (JournalCursor cursor = journal.query(query)) {
+            while (cursor.hasNext()) {
+                records.add(cursor.next());
+            }
+        }
+        return records;
+    }
+
+    private static void assertRecord(EventRecord record, EventType type, String username, String source, long timeMillis) {
+        assertEquals(type, record.getType());
+        assertEquals(username, record.getEvent().getUsername());
+        assertEquals(source, record.getEvent().getSource());
+        assertEquals(timeMillis, record.getTimeMillis());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.tracking;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionRegistryTest {
+    @Test
+    public void loginAndLogoutAreCounted() {
+        SessionRegistry registry = new SessionRegistry(60_000L, 1_000L, 10, 100);
+        registry.login("alice", "web");
+        registry.login("alice", "web");
+        registry.login("alice", "cli");
+        registry.login("bob", "web");
+        assertEquals(3, registry.getSessionCount());
+        assertEquals(2, registry.getUserCount());
+        assertEquals(2, registry.getSessionCount("alice"));
+        assertEquals("web", registry.getOldestSession("alice").getSource());
+
+        assertTrue(registry.logout("alice", "web"));
+        assertEquals(1, registry.getSessionCount("alice"));
+        assertEquals("cli", registry.getOldestSession("alice").getSource());
+        assertTrue(registry.logout("bob", "web"));
+        assertNull(registry.getOldestSession("bob"));
+        assertEquals(1, registry.getSessionCount());
+        assertEquals(1, registry.getUserCount());
+    }
+
+    @Test
+    public void logoutFromAnotherSourceClosesTheSingleSession() {
+        SessionRegistry registry = new SessionRegistry(60_000L, 1_000L, 10, 100);
+        registry.login("alice", "web");
+        assertTrue(registry.logout("alice", "api"));
+        assertEquals(0, registry.getSessionCount());
+
+        registry.login("alice", "web");
+        registry.login("alice", "cli");
+        // ambiguous, nothing is closed
+        assertFalse(registry.logout("alice", "api"));
+        assertEquals(2, registry.getSessionCount());
+    }
+
+    @Test
+    public void oldestSessionOfTheUserIsEvicted() {
+        SessionRegistry registry = new SessionRegistry(60_000L, 1_000L, 2, 100);
+        registry.login("alice", "s1");
+        registry.login("alice", "s2");
+        registry.login("alice", "s3");
+        List<SessionRegistry.Session> sessions = registry.getSessions("alice");
+        assertEquals(2, sessions.size());
+        assertEquals("s2", sessions.get(0).getSource());
+        assertEquals("s3", sessions.get(1).getSource());
+        assertEquals(1, registry.getEvictedCount());
+        assertEquals(2, registry.getSessionCount());
+    }
+
+    @Test
+    public void totalNumberOfSessionsIsBounded() {
+        SessionRegistry registry = new SessionRegistry(60_000L, 1_000L, 10, 3);
+        for (int i = 0; i < 5; i++) {
+            registry.login("user" + i, "web");
+        }
+        assertEquals(3, registry.getSessionCount());
+        assertEquals(2, registry.getEvictedCount());
+    }
+
+    @Test
+    public void idleSessionsExpire() throws Exception {
+        SessionRegistry registry = new SessionRegistry(50L, 10L, 10, 100);
+        registry.login("alice", "web");
+        registry.login("bob", "web");
+        long deadline = System.currentTimeMillis() + 5_000L;
+        while (registry.getSessionCount() > 1 && System.currentTimeMillis() < deadline) {
+            registry.touch("bob", "web");
+            Thread.sleep(10L);
+            registry.tick();
+        }
+        assertEquals(1, registry.getSessionCount());
+        assertEquals(0, registry.getSessionCount("alice"));
+        assertEquals(1, registry.getSessionCount("bob"));
+        assertEquals(1, registry.getExpiredCount());
+    }
+
+    @Test
+    public void restoredSessionsKeepTheirLoginTime() {
+        SessionRegistry registry = new SessionRegistry(60_000L, 1_000L, 10, 100);
+        long now = System.currentTimeMillis();
+        registry.restore("alice", "web", now - 10_000L, now - 1_000L);
+        // idle for longer than the timeout
+        registry.restore("bob", "web", now - 120_000L, now - 90_000L);
+        assertEquals(1, registry.getSessionCount());
+        assertEquals(now - 10_000L, registry.getOldestSession("alice").getLoginMillis());
+
+        // already open, not replaced
+        registry.restore("alice", "web", now - 5_000L, now - 1_000L);
+        assertEquals(now - 10_000L, registry.getOldestSession("alice").getLoginMillis());
+    }
+
+    @Test
+    public void concurrentLoginsAndLogoutsKeepTheCountsConsistent() throws Exception {
+        SessionRegistry registry = new SessionRegistry(60_000L, 1_000L, 4, 10_000);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 20_000; i++) {
+                    String username = "user" + (i % 16);
+                    String source = "source" + ((i + id) % 8);
+                    if ((i + id) % 3 == 0) {
+                        registry.logout(username, source);
+                    } else {
+                        registry.login(username, source);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        int total = 0;
+        for (int i = 0; i < 16; i++) {
+            String username = "user" + i;
+            List<SessionRegistry.Session> sessions = registry.getSessions(username);
+            assertTrue(sessions.size() <= 4);
+            assertEquals(sessions.size(), registry.getSessionCount(username));
+            for (SessionRegistry.Session session : sessions) {
+                assertFalse(session.isClosed());
+            }
+            total += sessions.size();
+        }
+        assertEquals(total, registry.getSessionCount());
+    }
+}